@@ -0,0 +1,88 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.CommandWriter;
+import com.ruyiso.pm25.CommandWriter.Command;
+
+/**
+ * Encoding of ad hoc command lines and the way of queued commands through the writer thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+	@Param({ "SYNC from phone 00:11:22:33:44:55" })
+	public String text;
+
+	private CommandWriter writer;
+	private CountingOutputStream out;
+
+	@Setup
+	public void setUp() {
+		out = new CountingOutputStream();
+		writer = new CommandWriter(out, new CommandWriter.WriteFailureListener() {
+			@Override
+			public void onWriteFailed(CommandWriter writer, IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		writer.start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		writer.close();
+	}
+
+	/**
+	 * What sendToTarget() costs on top of queueing.
+	 */
+	@Benchmark
+	public Command encode() {
+		return new Command(text);
+	}
+
+	/**
+	 * Sample requests as sent by the scheduler, waiting whenever the queue is full.
+	 */
+	@Benchmark
+	public long sendRequest() {
+		while (!writer.send(Command.REQUEST_SAMPLE)) {
+			Thread.yield();
+		}
+		return out.bytes;
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+		volatile long bytes;
+
+		@Override
+		public void write(int b) {
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			bytes += len;
+		}
+	}
+}
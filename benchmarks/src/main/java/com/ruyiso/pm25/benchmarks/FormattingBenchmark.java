@@ -0,0 +1,46 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.FixedPointFormat;
+
+/**
+ * Turning readings into the text shown by MainActivity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormattingBenchmark {
+	private final DecimalFormat df = new DecimalFormat("0.00");
+	private final char[] chars = new char[32];
+	private int value;
+
+	@Benchmark
+	public String decimalFormat() {
+		value = (value + 7) & 0x3ff;
+		return df.format(value);
+	}
+
+	/**
+	 * What the dashboard does instead.
+	 */
+	@Benchmark
+	public int fixedPoint() {
+		value = (value + 7) & 0x3ff;
+		return FixedPointFormat.format(value, 2, chars, 0) + chars[0];
+	}
+}
@@ -0,0 +1,65 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.FrameDecoder;
+
+/**
+ * Decoding as done by the reader thread: one operation feeds one read of {@link #chunk} bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark implements FrameDecoder.FrameListener {
+	/** captured stream to replay, empty for a synthetic one */
+	@Param({ "" })
+	public String recording;
+
+	@Param({ "0", "0.05" })
+	public double corruption;
+
+	/** size of the reader thread's buffer */
+	@Param({ "256" })
+	public int chunk;
+
+	private byte[] stream;
+	private int position;
+	private FrameDecoder decoder;
+	private long sum;
+
+	@Setup
+	public void setUp() throws IOException {
+		stream = Recordings.load(recording, 16384, corruption, 1);
+		decoder = new FrameDecoder(this);
+	}
+
+	@Override
+	public void onFrame(int pm25, int pm10) {
+		sum += pm25 + pm10;
+	}
+
+	@Benchmark
+	public long feed() {
+		int count = Math.min(chunk, stream.length - position);
+		decoder.feed(stream, position, count);
+		position += count;
+		if (position == stream.length) position = 0;
+		return sum;
+	}
+}
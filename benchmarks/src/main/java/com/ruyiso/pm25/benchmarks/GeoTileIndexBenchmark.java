@@ -0,0 +1,85 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.GeoTileIndex;
+
+/**
+ * Tagging a reading and summing up the area around the phone from the tiles, against scanning the
+ * located readings for the same area. A day of walking at 1 Hz in a 10 km square.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoTileIndexBenchmark {
+	private static final int READINGS = 86400;
+
+	private static final double SOUTH = 31.2;
+	private static final double WEST = 121.4;
+	private static final double SPAN = 0.1;
+
+	/** about 2 km across */
+	private static final double AREA = 0.02;
+
+	private final GeoTileIndex index = new GeoTileIndex();
+	private final GeoTileIndex.Summary summary = new GeoTileIndex.Summary();
+	private final double[] latitudes = new double[READINGS];
+	private final double[] longitudes = new double[READINGS];
+	private final int[] pm25 = new int[READINGS];
+	private int next;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(25);
+		for (int i = 0; i < READINGS; i++) {
+			latitudes[i] = SOUTH + random.nextDouble() * SPAN;
+			longitudes[i] = WEST + random.nextDouble() * SPAN;
+			pm25[i] = random.nextInt(300);
+			index.add(latitudes[i], longitudes[i], i * 1000L, pm25[i], pm25[i]);
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void add() {
+		final int i = next;
+		next = (i + 1) % READINGS;
+		index.add(latitudes[i], longitudes[i], i * 1000L, pm25[i], pm25[i]);
+	}
+
+	@Benchmark
+	public float queryTiles() {
+		index.query(SOUTH + 0.04, WEST + 0.04, SOUTH + 0.04 + AREA, WEST + 0.04 + AREA, summary);
+		return summary.meanPm25;
+	}
+
+	@Benchmark
+	public float scanReadings() {
+		final double north = SOUTH + 0.04 + AREA;
+		final double east = WEST + 0.04 + AREA;
+		long sum = 0;
+		int count = 0;
+		for (int i = 0; i < READINGS; i++) {
+			if (latitudes[i] >= SOUTH + 0.04 && latitudes[i] < north && longitudes[i] >= WEST + 0.04 && longitudes[i] < east) {
+				sum += pm25[i];
+				count++;
+			}
+		}
+		return count == 0 ? 0 : (float) sum / count;
+	}
+}
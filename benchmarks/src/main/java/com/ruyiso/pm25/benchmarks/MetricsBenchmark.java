@@ -0,0 +1,43 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.LatencyHistogram;
+
+/**
+ * Cost of recording a latency on the hot path of the connection threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private long value = 1;
+
+	@Benchmark
+	public void record() {
+		// spread over the buckets of 0.1 to 100 ms like the round trips
+		value = (value * 2862933555777941757L + 3037000493L);
+		histogram.record(100000 + ((value >>> 40) & 0xffffff) * 6);
+	}
+
+	@Benchmark
+	public long nanoTimeAndRecord() {
+		long start = System.nanoTime();
+		histogram.record(System.nanoTime() - start);
+		return start;
+	}
+}
@@ -0,0 +1,57 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.MinMaxPyramid;
+
+/**
+ * Feeding the chart history and querying one frame's worth of columns, after three days at 10 Hz.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MinMaxPyramidBenchmark {
+	/** visible range in minutes */
+	@Param({ "10", "1440", "4320" })
+	public int minutes;
+
+	/** a 1080 pixel wide chart with 2 pixel columns */
+	private static final int COLUMNS = 540;
+
+	private final MinMaxPyramid pyramid = new MinMaxPyramid();
+	private final MinMaxPyramid.Columns columns = new MinMaxPyramid.Columns(COLUMNS);
+	private long timestamp;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < 3 * 24 * 60 * 60 * 10; i++) {
+			add();
+		}
+	}
+
+	@Benchmark
+	public void add() {
+		timestamp += 100;
+		pyramid.add(timestamp, timestamp % 97, timestamp % 193);
+	}
+
+	@Benchmark
+	public long query() {
+		return pyramid.query(timestamp - minutes * 60000L, timestamp, COLUMNS, columns);
+	}
+}
@@ -0,0 +1,53 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import com.ruyiso.pm25.SimulatedSensor;
+
+/**
+ * Byte streams as received from a sensor, either captured from a real one or synthetic.
+ */
+final class Recordings {
+	private Recordings() {
+	}
+
+	/**
+	 * @param path a captured stream, empty for a synthetic one of the given number of frames
+	 * @param corruption fraction of frames with one damaged byte, applied to synthetic streams only
+	 */
+	static byte[] load(String path, int frames, double corruption, long seed) throws IOException {
+		if (path != null && path.length() > 0) return read(new File(path));
+		return synthetic(frames, corruption, seed);
+	}
+
+	static byte[] synthetic(int frames, double corruption, long seed) {
+		SimulatedSensor.SyntheticSource source = new SimulatedSensor.SyntheticSource(20, seed);
+		Random random = new Random(seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(frames * SimulatedSensor.FRAME_SIZE);
+		byte[] frame = new byte[SimulatedSensor.MAX_FRAME_SIZE];
+
+		for (int i = 0; i < frames; i++) {
+			int size = source.nextFrame(frame);
+			if (random.nextDouble() < corruption) {
+				frame[random.nextInt(size)] ^= (byte) (1 + random.nextInt(255));
+			}
+			out.write(frame, 0, size);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+}
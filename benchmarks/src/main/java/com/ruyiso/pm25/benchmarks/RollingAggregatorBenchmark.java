@@ -0,0 +1,51 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.RollingAggregator;
+
+/**
+ * Adding 10 Hz samples and reading the summaries shown by the UI.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RollingAggregatorBenchmark {
+	private final RollingAggregator aggregator = new RollingAggregator();
+	private final RollingAggregator.Summary summary = new RollingAggregator.Summary();
+	private long timestamp;
+
+	@Setup
+	public void setUp() {
+		// a full day, so every window is populated
+		for (int i = 0; i < 24 * 60 * 60 * 10; i++) {
+			add();
+		}
+	}
+
+	@Benchmark
+	public void add() {
+		timestamp += 100;
+		aggregator.add(timestamp, timestamp % 97, timestamp % 193);
+	}
+
+	@Benchmark
+	public int readDay() {
+		aggregator.read(RollingAggregator.WINDOW_DAY, timestamp, summary);
+		return summary.aqi;
+	}
+}
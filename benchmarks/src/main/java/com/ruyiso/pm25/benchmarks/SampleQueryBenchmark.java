@@ -0,0 +1,110 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.SampleQuery;
+import com.ruyiso.pm25.SampleStore;
+
+/**
+ * Queries over a day of 10 Hz readings, against scanning the store with a plain cursor and filtering.
+ * PM2.5 stays around 20 ug/m3 with a burst above 100 every two hours.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleQueryBenchmark {
+	private static final long START = 1500000000000L;
+	private static final int READINGS = 24 * 60 * 60 * 10;
+
+	/** ten minutes in the afternoon */
+	private static final long RANGE_START = START + 15 * 60 * 60 * 1000L;
+	private static final long RANGE_END = RANGE_START + 10 * 60 * 1000L;
+
+	private static final int THRESHOLD_TENTHS = 1000;
+
+	private File directory;
+	private SampleStore store;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = File.createTempFile("samples", "");
+		if (!directory.delete()) throw new IOException("unable to delete " + directory);
+		store = new SampleStore(directory, 0);
+		for (int i = 0; i < READINGS; i++) {
+			final long timestamp = START + i * 100L;
+			final float pm25 = i % 72000 < 3000 ? 120 : 20 + i % 7;
+			store.append(timestamp, pm25, pm25 * 1.5f, 0);
+		}
+		store.flush();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public long range() throws IOException {
+		long sum = 0;
+		SampleQuery.Cursor cursor = SampleQuery.readings(store, RANGE_START, RANGE_END);
+		while (cursor.next()) {
+			sum += cursor.getPm25Tenths();
+		}
+		cursor.close();
+		return sum;
+	}
+
+	@Benchmark
+	public long rangeScan() throws IOException {
+		long sum = 0;
+		SampleStore.Cursor cursor = store.openCursor();
+		while (cursor.next()) {
+			if (cursor.getTimestamp() >= RANGE_START && cursor.getTimestamp() < RANGE_END) sum += cursor.getPm25Tenths();
+		}
+		cursor.close();
+		return sum;
+	}
+
+	@Benchmark
+	public int periodsAbove() throws IOException {
+		int periods = 0;
+		SampleQuery.PeriodCursor cursor = SampleQuery.periodsAbove(store, Long.MIN_VALUE, Long.MAX_VALUE, THRESHOLD_TENTHS, 1000);
+		while (cursor.next()) {
+			periods++;
+		}
+		cursor.close();
+		return periods;
+	}
+
+	@Benchmark
+	public int readingsAboveScan() throws IOException {
+		int readings = 0;
+		SampleStore.Cursor cursor = store.openCursor();
+		while (cursor.next()) {
+			if (cursor.getPm25Tenths() > THRESHOLD_TENTHS) readings++;
+		}
+		cursor.close();
+		return readings;
+	}
+}
@@ -0,0 +1,75 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.SampleRingBuffer;
+
+/**
+ * Adding samples on the reader thread while the UI takes snapshots, as with one sensor connected.
+ */
+@State(Scope.Group)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleRingBufferBenchmark {
+	private static final int CAPACITY = 4096;
+
+	private SampleRingBuffer buffer;
+
+	@Setup
+	public void setUp() {
+		buffer = new SampleRingBuffer(CAPACITY);
+		for (int i = 0; i < CAPACITY; i++) {
+			buffer.add(i * 100L, 20, 30);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Writer {
+		long timestamp;
+	}
+
+	@State(Scope.Thread)
+	public static class Reader {
+		final long[] timestamps = new long[CAPACITY];
+		final float[] pm25 = new float[CAPACITY];
+		final float[] pm10 = new float[CAPACITY];
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	public void add(Writer writer) {
+		long timestamp = writer.timestamp += 100;
+		buffer.add(timestamp, timestamp & 0xff, timestamp & 0x1ff);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedAdd(Writer writer) {
+		long timestamp = writer.timestamp += 100;
+		buffer.add(timestamp, timestamp & 0xff, timestamp & 0x1ff);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public int contendedSnapshot(Reader reader) {
+		return buffer.snapshot(reader.timestamps, reader.pm25, reader.pm10);
+	}
+}
@@ -0,0 +1,60 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.SampleStore;
+
+/**
+ * Appending 10 Hz samples to a store in a temporary directory, including the periodic flushes and syncs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleStoreBenchmark {
+	/** keeps the directory small during long runs */
+	private static final long RETENTION_MS = 24L * 60 * 60 * 1000;
+
+	private File directory;
+	private SampleStore store;
+	private long timestamp;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = File.createTempFile("samples", "");
+		if (!directory.delete()) throw new IOException("unable to delete " + directory);
+		store = new SampleStore(directory, RETENTION_MS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.close();
+		// segments and their block indexes
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public void append() throws IOException {
+		timestamp += 100;
+		store.append(timestamp, timestamp % 97, timestamp % 193, 0);
+	}
+}
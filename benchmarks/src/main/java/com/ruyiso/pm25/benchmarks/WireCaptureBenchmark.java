@@ -0,0 +1,54 @@
+package com.ruyiso.pm25.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ruyiso.pm25.SimulatedSensor;
+import com.ruyiso.pm25.WireCapture;
+
+/**
+ * Cost a capture adds to every read of the reader thread, one frame per read as at low rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireCaptureBenchmark {
+	private final byte[] frame = new byte[SimulatedSensor.FRAME_SIZE];
+	private File file;
+	private WireCapture capture;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		SimulatedSensor.encodeFrame(20, 30, frame, 0);
+		file = File.createTempFile("capture", ".pmcap");
+		capture = new WireCapture(file.getPath());
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		capture.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void recordIn() {
+		capture.recordIn(frame, 0, frame.length, System.nanoTime(), System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,263 @@
+package com.ruyiso.pm25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Uploads from an {@link UploadQueue} to a stub HTTP server on the loopback interface: backing off after
+ * a 503, the limit of concurrent uploads, dropping rejected batches and decoding what arrives.
+ */
+public class UploaderTest {
+	private static final String ADDRESS = "00:11:22:33:44:55";
+
+	private static final long DRAIN_TIMEOUT_MS = 10000;
+
+	/**
+	 * A request as the server saw it.
+	 */
+	private static final class Request {
+		final long receivedNanos = System.nanoTime();
+		String batchId;
+		String sensorAddress;
+		String contentType;
+		String contentEncoding;
+		byte[] body;
+	}
+
+	private File directory;
+	private UploadQueue queue;
+	private Uploader uploader;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+
+	/** statuses to reply with in turn, 200 once they are used up */
+	private final LinkedList<Integer> statuses = new LinkedList<Integer>();
+
+	/** server side time per upload */
+	private volatile long replyDelayMs;
+
+	private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("uploads", "");
+		directory.delete();
+		queue = new UploadQueue(directory, 1 << 20);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/upload", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				onRequest(exchange);
+			}
+		});
+		// concurrent uploads must not be serialized by the server
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (uploader != null) uploader.shutdown();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void backsOffAfterServiceUnavailableAndRetriesTheSameBatch() throws Exception {
+		statuses.add(503);
+		for (int i = 0; i < 3; i++) {
+			queueBatch(100, i * 100000L);
+		}
+
+		uploader = new Uploader(queue, 1, new ReconnectBackoff(400, 400, Integer.MAX_VALUE));
+		uploader.setEndpoint(getEndpoint());
+		awaitDrained();
+
+		assertEquals(4, requests.size());
+		assertEquals(1, uploader.getFailures());
+		assertEquals(3, uploader.getBatchesUploaded());
+		// the delay is drawn from the upper half of the backoff
+		long pauseMs = (requests.get(1).receivedNanos - requests.get(0).receivedNanos) / 1000000;
+		assertTrue("retried after " + pauseMs + " ms", pauseMs >= 200);
+		assertEquals(requests.get(0).batchId, requests.get(1).batchId);
+	}
+
+	@Test
+	public void keepsAtMostTwoUploadsInFlight() throws Exception {
+		replyDelayMs = 100;
+		for (int i = 0; i < 8; i++) {
+			queueBatch(100, i * 100000L);
+		}
+
+		uploader = new Uploader(queue, 2);
+		uploader.setEndpoint(getEndpoint());
+		awaitDrained();
+
+		assertEquals(2, maxInFlight.get());
+		assertEquals(8, requests.size());
+		assertEquals(8, uploader.getBatchesUploaded());
+	}
+
+	@Test
+	public void dropsBatchesRejectedByTheServer() throws Exception {
+		statuses.add(400);
+		statuses.add(413);
+		for (int i = 0; i < 3; i++) {
+			queueBatch(100, i * 100000L);
+		}
+
+		// a pause would outlast the test
+		uploader = new Uploader(queue, 1, new ReconnectBackoff(60000, 60000, Integer.MAX_VALUE));
+		uploader.setEndpoint(getEndpoint());
+		awaitDrained();
+
+		assertEquals(3, requests.size());
+		assertEquals(2, uploader.getBatchesRejected());
+		assertEquals(1, uploader.getBatchesUploaded());
+		assertEquals(0, uploader.getFailures());
+		assertFalse(requests.get(0).batchId.equals(requests.get(1).batchId));
+	}
+
+	@Test
+	public void sendsBatchesThatDecodeToTheQueuedReadings() throws Exception {
+		// more than one block of the columnar format
+		final int readings = ColumnarExportWriter.BLOCK_SAMPLES + 500;
+		final long start = 1600000000000L;
+		queueBatch(readings, start);
+
+		uploader = new Uploader(queue, 1);
+		uploader.setEndpoint(getEndpoint());
+		awaitDrained();
+
+		assertEquals(1, requests.size());
+		Request request = requests.get(0);
+		assertEquals(Uploader.CONTENT_TYPE, request.contentType);
+		assertEquals("gzip", request.contentEncoding);
+		assertEquals(ADDRESS, request.sensorAddress);
+
+		ColumnarExportReader reader = new ColumnarExportReader(new GZIPInputStream(new ByteArrayInputStream(request.body)));
+		for (int i = 0; i < readings; i++) {
+			assertTrue(reader.next());
+			assertEquals(start + i * 100L + (i % 7 == 0 ? 3 : 0), reader.getTimestamp());
+			assertEquals(getPm25Tenths(i), reader.getPm25Tenths());
+			assertEquals(getPm25Tenths(i) * 3 / 2, reader.getPm10Tenths());
+			assertEquals(i / 1000, reader.getFlags());
+		}
+		assertFalse(reader.next());
+	}
+
+	/**
+	 * Queues readings at 10 Hz with a little jitter, varying values and a few runs of flags.
+	 */
+	private void queueBatch(int readings, long start) throws IOException {
+		UploadQueue.Batch batch = queue.create(ADDRESS);
+		for (int i = 0; i < readings; i++) {
+			batch.write(start + i * 100L + (i % 7 == 0 ? 3 : 0), getPm25Tenths(i), getPm25Tenths(i) * 3 / 2, i / 1000);
+		}
+		batch.commit();
+	}
+
+	private static int getPm25Tenths(int i) {
+		return 200 + (i * 37) % 150;
+	}
+
+	private URL getEndpoint() throws IOException {
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+	}
+
+	/**
+	 * Waits until every queued batch has been uploaded or dropped.
+	 */
+	private void awaitDrained() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+		while (queue.size() > 0) {
+			if (System.currentTimeMillis() > deadline) throw new AssertionError(queue.size() + " batches left after " + requests.size() + " requests");
+			Thread.sleep(10);
+		}
+	}
+
+	private void onRequest(HttpExchange exchange) throws IOException {
+		final int current = inFlight.incrementAndGet();
+		while (true) {
+			int max = maxInFlight.get();
+			if (current <= max || maxInFlight.compareAndSet(max, current)) break;
+		}
+
+		try {
+			Request request = new Request();
+			request.batchId = exchange.getRequestHeaders().getFirst("X-Batch-Id");
+			request.sensorAddress = exchange.getRequestHeaders().getFirst("X-Sensor-Address");
+			request.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			request.contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+			request.body = readFully(exchange.getRequestBody());
+
+			if (replyDelayMs > 0) {
+				try {
+					Thread.sleep(replyDelayMs);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			int status;
+			synchronized (statuses) {
+				status = statuses.isEmpty() ? 200 : statuses.removeFirst();
+			}
+			requests.add(request);
+			// replied before the uploader can count the batch as done
+			inFlight.decrementAndGet();
+			exchange.sendResponseHeaders(status, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,258 @@
+package com.ruyiso.pm25;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.SensorManager;
+import android.location.LocationManager;
+import android.os.BatteryManager;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+/**
+ * Keeps the sensors connected and sampling while no activity is visible.
+ *
+ * The service owns the {@link BluetoothService} and runs in the foreground while started. A partial wake
+ * lock is held only while a sensor is connecting, connected or about to reconnect, so the screen may turn
+ * off during long measurements. Battery changes are passed on to the sensors for adaptive sampling. Stored
+ * readings are forwarded by an {@link UploadManager} once an endpoint is set. While acquiring, a
+ * {@link MotionTracker} follows the motion of the phone, which is stored with every reading, and a
+ * {@link LocationTracker} its position, which places the readings on the map.
+ * Activities bind to it for display and register as client to receive the events of the sensors.
+ */
+public class AcquisitionService extends Service implements IBluetoothServiceEventReceiver {
+	private static final String TAG = "AcquisitionService";
+
+	private static final int NOTIFICATION_ID = 1;
+
+	public final class LocalBinder extends Binder {
+		public AcquisitionService getService() {
+			return AcquisitionService.this;
+		}
+	}
+
+	private final IBinder binder = new LocalBinder();
+
+	private BluetoothService bluetoothService;
+
+	private UploadManager uploadManager;
+
+	private final MotionTimeline motionTimeline = new MotionTimeline();
+
+	private MotionTracker motionTracker;
+
+	private LocationTracker locationTracker;
+
+	private PowerManager.WakeLock wakeLock;
+
+	private IBluetoothServiceEventReceiver client;
+
+	private boolean started;
+
+	private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+			if (level < 0 || scale <= 0) return;
+
+			bluetoothService.setBatteryState((float) level / scale, plugged != 0);
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		bluetoothService = new BluetoothService(getApplicationContext());
+		bluetoothService.setEventReceiver(this);
+		bluetoothService.registerBroadcastReceiver(this);
+
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+		wakeLock.setReferenceCounted(false);
+
+		// sticky, the current state is delivered right away
+		registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+		uploadManager = new UploadManager(getApplicationContext(), bluetoothService);
+		uploadManager.start(this);
+
+		motionTracker = new MotionTracker((SensorManager) getSystemService(Context.SENSOR_SERVICE), motionTimeline);
+		bluetoothService.setMotionTimeline(motionTimeline);
+
+		locationTracker = new LocationTracker((LocationManager) getSystemService(Context.LOCATION_SERVICE));
+		bluetoothService.setGeoSource(locationTracker);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if (!started) {
+			Log.i(TAG, "starting acquisition");
+			started = true;
+			startForeground(NOTIFICATION_ID, buildNotification());
+			motionTracker.start();
+			locationTracker.start();
+		}
+		bluetoothService.reconnectKnownDevices();
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		unregisterReceiver(batteryReceiver);
+		motionTracker.stop();
+		locationTracker.stop();
+		uploadManager.stop(this);
+		bluetoothService.setEventReceiver(null);
+		bluetoothService.unregisterBroadcastReceiver(this);
+		// awake until the readers stored what they hold and the stores are closed
+		wakeLock.acquire();
+		bluetoothService.close(new Runnable() {
+			@Override
+			public void run() {
+				wakeLock.release();
+			}
+		});
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return binder;
+	}
+
+	public BluetoothService getBluetoothService() {
+		return bluetoothService;
+	}
+
+	public UploadManager getUploadManager() {
+		return uploadManager;
+	}
+
+	public MotionTimeline getMotionTimeline() {
+		return motionTimeline;
+	}
+
+	public LocationTracker getLocationTracker() {
+		return locationTracker;
+	}
+
+	/**
+	 * @param client receives the events of the sensors on the main thread, null for none
+	 */
+	public void setClient(IBluetoothServiceEventReceiver client) {
+		this.client = client;
+	}
+
+	/**
+	 * Disconnects all sensors and leaves the foreground once their last readings are stored. The service ends
+	 * once no activity is bound.
+	 */
+	public void stopAcquisition() {
+		Log.i(TAG, "stopping acquisition");
+		started = false;
+		motionTracker.stop();
+		locationTracker.stop();
+		bluetoothService.disconnectAll(new Runnable() {
+			@Override
+			public void run() {
+				// started again meanwhile
+				if (started) return;
+				stopForeground(true);
+				stopSelf();
+			}
+		});
+	}
+
+	private Notification buildNotification() {
+		int connected = 0;
+		int total = 0;
+		for (SensorConnection connection : bluetoothService.getConnections()) {
+			total++;
+			if (connection.isConnected()) connected++;
+		}
+
+		Intent intent = new Intent(this, MainActivity.class);
+		intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+		return new NotificationCompat.Builder(this)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(getString(R.string.notification_title))
+				.setContentText(getString(R.string.notification_sensors_connected, connected, total))
+				.setContentIntent(contentIntent)
+				.setOngoing(true)
+				.setOnlyAlertOnce(true)
+				.build();
+	}
+
+	private void updateNotification() {
+		if (!started) return;
+		// posting the same id again replaces the foreground notification
+		startForeground(NOTIFICATION_ID, buildNotification());
+	}
+
+	private void updateWakeLock() {
+		boolean needed = false;
+		for (SensorConnection connection : bluetoothService.getConnections()) {
+			if (connection.isActive()) {
+				needed = true;
+				break;
+			}
+		}
+
+		if (needed && !wakeLock.isHeld()) {
+			wakeLock.acquire();
+		} else if (!needed && wakeLock.isHeld()) {
+			wakeLock.release();
+		}
+	}
+
+	@Override
+	public void bluetoothEnabling() {
+		if (client != null) client.bluetoothEnabling();
+	}
+
+	@Override
+	public void bluetoothEnabled() {
+		if (started) bluetoothService.reconnectKnownDevices();
+		if (client != null) client.bluetoothEnabled();
+	}
+
+	@Override
+	public void bluetoothDisabling() {
+		if (client != null) client.bluetoothDisabling();
+	}
+
+	@Override
+	public void bluetoothDisabled() {
+		if (client != null) client.bluetoothDisabled();
+	}
+
+	@Override
+	public void connectionStateChanged(String address, ConnectionState state) {
+		updateWakeLock();
+		updateNotification();
+		if (client != null) client.connectionStateChanged(address, state);
+	}
+
+	@Override
+	public void connectedTo(String name, String address) {
+		if (client != null) client.connectedTo(name, address);
+	}
+
+	@Override
+	public void receivedReading(String address, int pm25, int pm10) {
+		if (client != null) client.receivedReading(address, pm25, pm10);
+	}
+}
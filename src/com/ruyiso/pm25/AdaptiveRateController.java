@@ -0,0 +1,175 @@
+package com.ruyiso.pm25;
+
+/**
+ * Chooses the sampling period from the readings and the battery state.
+ *
+ * A reading deviating from the running mean by more than {@link #DEVIATIONS} times the running mean
+ * deviation, or moving into another air quality category, drops the period to the fastest allowed one.
+ * After {@link #CALM_SAMPLES} unremarkable readings in a row the period is doubled, up to the slowest one.
+ * The fastest and slowest periods depend on the battery: full speed while charging, slower steps as the
+ * level goes down.
+ *
+ * While running the controller counts the requests and readings it caused and what polling at the fastest
+ * allowed period would have cost over the same time, see {@link #getSamplesSaved()}.
+ */
+public final class AdaptiveRateController {
+	public static final long FASTEST_PERIOD_MS = 100;
+	public static final long SLOWEST_PERIOD_MS = 10000;
+
+	/** readings without notable change before the period is doubled */
+	private static final int CALM_SAMPLES = 8;
+
+	/** weight of a new reading in the running mean and deviation */
+	private static final float SMOOTHING = 0.1f;
+
+	private static final float DEVIATIONS = 4;
+
+	/** changes below this are noise whatever the deviation, ug/m3 */
+	private static final float MIN_CHANGE = 2;
+
+	private long fastestMs = FASTEST_PERIOD_MS;
+	private long slowestMs = SLOWEST_PERIOD_MS;
+	private long periodMs = FASTEST_PERIOD_MS;
+
+	private boolean primed;
+	private float meanPm25;
+	private float meanPm10;
+	private float deviationPm25;
+	private float deviationPm10;
+	private int category;
+	private int calmSamples;
+
+	private boolean running;
+	private long accountedUntil;
+	private double fixedRateSamples;
+	private long samples;
+	private long requests;
+
+	/**
+	 * @return the period to sample at now
+	 */
+	public synchronized long getPeriodMs() {
+		return periodMs;
+	}
+
+	/**
+	 * Starts counting, readings and requests before are not accounted for.
+	 */
+	public synchronized void start(long now) {
+		if (running) return;
+		running = true;
+		accountedUntil = now;
+	}
+
+	public synchronized void stop(long now) {
+		if (!running) return;
+		account(now);
+		running = false;
+	}
+
+	public synchronized void onRequestSent(long now) {
+		account(now);
+		if (running) requests++;
+	}
+
+	/**
+	 * @return the new sampling period
+	 */
+	public synchronized long onReading(long timestamp, float pm25, float pm10) {
+		account(timestamp);
+		if (running) samples++;
+
+		int newCategory = AirQualityIndex.category(Math.max(AirQualityIndex.fromPm25(pm25), AirQualityIndex.fromPm10(pm10)));
+		if (!primed) {
+			primed = true;
+			meanPm25 = pm25;
+			meanPm10 = pm10;
+			category = newCategory;
+			return periodMs;
+		}
+
+		boolean notable = newCategory != category
+				|| isOutlier(pm25, meanPm25, deviationPm25)
+				|| isOutlier(pm10, meanPm10, deviationPm10);
+		category = newCategory;
+
+		deviationPm25 += SMOOTHING * (Math.abs(pm25 - meanPm25) - deviationPm25);
+		deviationPm10 += SMOOTHING * (Math.abs(pm10 - meanPm10) - deviationPm10);
+		meanPm25 += SMOOTHING * (pm25 - meanPm25);
+		meanPm10 += SMOOTHING * (pm10 - meanPm10);
+
+		if (notable) {
+			calmSamples = 0;
+			periodMs = fastestMs;
+		} else if (++calmSamples >= CALM_SAMPLES) {
+			calmSamples = 0;
+			periodMs = Math.min(slowestMs, periodMs * 2);
+		}
+		return periodMs;
+	}
+
+	/**
+	 * @param level remaining charge, 0 to 1
+	 * @return the new sampling period
+	 */
+	public synchronized long setBatteryState(float level, boolean charging, long now) {
+		account(now);
+
+		if (charging || level > 0.5f) {
+			fastestMs = FASTEST_PERIOD_MS;
+			slowestMs = SLOWEST_PERIOD_MS;
+		} else if (level > 0.2f) {
+			fastestMs = FASTEST_PERIOD_MS * 4;
+			slowestMs = SLOWEST_PERIOD_MS;
+		} else if (level > 0.1f) {
+			fastestMs = FASTEST_PERIOD_MS * 16;
+			slowestMs = SLOWEST_PERIOD_MS * 3;
+		} else {
+			fastestMs = FASTEST_PERIOD_MS * 64;
+			slowestMs = SLOWEST_PERIOD_MS * 6;
+		}
+
+		periodMs = Math.max(fastestMs, Math.min(slowestMs, periodMs));
+		return periodMs;
+	}
+
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return readings polling at the fastest allowed period would have taken while running
+	 */
+	public synchronized long getFixedRateSamples() {
+		return (long) fixedRateSamples;
+	}
+
+	/**
+	 * @return readings avoided compared with fixed rate polling, each a request and a reply on the radio
+	 */
+	public synchronized long getSamplesSaved() {
+		return Math.max(0, (long) fixedRateSamples - samples);
+	}
+
+	/**
+	 * @return requests avoided compared with fixed rate polling, each waking up the radio
+	 */
+	public synchronized long getWakeupsSaved() {
+		return Math.max(0, (long) fixedRateSamples - requests);
+	}
+
+	private boolean isOutlier(float value, float mean, float deviation) {
+		float change = Math.abs(value - mean);
+		return change > MIN_CHANGE && change > DEVIATIONS * deviation;
+	}
+
+	private void account(long now) {
+		if (!running || now <= accountedUntil) return;
+		fixedRateSamples += (double) (now - accountedUntil) / fastestMs;
+		accountedUntil = now;
+	}
+}
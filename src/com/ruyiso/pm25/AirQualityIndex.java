@@ -0,0 +1,53 @@
+package com.ruyiso.pm25;
+
+/**
+ * US EPA air quality index for particulate matter, breakpoints as revised in 2024.
+ *
+ * The index is defined on 24 hour means, concentrations are truncated to the precision of the breakpoints
+ * (0.1 ug/m3 for PM2.5, 1 ug/m3 for PM10) before interpolating.
+ */
+public final class AirQualityIndex {
+	private static final int[] INDEX_LOW = {0, 51, 101, 151, 201, 301};
+	private static final int[] INDEX_HIGH = {50, 100, 150, 200, 300, 500};
+
+	private static final float[] PM25_LOW = {0.0f, 9.1f, 35.5f, 55.5f, 125.5f, 225.5f};
+	private static final float[] PM25_HIGH = {9.0f, 35.4f, 55.4f, 125.4f, 225.4f, 325.4f};
+
+	private static final float[] PM10_LOW = {0, 55, 155, 255, 355, 425};
+	private static final float[] PM10_HIGH = {54, 154, 254, 354, 424, 604};
+
+	/** index values above the table are capped */
+	public static final int MAX_INDEX = 500;
+
+	private AirQualityIndex() {}
+
+	public static int fromPm25(float concentration) {
+		return interpolate((float) Math.floor(concentration * 10) / 10, PM25_LOW, PM25_HIGH);
+	}
+
+	public static int fromPm10(float concentration) {
+		return interpolate((float) Math.floor(concentration), PM10_LOW, PM10_HIGH);
+	}
+
+	/**
+	 * @return the category of an index, 0 for good up to 5 for hazardous
+	 */
+	public static int category(int index) {
+		for (int i = 0; i < INDEX_HIGH.length; i++) {
+			if (index <= INDEX_HIGH[i]) return i;
+		}
+		return INDEX_HIGH.length - 1;
+	}
+
+	private static int interpolate(float concentration, float[] low, float[] high) {
+		if (concentration <= 0) return 0;
+
+		for (int i = 0; i < low.length; i++) {
+			if (concentration <= high[i]) {
+				float index = (INDEX_HIGH[i] - INDEX_LOW[i]) / (high[i] - low[i]) * (Math.max(concentration, low[i]) - low[i]) + INDEX_LOW[i];
+				return Math.round(index);
+			}
+		}
+		return MAX_INDEX;
+	}
+}
@@ -0,0 +1,191 @@
+package com.ruyiso.pm25;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Zone map of one {@link SampleStore} segment: the time span and the value range of every block of
+ * {@link #getBlockRecords()} consecutive records.
+ *
+ * Timestamps only grow within a segment, so the first timestamps double as a sparse time index and the
+ * block holding a time is found by binary search. Blocks whose range cannot match a query are skipped
+ * by {@link SampleQuery} without reading them. Values are kept in 0.1 ug/m3 as stored. Written next to a
+ * sealed segment as
+ * <pre>
+ * magic "PMBI" (4) | version (2) | block records (2) | records (4) | per block: first timestamp (8) | last timestamp (8) | PM2.5 min (2) | PM2.5 max (2) | PM10 min (2) | PM10 max (2)
+ * </pre>
+ * The record count tells whether the file still describes its segment.
+ */
+public final class BlockIndex {
+	public static final int MAGIC = 0x504d4249;
+	public static final short VERSION = 1;
+
+	private final int blockRecords;
+
+	private final long[] firstTimestamps;
+	private final long[] lastTimestamps;
+	private final char[] minPm25;
+	private final char[] maxPm25;
+	private final char[] minPm10;
+	private final char[] maxPm10;
+
+	private int records;
+
+	/**
+	 * @param maxRecords records the segment may hold at most
+	 */
+	public BlockIndex(int blockRecords, int maxRecords) {
+		this.blockRecords = blockRecords;
+		final int capacity = (maxRecords + blockRecords - 1) / blockRecords;
+		firstTimestamps = new long[capacity];
+		lastTimestamps = new long[capacity];
+		minPm25 = new char[capacity];
+		maxPm25 = new char[capacity];
+		minPm10 = new char[capacity];
+		maxPm10 = new char[capacity];
+	}
+
+	/**
+	 * Accounts for the next record of the segment, timestamps must not decrease.
+	 */
+	public void add(long timestamp, int pm25Tenths, int pm10Tenths) {
+		final int block = records / blockRecords;
+		if (block >= firstTimestamps.length) throw new IllegalStateException("segment full");
+
+		if (records % blockRecords == 0) {
+			firstTimestamps[block] = timestamp;
+			minPm25[block] = maxPm25[block] = (char) pm25Tenths;
+			minPm10[block] = maxPm10[block] = (char) pm10Tenths;
+		} else {
+			if (pm25Tenths < minPm25[block]) minPm25[block] = (char) pm25Tenths;
+			if (pm25Tenths > maxPm25[block]) maxPm25[block] = (char) pm25Tenths;
+			if (pm10Tenths < minPm10[block]) minPm10[block] = (char) pm10Tenths;
+			if (pm10Tenths > maxPm10[block]) maxPm10[block] = (char) pm10Tenths;
+		}
+		lastTimestamps[block] = timestamp;
+		records++;
+	}
+
+	public int getBlockRecords() {
+		return blockRecords;
+	}
+
+	public int getRecords() {
+		return records;
+	}
+
+	public int getBlocks() {
+		return getBlocks(records);
+	}
+
+	private int getBlocks(int records) {
+		return (records + blockRecords - 1) / blockRecords;
+	}
+
+	/**
+	 * @return records in the block, only the last one may hold less than {@link #getBlockRecords()}
+	 */
+	public int getCount(int block) {
+		return Math.min(blockRecords, records - block * blockRecords);
+	}
+
+	public long getFirstTimestamp(int block) {
+		return firstTimestamps[block];
+	}
+
+	public long getLastTimestamp(int block) {
+		return lastTimestamps[block];
+	}
+
+	public int getMinPm25(int block) {
+		return minPm25[block];
+	}
+
+	public int getMaxPm25(int block) {
+		return maxPm25[block];
+	}
+
+	public int getMinPm10(int block) {
+		return minPm10[block];
+	}
+
+	public int getMaxPm10(int block) {
+		return maxPm10[block];
+	}
+
+	/**
+	 * @return the first block with readings from the time on, {@link #getBlocks()} if there is none
+	 */
+	public int findBlock(long timestamp) {
+		int low = 0;
+		int high = getBlocks();
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (lastTimestamps[middle] < timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return a copy that does not change with further records
+	 */
+	public BlockIndex copy() {
+		BlockIndex copy = new BlockIndex(blockRecords, firstTimestamps.length * blockRecords);
+		final int blocks = getBlocks();
+		System.arraycopy(firstTimestamps, 0, copy.firstTimestamps, 0, blocks);
+		System.arraycopy(lastTimestamps, 0, copy.lastTimestamps, 0, blocks);
+		System.arraycopy(minPm25, 0, copy.minPm25, 0, blocks);
+		System.arraycopy(maxPm25, 0, copy.maxPm25, 0, blocks);
+		System.arraycopy(minPm10, 0, copy.minPm10, 0, blocks);
+		System.arraycopy(maxPm10, 0, copy.maxPm10, 0, blocks);
+		copy.records = records;
+		return copy;
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(blockRecords);
+		out.writeInt(records);
+		final int blocks = getBlocks();
+		for (int i = 0; i < blocks; i++) {
+			out.writeLong(firstTimestamps[i]);
+			out.writeLong(lastTimestamps[i]);
+			out.writeChar(minPm25[i]);
+			out.writeChar(maxPm25[i]);
+			out.writeChar(minPm10[i]);
+			out.writeChar(maxPm10[i]);
+		}
+	}
+
+	/**
+	 * @param maxRecords records the segment may hold at most, for indexes taking further records
+	 * @throws IOException also if the file is not a block index or has been cut short
+	 */
+	public static BlockIndex readFrom(DataInputStream in, int maxRecords) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("not a block index");
+		final int version = in.readUnsignedShort();
+		if (version != VERSION) throw new IOException("unsupported version " + version);
+		final int blockRecords = in.readUnsignedShort();
+		final int records = in.readInt();
+		if (blockRecords == 0 || records < 0) throw new IOException("invalid block index");
+
+		BlockIndex index = new BlockIndex(blockRecords, Math.max(records, maxRecords));
+		final int blocks = index.getBlocks(records);
+		for (int i = 0; i < blocks; i++) {
+			index.firstTimestamps[i] = in.readLong();
+			index.lastTimestamps[i] = in.readLong();
+			index.minPm25[i] = in.readChar();
+			index.maxPm25[i] = in.readChar();
+			index.minPm10[i] = in.readChar();
+			index.maxPm10[i] = in.readChar();
+		}
+		index.records = records;
+		return index;
+	}
+}
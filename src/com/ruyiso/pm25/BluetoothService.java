@@ -1,80 +1,121 @@
 package com.ruyiso.pm25;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.Activity;
-import android.app.Notification.Action;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.ruyiso.pm25.CommandWriter.Command;
+
+/**
+ * Manages the connections to any number of sensors.
+ *
+ * Each sensor is served by its own {@link SensorConnection}, the manager only keeps track of them, owns the
+ * adapter level state and forwards events to the {@link IBluetoothServiceEventReceiver} on the main thread.
+ * Links are RFCOMM sockets unless another {@link SensorTransport.Factory} is set, e.g. for simulated sensors.
+ */
 public final class BluetoothService {
 	private static final String TAG = "BluetoothService";
-	private static final UUID uuidSpp = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	
-	private static Context applicationContext;
+	private static final String PREFERENCES_NAME = "bluetooth";
+	private static final String PREF_KNOWN_DEVICE_ADDRESSES = "known_device_addresses";
+	private static final String PREF_SAMPLING_PERIOD = "sampling_period";
 	
-	private static boolean initialized;
+	private static final String SAMPLES_DIRECTORY = "samples";
+	private static final String CAPTURES_DIRECTORY = "captures";
 	
-	private static final IntentFilter broadcastIntentFilter = new IntentFilter();
+	private static final long READER_FINISH_TIMEOUT_MS = 2000;
 	
-	private static BroadcastReceiver broadcastReceiver;
+	/** stored readings are kept for 60 days */
+	private static final long STORE_RETENTION_MS = 60L * 24 * 60 * 60 * 1000;
 	
-	private BluetoothService() {}
+	private final Context applicationContext;
 	
-	private static BluetoothAdapter btAdapter;
+	private final IntentFilter broadcastIntentFilter = new IntentFilter();
 	
-	private static IBluetoothServiceEventReceiver eventReceiver;
+	private BroadcastReceiver broadcastReceiver;
 	
-	private final static Handler eventReceiverHandler = new Handler();
+	private final BluetoothAdapter btAdapter;
 	
-	private static BluetoothDevice connectedDevice;
+	private final DeviceRegistry deviceRegistry;
 	
-	private static BluetoothSocket connectedSocket;
+	private volatile SensorTransport.Factory transportFactory;
 	
-	private static BufferedOutputStream outputStream;
+	private volatile IBluetoothServiceEventReceiver eventReceiver;
 	
-	private static BufferedInputStream inputStream;
+	private final Handler eventReceiverHandler = new Handler();
 	
-	public static synchronized boolean initialize(Context applicationContext, IBluetoothServiceEventReceiver eventReceiver) {
-		BluetoothService.eventReceiver = eventReceiver;
-		
-		if (initialized) return true;
-		
-		BluetoothService.applicationContext = applicationContext;
+	private final ConcurrentHashMap<String, SensorConnection> connections = new ConcurrentHashMap<String, SensorConnection>();
+	
+	/** opens the sample stores off the main thread, and closes them once their readers finished */
+	private final ExecutorService storage = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "SampleStorage");
+		}
+	});
+	
+	private volatile Command syncCommand;
+	
+	private volatile float batteryLevel = 1;
+	private volatile boolean batteryCharging = true;
+	
+	private volatile boolean capturing;
+	
+	private volatile MotionTimeline motionTimeline;
+	
+	private volatile GeoFix.Source geoSource;
+	
+	public BluetoothService(Context applicationContext) {
+		this.applicationContext = applicationContext;
 		
+		deviceRegistry = new DeviceRegistry(applicationContext);
 		btAdapter = BluetoothAdapter.getDefaultAdapter();
 		
 		if (btAdapter == null) {
 			Toast.makeText(applicationContext, R.string.no_bluetooth_modem, Toast.LENGTH_LONG).show();
-			return false;
+		} else {
+			transportFactory = new RfcommTransport.Factory(btAdapter);
 		}
-		
-		initialized = true;
-		return true;
 	}
 	
-	public static synchronized boolean bluetoothAvailable() {
+	/**
+	 * Replaces the way links are opened, only connections created afterwards are affected. Call
+	 * {@link #forgetDevices()} first to switch all of them.
+	 */
+	public void setTransportFactory(SensorTransport.Factory transportFactory) {
+		this.transportFactory = transportFactory;
+	}
+	
+	public void setEventReceiver(IBluetoothServiceEventReceiver eventReceiver) {
+		this.eventReceiver = eventReceiver;
+	}
+	
+	public boolean bluetoothAvailable() {
 		return btAdapter != null;
 	}
 	
-	public static synchronized boolean bluetoothEnabled() {
+	public boolean bluetoothEnabled() {
 		return btAdapter != null && btAdapter.isEnabled();
 	}
 	
-	public static synchronized boolean requestEnableBluetooth(Activity activity) {
+	public boolean requestEnableBluetooth(Activity activity) {
 		if (bluetoothEnabled()) return false;
 		
 		Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -82,7 +123,7 @@ public final class BluetoothService {
 		return true;
 	}
 	
-	public static synchronized void registerBroadcastReceiver(final Activity activity) {
+	public synchronized void registerBroadcastReceiver(Context context) {
 		if (broadcastReceiver == null) {
 			broadcastReceiver = new BroadcastReceiver() {
 				@Override
@@ -90,238 +131,366 @@ public final class BluetoothService {
 					int currentState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1);
 					int lastState = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, -1);
 					
-					Log.v(TAG, "Bluetooth state change received: " + lastState + " --> " + currentState);
+					// building the message costs more than the event itself, only do it when it is logged
+					if (Log.isLoggable(TAG, Log.VERBOSE)) Log.v(TAG, "Bluetooth state change received: " + lastState + " --> " + currentState);
+					IBluetoothServiceEventReceiver receiver = eventReceiver;
+					if (receiver == null) return;
+					
 					switch(currentState) {
 					case BluetoothAdapter.STATE_TURNING_ON:
-						onBluetoothEnabling();
+						receiver.bluetoothEnabling();
 						break;
 					case BluetoothAdapter.STATE_ON:
-						onBluetoothEnabled();
+						receiver.bluetoothEnabled();
 						break;
 					case BluetoothAdapter.STATE_TURNING_OFF:
-						onBluetoothDisabling();
+						receiver.bluetoothDisabling();
 						break;
 					case BluetoothAdapter.STATE_OFF:
-						onBluetoothDisabled();
+						receiver.bluetoothDisabled();
 						break;
 					}
-					
-				}				
+				
+				}
 			};
 			
 			broadcastIntentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
 		}
 		
-		activity.registerReceiver(broadcastReceiver, broadcastIntentFilter);
+		context.registerReceiver(broadcastReceiver, broadcastIntentFilter);
 	}
 	
-	public static synchronized void unregisterBroadcastReceiver(Activity activity) {
+	public synchronized void unregisterBroadcastReceiver(Context context) {
 		if (broadcastReceiver == null) return;
 		
-		activity.unregisterReceiver(broadcastReceiver);
+		context.unregisterReceiver(broadcastReceiver);
 	}
 	
-	private static synchronized void onBluetoothEnabling() {
-		assert eventReceiver != null;
+	/**
+	 * Connects to a sensor in addition to the ones already connected and remembers it for
+	 * {@link #reconnectKnownDevices()}.
+	 */
+	public SensorConnection connectToDevice(String macAddress) {
+		SensorConnection connection = getOrCreateConnection(macAddress);
 		
-		eventReceiverHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				eventReceiver.bluetoothEnabling();
+		synchronized (this) {
+			List<String> addresses = getKnownDeviceAddresses();
+			if (!addresses.contains(macAddress)) {
+				addresses.add(macAddress);
+				saveKnownDeviceAddresses(addresses);
 			}
-		});
+		}
 		
+		connection.connect();
+		return connection;
 	}
 	
-	private static synchronized void onBluetoothDisabling() {
-		assert eventReceiver != null;
+	/**
+	 * Connects straight to all sensors of the last sessions, skipping discovery.
+	 *
+	 * @return false if there is no known device or no link can be opened, e.g. bluetooth is off
+	 */
+	public boolean reconnectKnownDevices() {
+		SensorTransport.Factory factory = transportFactory;
+		if (factory == null || !factory.isAvailable()) return false;
 		
-		eventReceiverHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				eventReceiver.bluetoothDisabling();
-			}
-		});
+		List<String> addresses;
+		synchronized (this) {
+			addresses = getKnownDeviceAddresses();
+		}
+		
+		boolean connecting = false;
+		for (String address : addresses) {
+			if (!BluetoothAdapter.checkBluetoothAddress(address)) continue;
+			
+			getOrCreateConnection(address).connect();
+			connecting = true;
+		}
+		return connecting;
+	}
+	
+	/**
+	 * Closes all links, no reconnect is attempted afterwards. Known devices are kept.
+	 *
+	 * @param finished run on the main thread once the readers of the links stored the readings they still
+	 * hold, null for none
+	 */
+	public void disconnectAll(Runnable finished) {
+		capturing = false;
+		finishInBackground(disconnect(), false, finished);
 	}
 	
-	private static synchronized void onBluetoothEnabled() {
-		assert eventReceiver != null;
+	/**
+	 * Closes all links and forgets the known devices, including the ones listed for picking a sensor.
+	 */
+	public void forgetDevices() {
+		List<SensorConnection> forgotten = disconnect();
+		connections.clear();
+		// a connection to a forgotten sensor created meanwhile opens its store after this one is closed
+		finishInBackground(forgotten, true, null);
 		
-		eventReceiverHandler.post(new Runnable() {
-			
+		synchronized (this) {
+			saveKnownDeviceAddresses(new ArrayList<String>());
+		}
+		deviceRegistry.clear();
+	}
+	
+	/**
+	 * Closes all links and stores, the service must not be used afterwards.
+	 *
+	 * @param finished run on the main thread once the stores are closed, null for none
+	 */
+	public void close(Runnable finished) {
+		capturing = false;
+		finishInBackground(disconnect(), true, finished);
+		storage.shutdown();
+	}
+	
+	private List<SensorConnection> disconnect() {
+		List<SensorConnection> disconnected = new ArrayList<SensorConnection>(connections.values());
+		for (SensorConnection connection : disconnected) {
+			connection.disconnect();
+			connection.stopCapture();
+		}
+		return disconnected;
+	}
+	
+	/**
+	 * Lets the readers of the closed links store the readings they still hold on the storage thread, the
+	 * process may be killed once acquisition stops. The main thread does not wait for them.
+	 */
+	private void finishInBackground(final List<SensorConnection> closed, final boolean closeStores, final Runnable finished) {
+		storage.execute(new Runnable() {
 			@Override
 			public void run() {
-				// TODO Auto-generated method stub
-				eventReceiver.bluetoothEnabled();
+				// the links were closed together, so they share one deadline
+				final long deadline = SystemClock.elapsedRealtime() + READER_FINISH_TIMEOUT_MS;
+				for (SensorConnection connection : closed) {
+					final long remainingMs = Math.max(1, deadline - SystemClock.elapsedRealtime());
+					if (!connection.awaitReaderFinished(remainingMs)) {
+						Log.e(TAG, connection.getAddress() + " reader did not finish, its last readings may be lost");
+					}
+				}
+				if (closeStores) {
+					for (SensorConnection connection : closed) {
+						connection.closeStore();
+					}
+				}
+				if (finished != null) eventReceiverHandler.post(finished);
 			}
 		});
 	}
 	
-	private static synchronized void onBluetoothDisabled() {
-		assert eventReceiver != null;
+	public SensorConnection getConnection(String macAddress) {
+		return connections.get(macAddress);
+	}
+	
+	public Collection<SensorConnection> getConnections() {
+		return connections.values();
+	}
+	
+	public boolean isConnected() {
+		for (SensorConnection connection : connections.values()) {
+			if (connection.isConnected()) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Asks every connected sensor for one reading.
+	 *
+	 * @return false if no request could be sent
+	 */
+	public boolean requestSample() {
+		boolean sent = false;
+		for (SensorConnection connection : connections.values()) {
+			sent |= connection.requestSample();
+		}
+		return sent;
+	}
+	
+	/**
+	 * Sets the period of automatic sampling for all sensors, 0 turns it off. The setting is kept across
+	 * sessions.
+	 */
+	public void setSamplingPeriod(long periodMs) {
+		synchronized (this) {
+			getPreferences().edit()
+					.putLong(PREF_SAMPLING_PERIOD, periodMs)
+					.commit();
+		}
 		
-		eventReceiverHandler.post(new Runnable() {
-			
-			@Override
-			public void run() {
-				// TODO Auto-generated method stub
-				eventReceiver.bluetoothDisabled();
+		for (SensorConnection connection : connections.values()) {
+			connection.setSamplingPeriod(periodMs);
+		}
+	}
+	
+	public synchronized long getSamplingPeriod() {
+		return getPreferences().getLong(PREF_SAMPLING_PERIOD, 0);
+	}
+	
+	/**
+	 * Lets adaptive sampling save power on a low battery.
+	 *
+	 * @param level remaining charge, 0 to 1
+	 */
+	public void setBatteryState(float level, boolean charging) {
+		batteryLevel = level;
+		batteryCharging = charging;
+		for (SensorConnection connection : connections.values()) {
+			connection.setBatteryState(level, charging);
+		}
+	}
+	
+	/**
+	 * @param timeline motion of the phone, stored with the readings of all sensors, null for none
+	 */
+	public void setMotionTimeline(MotionTimeline timeline) {
+		motionTimeline = timeline;
+		for (SensorConnection connection : connections.values()) {
+			connection.setMotionTimeline(timeline);
+		}
+	}
+	
+	/**
+	 * @param source position of the phone, readings of all sensors taken at a known position are added to
+	 * their {@link GeoTileIndex}, null for none
+	 */
+	public void setGeoSource(GeoFix.Source source) {
+		geoSource = source;
+		for (SensorConnection connection : connections.values()) {
+			connection.setGeoSource(source);
+		}
+	}
+	
+	/**
+	 * Records the raw bytes of every sensor link, see {@link WireCapture}. Stopped by
+	 * {@link #disconnectAll(Runnable)}, captures grow too fast to keep recording across sessions.
+	 */
+	public void setCapturing(boolean capturing) {
+		this.capturing = capturing;
+		for (SensorConnection connection : connections.values()) {
+			if (capturing) {
+				connection.startCapture(getCaptureDirectory());
+			} else {
+				connection.stopCapture();
 			}
-		});
+		}
 	}
 	
-	public static synchronized void connectToDevice(final String macAddress) {
-		assert eventReceiver != null;
-		
-		disconnect();
+	public boolean isCapturing() {
+		return capturing;
+	}
+	
+	/**
+	 * @return where captures go, the external files directory so they can be pulled without root
+	 */
+	public File getCaptureDirectory() {
+		File directory = applicationContext.getExternalFilesDir(CAPTURES_DIRECTORY);
+		return directory != null ? directory : new File(applicationContext.getFilesDir(), CAPTURES_DIRECTORY);
+	}
+	
+	private SensorConnection getOrCreateConnection(String macAddress) {
+		SensorConnection connection = connections.get(macAddress);
+		if (connection != null) return connection;
 		
-		BluetoothDevice device = btAdapter.getRemoteDevice(macAddress);
-		Log.i(TAG, "Bluetooth-Slave: " + device.getName() + "; " + device.getAddress());
-		connectedDevice = device;
+		synchronized (this) {
+			// a store must only be opened once per directory
+			connection = connections.get(macAddress);
+			if (connection != null) return connection;
+			
+			connection = new SensorConnection(this, transportFactory, macAddress, eventReceiverHandler);
+			connections.put(macAddress, connection);
+		}
 		
-		final String deviceName = device.getName();
+		connection.setBatteryState(batteryLevel, batteryCharging);
+		connection.setSamplingPeriod(getSamplingPeriod());
+		connection.setMotionTimeline(motionTimeline);
+		connection.setGeoSource(geoSource);
+		if (capturing) connection.startCapture(getCaptureDirectory());
 		
-		eventReceiverHandler.post(new Runnable() {
-			
+		// the connection only opens its link once the store is open
+		final SensorConnection opening = connection;
+		final File directory = new File(new File(applicationContext.getFilesDir(), SAMPLES_DIRECTORY), macAddress.replace(':', '-'));
+		storage.execute(new Runnable() {
 			@Override
 			public void run() {
-				// TODO Auto-generated method stub
-				eventReceiver.connectedTo(deviceName == null? "unknowName" : deviceName, macAddress);
+				opening.openStore(directory, STORE_RETENTION_MS);
 			}
 		});
-		
-		try {
-			BluetoothSocket socket = device.createRfcommSocketToServiceRecord(uuidSpp);
-			connectedSocket = socket;
-			if (socket == null) {
-				Log.e(TAG, "unable to get bluetooth socket");
-				return;
-			}
-			
-			if (btAdapter.isDiscovering()) btAdapter.cancelDiscovery();
-			
-			try {
-				Log.i(TAG, "Connecting Socket to " + device.getName());
-				socket.connect();
-			} catch (IOException e) {
-				Log.e(TAG, "connecting socket err", e);
-				return;
-			}
-			
-			try {
-				InputStream realInputStream = socket.getInputStream();
-				if (realInputStream == null) {
-					Log.e(TAG, "socket getInputStream err");
-					return;
-				}
-				inputStream = new BufferedInputStream(realInputStream);
-			} catch (IOException e) {
-				Log.e(TAG, "socket getInputStream exception");
-				return;
-			}
-			
-			try {
-				OutputStream realOutputStream = socket.getOutputStream();
-				if (realOutputStream == null) {
-					Log.e(TAG, "socket getOutputStream err");
-					return;
-				}
-				outputStream = new BufferedOutputStream(realOutputStream);
-			} catch (IOException e) {
-				Log.e(TAG, "socket getOutputStream exception");
-				return;
-			}
-			
-			// sync message sending
-			sendSyncMessage();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (NullPointerException e) {
-			Log.e(TAG, "null reference pointer", e);
-		}
+		return connection;
 	}
 	
-	public static synchronized void disconnect() {
-		
-		if (outputStream != null) {
-			try {
-				outputStream.flush();
-				outputStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (NullPointerException e) {
-				
-			}
-		}
-		outputStream = null;
-		
-		if (inputStream != null) {
-			try {
-				inputStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (NullPointerException e) {
-				
-			}
+	private SharedPreferences getPreferences() {
+		return applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+	
+	private List<String> getKnownDeviceAddresses() {
+		List<String> addresses = new ArrayList<String>();
+		String joined = getPreferences().getString(PREF_KNOWN_DEVICE_ADDRESSES, "");
+		for (String address : joined.split(",")) {
+			if (address.length() > 0) addresses.add(address);
 		}
-		inputStream = null;
-		
-		if (connectedSocket != null) {
-			try {
-				connectedSocket.getOutputStream().close();
-				connectedSocket.getInputStream().close();
-				connectedSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (NullPointerException e) {
-				
-			}
+		return addresses;
+	}
+	
+	private void saveKnownDeviceAddresses(List<String> addresses) {
+		StringBuilder joined = new StringBuilder();
+		for (String address : addresses) {
+			if (joined.length() > 0) joined.append(',');
+			joined.append(address);
 		}
-		connectedSocket = null;
-		
-		connectedDevice = null;
+		getPreferences().edit()
+				.putString(PREF_KNOWN_DEVICE_ADDRESSES, joined.toString())
+				.commit();
 	}
 	
-	private static synchronized void sendSyncMessage() {
-		assert outputStream != null;
-		
-		String syncMessage = "SYNC from " + btAdapter.getName() + " " + btAdapter.getAddress() + "\r\n";
-		try {
-			outputStream.write(syncMessage.getBytes());
-			outputStream.flush();
-		} catch (IOException e) {
-			Log.e(TAG, "sendSyncMessage err", e);
+	Command getSyncCommand() {
+		// not synchronized, connections call this with their own lock held; building it twice is harmless
+		Command command = syncCommand;
+		if (command == null) {
+			command = btAdapter == null
+					? new Command("SYNC")
+					: new Command("SYNC from " + btAdapter.getName() + " " + btAdapter.getAddress());
+			syncCommand = command;
 		}
+		return command;
 	}
 	
-	public static synchronized boolean isConnected() {
-		return connectedSocket != null && outputStream != null;
+	/*
+	 * Callbacks of the connections. They may be called with the connection lock held, so they must not
+	 * take the manager lock and only hand the event over to the main thread.
+	 */
+	
+	void onConnectionStateChanged(final SensorConnection connection, final ConnectionState state) {
+		eventReceiverHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				IBluetoothServiceEventReceiver receiver = eventReceiver;
+				if (receiver != null) receiver.connectionStateChanged(connection.getAddress(), state);
+			}
+		});
 	}
 	
-	public static synchronized void sendToTarget(String message) {
-		try {
-			outputStream.write(message.getBytes());
-			outputStream.write('\r');
-			outputStream.write('\n');
-			outputStream.flush();
-		} catch (IOException e) {
-			
-		} catch (NullPointerException e) {
-			
-		}
+	void onConnected(final SensorConnection connection) {
+		// the registry has its own lock, a serial port link working marks the device as a sensor
+		deviceRegistry.onConnected(connection.getAddress(), connection.getName(), System.currentTimeMillis());
+		
+		eventReceiverHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				IBluetoothServiceEventReceiver receiver = eventReceiver;
+				if (receiver != null) receiver.connectedTo(connection.getName(), connection.getAddress());
+			}
+		});
 	}
 	
-	public static synchronized String receiveFromTarget() {
-		byte[] buffer = {0x01, 0x01, 0x02, (byte) 0xe4, 0x71, 0x2b, 0x5f, 0x30};
-		String message;
-		try {
-			inputStream.read(buffer);
-			message = buffer.toString();
-		} catch (IOException e) {
-			message = "error";
-		} catch (NullPointerException e) {
-			message = "error";
-		}
-		return message;
+	/**
+	 * Called on the main thread with the latest reading of a connection, readings of a burst are merged
+	 * by the connection.
+	 */
+	void onReadingReceived(SensorConnection connection, int pm25, int pm10) {
+		IBluetoothServiceEventReceiver receiver = eventReceiver;
+		if (receiver != null) receiver.receivedReading(connection.getAddress(), pm25, pm10);
 	}
 }
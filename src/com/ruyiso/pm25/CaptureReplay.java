@@ -0,0 +1,175 @@
+package com.ruyiso.pm25;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds the bytes received in a {@link WireCapture} through the same decoding and aggregation as a live
+ * link.
+ *
+ * Readings get the wall clock time of the read they arrived in, just like on the device, so a replay gives
+ * the same readings and summaries as the recorded session, however often and at whatever speed it is run.
+ * Plain Java, also meant for the desktop:
+ * <pre>
+ * javac -d out CaptureReplay.java WireCapture.java WireCaptureReader.java FrameDecoder.java SensorCapabilities.java \
+ *     RollingAggregator.java AirQualityIndex.java CsvExportWriter.java ExportWriter.java FixedPointFormat.java
+ * java -cp out com.ruyiso.pm25.CaptureReplay [--realtime] [--csv] capture.pmcap
+ * </pre>
+ * --realtime keeps the original pace instead of replaying as fast as possible, --csv writes the readings to
+ * standard output in the format of the CSV export. The summary goes to standard error.
+ */
+public final class CaptureReplay implements FrameDecoder.FrameListener {
+	private final FrameDecoder decoder = new FrameDecoder(this);
+	private final RollingAggregator aggregates = new RollingAggregator();
+	private final RollingAggregator.Summary summary = new RollingAggregator.Summary();
+
+	/** may be null */
+	private final ExportWriter readings;
+	private IOException readingsFailure;
+
+	private long readMillis;
+	private long lastReadingMillis;
+	private long readingCount;
+	private long bytesIn;
+	private long bytesOut;
+	private long bytesDropped;
+
+	/**
+	 * @param readings receives every decoded reading, null if only the summary is wanted
+	 */
+	public CaptureReplay(ExportWriter readings) {
+		this.readings = readings;
+	}
+
+	/**
+	 * Replays a whole capture.
+	 *
+	 * @param realtime wait between records as long as between recording them
+	 */
+	public void replay(WireCaptureReader reader, boolean realtime) throws IOException, InterruptedException {
+		final long startNanos = System.nanoTime();
+		while (reader.next()) {
+			if (realtime) {
+				long waitNanos = reader.getNanos() - (System.nanoTime() - startNanos);
+				if (waitNanos > 0) Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			}
+
+			switch (reader.getType()) {
+			case WireCapture.RECORD_IN:
+				bytesIn += reader.getLength();
+				readMillis = reader.getMillis();
+				decoder.feed(reader.getBytes(), 0, reader.getLength());
+				if (readingsFailure != null) throw readingsFailure;
+				break;
+			case WireCapture.RECORD_OUT:
+				bytesOut += reader.getLength();
+				break;
+			case WireCapture.RECORD_DROPPED:
+				bytesDropped += reader.getLength();
+				break;
+			case WireCapture.RECORD_LINK_OPENED:
+				decoder.reset();
+				break;
+			}
+		}
+		if (readings != null) readings.finish();
+	}
+
+	@Override
+	public void onFrame(int pm25, int pm10) {
+		readingCount++;
+		lastReadingMillis = readMillis;
+		aggregates.add(readMillis, pm25, pm10);
+		if (readings == null || readingsFailure != null) return;
+
+		try {
+			// stored in tenths like the sample store does
+			readings.write(readMillis, pm25 * 10, pm10 * 10, 0);
+		} catch (IOException e) {
+			readingsFailure = e;
+		}
+	}
+
+	public long getReadingCount() {
+		return readingCount;
+	}
+
+	public FrameDecoder getDecoder() {
+		return decoder;
+	}
+
+	/**
+	 * @return the aggregates as they were at the last reading
+	 */
+	public RollingAggregator getAggregates() {
+		return aggregates;
+	}
+
+	/**
+	 * Appends a human readable summary, one value per line.
+	 */
+	public void appendReport(StringBuilder out) {
+		out.append("bytes in: ").append(bytesIn)
+				.append(", out: ").append(bytesOut)
+				.append(", not recorded: ").append(bytesDropped).append('\n');
+		out.append("readings: ").append(readingCount)
+				.append(", frames rejected: ").append(decoder.getFramesRejected())
+				.append(", bytes skipped: ").append(decoder.getBytesSkipped()).append('\n');
+		appendWindow(out, "minute", RollingAggregator.WINDOW_MINUTE);
+		appendWindow(out, "hour", RollingAggregator.WINDOW_HOUR);
+		appendWindow(out, "day", RollingAggregator.WINDOW_DAY);
+	}
+
+	private void appendWindow(StringBuilder out, String name, int window) {
+		aggregates.read(window, lastReadingMillis, summary);
+		out.append(name).append(" (").append(summary.count).append("): ");
+		if (summary.count == 0) {
+			out.append("-\n");
+			return;
+		}
+		out.append("PM2.5 mean ").append(summary.meanPm25)
+				.append(" min ").append(summary.minPm25)
+				.append(" max ").append(summary.maxPm25)
+				.append(", PM10 mean ").append(summary.meanPm10)
+				.append(" min ").append(summary.minPm10)
+				.append(" max ").append(summary.maxPm10)
+				.append(", AQI ").append(summary.aqi).append('\n');
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean realtime = false;
+		boolean csv = false;
+		String path = null;
+		for (String arg : args) {
+			if (arg.equals("--realtime")) {
+				realtime = true;
+			} else if (arg.equals("--csv")) {
+				csv = true;
+			} else if (path == null) {
+				path = arg;
+			} else {
+				path = null;
+				break;
+			}
+		}
+		if (path == null) {
+			System.err.println("usage: CaptureReplay [--realtime] [--csv] <capture file>");
+			System.exit(2);
+		}
+
+		InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+		try {
+			CaptureReplay replay = new CaptureReplay(csv ? new CsvExportWriter(new BufferedOutputStream(System.out, 1 << 16)) : null);
+			replay.replay(new WireCaptureReader(in), realtime);
+
+			StringBuilder report = new StringBuilder();
+			replay.appendReport(report);
+			System.err.print(report);
+		} finally {
+			in.close();
+		}
+	}
+}
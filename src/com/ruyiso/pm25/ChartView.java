@@ -0,0 +1,246 @@
+package com.ruyiso.pm25;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * PM2.5 and PM10 history chart drawn from a {@link MinMaxPyramid}.
+ *
+ * The visible range is split into columns of {@link #COLUMN_WIDTH_PX} pixels, each drawn as a vertical
+ * line from the minimum to the maximum of its samples joined to the next one, so peaks stay visible at
+ * any zoom level. A frame queries and draws a fixed number of columns, the cost does not depend on how many
+ * samples the range holds. Scrolling pans, pinching zooms and a double tap goes back to following the
+ * latest readings.
+ */
+public class ChartView extends View {
+	private static final long MIN_VISIBLE_MS = 10 * 1000;
+	private static final long MAX_VISIBLE_MS = 60L * 24 * 60 * 60 * 1000;
+	private static final long DEFAULT_VISIBLE_MS = 10 * 60 * 1000;
+
+	private static final int COLUMN_WIDTH_PX = 2;
+
+	/** lower bound of the value axis in ug/m3 */
+	private static final float MIN_AXIS_MAX = 10;
+
+	private static final int COLOR_PM25 = Color.rgb(0xe0, 0x60, 0x20);
+	private static final int COLOR_PM10 = Color.rgb(0x20, 0x80, 0xe0);
+
+	private MinMaxPyramid history;
+
+	private int columnCount;
+	private MinMaxPyramid.Columns columns = new MinMaxPyramid.Columns(1);
+	/** a vertical and a joining segment of 4 coordinates per column */
+	private float[] lines = new float[8];
+
+	private long visibleMs = DEFAULT_VISIBLE_MS;
+	/** end of the visible range while not following */
+	private long visibleEnd;
+	private boolean following = true;
+
+	private final Paint pm25Paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint pm10Paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint axisPaint = new Paint();
+	private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final float textSize;
+
+	private final char[] label = new char[FixedPointFormat.MAX_INTEGER_CHARS];
+	private final String legendPm25;
+	private final String legendPm10;
+
+	private final GestureDetector gestureDetector;
+	private final ScaleGestureDetector scaleGestureDetector;
+
+	public ChartView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+
+		float density = getResources().getDisplayMetrics().density;
+		textSize = 12 * density;
+
+		pm25Paint.setColor(COLOR_PM25);
+		pm25Paint.setStrokeWidth(density);
+		pm10Paint.setColor(COLOR_PM10);
+		pm10Paint.setStrokeWidth(density);
+		axisPaint.setColor(Color.GRAY);
+		textPaint.setColor(Color.GRAY);
+		textPaint.setTextSize(textSize);
+
+		legendPm25 = getResources().getString(R.string.chart_legend_pm25);
+		legendPm10 = getResources().getString(R.string.chart_legend_pm10);
+
+		gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+			@Override
+			public boolean onDown(MotionEvent e) {
+				return true;
+			}
+
+			@Override
+			public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+				pan(distanceX);
+				return true;
+			}
+
+			@Override
+			public boolean onDoubleTap(MotionEvent e) {
+				follow();
+				return true;
+			}
+		});
+
+		scaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+			@Override
+			public boolean onScale(ScaleGestureDetector detector) {
+				zoom(detector.getScaleFactor(), detector.getFocusX());
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * @param history the data to show, null for none
+	 */
+	public void setHistory(MinMaxPyramid history) {
+		if (this.history == history) return;
+
+		this.history = history;
+		invalidate();
+	}
+
+	/**
+	 * Goes back to showing the latest readings at the default zoom.
+	 */
+	public void follow() {
+		following = true;
+		visibleMs = DEFAULT_VISIBLE_MS;
+		invalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		columnCount = Math.max(1, w / COLUMN_WIDTH_PX);
+		columns = new MinMaxPyramid.Columns(columnCount);
+		lines = new float[columnCount * 8];
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		scaleGestureDetector.onTouchEvent(event);
+		if (!scaleGestureDetector.isInProgress()) gestureDetector.onTouchEvent(event);
+		return true;
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		final int width = getWidth();
+		final int height = getHeight();
+		canvas.drawLine(0, height - 1, width, height - 1, axisPaint);
+
+		if (history == null || columnCount == 0) return;
+
+		final long end = following ? System.currentTimeMillis() : visibleEnd;
+		history.query(end - visibleMs, end, columnCount, columns);
+
+		// scale to the highest value in view, rounded up to 1, 2 or 5 times a power of ten
+		float max = MIN_AXIS_MAX;
+		for (int i = 0; i < columnCount; i++) {
+			if (columns.maxPm10[i] > max) max = columns.maxPm10[i];
+			if (columns.maxPm25[i] > max) max = columns.maxPm25[i];
+		}
+		final float axisMax = niceCeiling(max);
+		final float yScale = (height - 1) / axisMax;
+
+		drawSeries(canvas, columns.minPm10, columns.maxPm10, height - 1, yScale, pm10Paint);
+		drawSeries(canvas, columns.minPm25, columns.maxPm25, height - 1, yScale, pm25Paint);
+
+		canvas.drawLine(0, 0, width, 0, axisPaint);
+		int length = FixedPointFormat.format((long) axisMax, label, 0);
+		canvas.drawText(label, 0, length, 2, textSize, textPaint);
+
+		textPaint.setColor(COLOR_PM25);
+		canvas.drawText(legendPm25, width / 2, textSize, textPaint);
+		textPaint.setColor(COLOR_PM10);
+		canvas.drawText(legendPm10, width * 3 / 4, textSize, textPaint);
+		textPaint.setColor(Color.GRAY);
+	}
+
+	private void drawSeries(Canvas canvas, float[] mins, float[] maxs, float baseline, float yScale, Paint paint) {
+		int count = 0;
+		float lastX = 0;
+		float lastY = Float.NaN;
+
+		for (int i = 0; i < columnCount; i++) {
+			final float min = mins[i];
+			if (min != min) continue;
+
+			final float x = i * COLUMN_WIDTH_PX + COLUMN_WIDTH_PX / 2f;
+			final float yMin = baseline - min * yScale;
+			final float yMax = baseline - maxs[i] * yScale;
+			final float yMiddle = (yMin + yMax) / 2;
+
+			if (lastY == lastY) {
+				lines[count++] = lastX;
+				lines[count++] = lastY;
+				lines[count++] = x;
+				lines[count++] = yMiddle;
+			}
+			lines[count++] = x;
+			lines[count++] = yMin;
+			lines[count++] = x;
+			// a column of equal values still gets a dot
+			lines[count++] = yMax == yMin ? yMax - 1 : yMax;
+
+			lastX = x;
+			lastY = yMiddle;
+		}
+
+		if (count > 0) canvas.drawLines(lines, 0, count, paint);
+	}
+
+	private void pan(float distancePx) {
+		final int width = getWidth();
+		if (width == 0) return;
+
+		final long now = System.currentTimeMillis();
+		long end = following ? now : visibleEnd;
+		end += (long) (distancePx * visibleMs / width);
+
+		// dragging back to the present resumes following
+		following = end >= now;
+		visibleEnd = Math.min(end, now);
+		invalidate();
+	}
+
+	private void zoom(float factor, float focusX) {
+		final int width = getWidth();
+		if (width == 0 || factor <= 0) return;
+
+		long newVisibleMs = (long) (visibleMs / factor);
+		newVisibleMs = Math.max(MIN_VISIBLE_MS, Math.min(MAX_VISIBLE_MS, newVisibleMs));
+
+		if (!following) {
+			// keep the time under the fingers in place
+			final float fraction = Math.max(0, Math.min(1, focusX / width));
+			final long focusTime = visibleEnd - (long) ((1 - fraction) * visibleMs);
+			visibleEnd = Math.min(System.currentTimeMillis(), focusTime + (long) ((1 - fraction) * newVisibleMs));
+		}
+		visibleMs = newVisibleMs;
+		invalidate();
+	}
+
+	private static float niceCeiling(float value) {
+		float magnitude = (float) Math.pow(10, Math.floor(Math.log10(value)));
+		float mantissa = value / magnitude;
+		if (mantissa <= 1) return magnitude;
+		if (mantissa <= 2) return 2 * magnitude;
+		if (mantissa <= 5) return 5 * magnitude;
+		return 10 * magnitude;
+	}
+}
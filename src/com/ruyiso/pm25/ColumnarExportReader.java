@@ -0,0 +1,206 @@
+package com.ruyiso.pm25;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Decodes the format written by {@link ColumnarExportWriter} one block at a time, every block is checked
+ * against its CRC before any of its readings are returned.
+ *
+ * Plain Java, also meant for the desktop:
+ * <pre>
+ * javac -d out ColumnarExportReader.java ColumnarExportWriter.java CsvExportWriter.java ExportWriter.java FixedPointFormat.java
+ * java -cp out com.ruyiso.pm25.ColumnarExportReader export.pmx &gt; export.csv
+ * </pre>
+ */
+public final class ColumnarExportReader {
+	private final InputStream in;
+
+	private final long[] timestamps = new long[ColumnarExportWriter.BLOCK_SAMPLES];
+	private final int[] pm25 = new int[ColumnarExportWriter.BLOCK_SAMPLES];
+	private final int[] pm10 = new int[ColumnarExportWriter.BLOCK_SAMPLES];
+	private final int[] flags = new int[ColumnarExportWriter.BLOCK_SAMPLES];
+	private int count;
+	private int index;
+
+	private final byte[] block = new byte[ColumnarExportWriter.BLOCK_HEADER_SIZE + ColumnarExportWriter.MAX_PAYLOAD + 4];
+	private int position;
+	private int limit;
+
+	private final CRC32 crc = new CRC32();
+
+	private boolean started;
+	private boolean ended;
+	private long blocksRead;
+
+	public ColumnarExportReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return false once the end marker has been read
+	 * @throws IOException also if the stream is cut short or a block is corrupt
+	 */
+	public boolean next() throws IOException {
+		if (!started) readHeader();
+
+		while (++index >= count) {
+			if (ended) return false;
+			readBlock();
+			index = -1;
+		}
+		return true;
+	}
+
+	public long getTimestamp() {
+		return timestamps[index];
+	}
+
+	public int getPm25Tenths() {
+		return pm25[index];
+	}
+
+	public int getPm10Tenths() {
+		return pm10[index];
+	}
+
+	public int getFlags() {
+		return flags[index];
+	}
+
+	public long getBlocksRead() {
+		return blocksRead;
+	}
+
+	private void readHeader() throws IOException {
+		started = true;
+		index = -1;
+		fill(0, ColumnarExportWriter.HEADER_SIZE);
+		position = 0;
+		limit = ColumnarExportWriter.HEADER_SIZE;
+		if (getInt() != ColumnarExportWriter.MAGIC) throw new IOException("not a columnar export");
+		int version = getShort();
+		if (version != ColumnarExportWriter.VERSION) throw new IOException("unsupported version " + version);
+	}
+
+	private void readBlock() throws IOException {
+		fill(0, ColumnarExportWriter.BLOCK_HEADER_SIZE);
+		position = 0;
+		limit = ColumnarExportWriter.BLOCK_HEADER_SIZE;
+		final int samples = getInt();
+		final int payloadLength = getInt();
+		if (samples < 0 || samples > ColumnarExportWriter.BLOCK_SAMPLES || payloadLength < 0 || payloadLength > ColumnarExportWriter.MAX_PAYLOAD) {
+			throw new IOException("block " + blocksRead + " has an invalid header");
+		}
+
+		final int end = ColumnarExportWriter.BLOCK_HEADER_SIZE + payloadLength;
+		fill(ColumnarExportWriter.BLOCK_HEADER_SIZE, end + 4);
+		crc.reset();
+		crc.update(block, 0, end);
+		position = end;
+		limit = end + 4;
+		if (getInt() != (int) crc.getValue()) throw new IOException("block " + blocksRead + " checksum mismatch");
+
+		position = ColumnarExportWriter.BLOCK_HEADER_SIZE;
+		limit = end;
+		count = samples;
+		blocksRead++;
+		if (samples == 0) {
+			ended = true;
+			return;
+		}
+
+		timestamps[0] = getLong();
+		long delta = 0;
+		for (int i = 1; i < samples; i++) {
+			delta += unzigzag(getVarint());
+			timestamps[i] = timestamps[i - 1] + delta;
+		}
+		getDeltas(pm25);
+		getDeltas(pm10);
+
+		int filled = 0;
+		while (filled < samples) {
+			int run = (int) getVarint();
+			int value = (int) getVarint();
+			if (run <= 0 || filled + run > samples) throw new IOException("block " + blocksRead + " has invalid flags");
+			for (int i = 0; i < run; i++) {
+				flags[filled++] = value;
+			}
+		}
+		if (position != limit) throw new IOException("block " + blocksRead + " has trailing bytes");
+	}
+
+	private void getDeltas(int[] values) throws IOException {
+		int previous = 0;
+		for (int i = 0; i < count; i++) {
+			previous += (int) unzigzag(getVarint());
+			values[i] = previous;
+		}
+	}
+
+	private void fill(int from, int to) throws IOException {
+		while (from < to) {
+			int read = in.read(block, from, to - from);
+			if (read < 0) throw new EOFException("export cut short");
+			from += read;
+		}
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private long getVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position >= limit) throw new IOException("block " + blocksRead + " truncated");
+			byte b = block[position++];
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IOException("block " + blocksRead + " has an overlong varint");
+	}
+
+	private int getShort() {
+		return ((block[position++] & 0xff) << 8) | (block[position++] & 0xff);
+	}
+
+	private int getInt() {
+		return ((block[position++] & 0xff) << 24) | ((block[position++] & 0xff) << 16)
+				| ((block[position++] & 0xff) << 8) | (block[position++] & 0xff);
+	}
+
+	private long getLong() {
+		return ((long) getInt() << 32) | (getInt() & 0xffffffffL);
+	}
+
+	/**
+	 * Converts an export to CSV on standard output.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: ColumnarExportReader <export file>");
+			System.exit(2);
+		}
+
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			ColumnarExportReader reader = new ColumnarExportReader(in);
+			CsvExportWriter writer = new CsvExportWriter(new BufferedOutputStream(System.out, 1 << 16));
+			long readings = 0;
+			while (reader.next()) {
+				writer.write(reader.getTimestamp(), reader.getPm25Tenths(), reader.getPm10Tenths(), reader.getFlags());
+				readings++;
+			}
+			writer.finish();
+			System.err.println(readings + " readings in " + reader.getBlocksRead() + " blocks");
+		} finally {
+			in.close();
+		}
+	}
+}
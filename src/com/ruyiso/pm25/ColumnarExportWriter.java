@@ -0,0 +1,163 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary export, readable with {@link ColumnarExportReader}.
+ *
+ * The stream starts with
+ * <pre>
+ * magic (4) | version (2) | reserved (2)
+ * </pre>
+ * followed by blocks of up to {@link #BLOCK_SAMPLES} readings, each
+ * <pre>
+ * sample count (4) | payload length (4) | payload | CRC32 of everything before in the block (4)
+ * </pre>
+ * and a block with a count of 0 marks the end. The payload holds the columns one after another:
+ * <ul>
+ * <li>timestamps: the first one (8), then the delta of deltas of the others as zigzag varints, so
+ * readings at a steady rate take a byte each</li>
+ * <li>PM2.5 and PM10 in 0.1 ug/m3 as zigzag varint deltas to the previous value</li>
+ * <li>flags as runs of count and value varints</li>
+ * </ul>
+ * All fixed width values are big endian. A steady 10 Hz session takes about 3 to 4 bytes per reading
+ * instead of the 10 of the store.
+ *
+ * Readings are buffered for one block, the memory used does not depend on the length of the export.
+ */
+public final class ColumnarExportWriter implements ExportWriter {
+	public static final int MAGIC = 0x504d5843;
+	public static final short VERSION = 1;
+
+	public static final int HEADER_SIZE = 8;
+	public static final int BLOCK_HEADER_SIZE = 8;
+	public static final int BLOCK_SAMPLES = 4096;
+
+	/** a timestamp delta of deltas takes up to 10 bytes, a value 3 and a flags run 6 */
+	public static final int MAX_PAYLOAD = 8 + BLOCK_SAMPLES * (10 + 3 + 3 + 6);
+
+	private final OutputStream out;
+
+	private final long[] timestamps = new long[BLOCK_SAMPLES];
+	private final int[] pm25 = new int[BLOCK_SAMPLES];
+	private final int[] pm10 = new int[BLOCK_SAMPLES];
+	private final int[] flags = new int[BLOCK_SAMPLES];
+	private int count;
+
+	private final byte[] block = new byte[BLOCK_HEADER_SIZE + MAX_PAYLOAD + 4];
+	private int position;
+
+	private final CRC32 crc = new CRC32();
+
+	private boolean started;
+
+	public ColumnarExportWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(long timestamp, int pm25Tenths, int pm10Tenths, int flags) throws IOException {
+		if (!started) writeHeader();
+
+		timestamps[count] = timestamp;
+		pm25[count] = pm25Tenths;
+		pm10[count] = pm10Tenths;
+		this.flags[count] = flags;
+		if (++count == BLOCK_SAMPLES) writeBlock();
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (!started) writeHeader();
+		if (count > 0) writeBlock();
+
+		// the end marker is an empty block
+		writeBlock();
+		out.flush();
+	}
+
+	private void writeHeader() throws IOException {
+		started = true;
+		position = 0;
+		putInt(MAGIC);
+		putShort(VERSION);
+		putShort(0);
+		out.write(block, 0, position);
+	}
+
+	private void writeBlock() throws IOException {
+		position = BLOCK_HEADER_SIZE;
+
+		if (count > 0) {
+			putLong(timestamps[0]);
+			long previousDelta = 0;
+			for (int i = 1; i < count; i++) {
+				long delta = timestamps[i] - timestamps[i - 1];
+				putVarint(zigzag(delta - previousDelta));
+				previousDelta = delta;
+			}
+			putDeltas(pm25);
+			putDeltas(pm10);
+
+			int runStart = 0;
+			for (int i = 1; i <= count; i++) {
+				if (i < count && flags[i] == flags[runStart]) continue;
+				putVarint(i - runStart);
+				putVarint(flags[runStart]);
+				runStart = i;
+			}
+		}
+
+		final int payloadLength = position - BLOCK_HEADER_SIZE;
+		position = 0;
+		putInt(count);
+		putInt(payloadLength);
+		position = BLOCK_HEADER_SIZE + payloadLength;
+
+		crc.reset();
+		crc.update(block, 0, position);
+		putInt((int) crc.getValue());
+
+		out.write(block, 0, position);
+		count = 0;
+	}
+
+	private void putDeltas(int[] values) {
+		int previous = 0;
+		for (int i = 0; i < count; i++) {
+			putVarint(zigzag(values[i] - previous));
+			previous = values[i];
+		}
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private void putVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			block[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		block[position++] = (byte) value;
+	}
+
+	private void putShort(int value) {
+		block[position++] = (byte) (value >>> 8);
+		block[position++] = (byte) value;
+	}
+
+	private void putInt(int value) {
+		block[position++] = (byte) (value >>> 24);
+		block[position++] = (byte) (value >>> 16);
+		block[position++] = (byte) (value >>> 8);
+		block[position++] = (byte) value;
+	}
+
+	private void putLong(long value) {
+		putInt((int) (value >>> 32));
+		putInt((int) value);
+	}
+}
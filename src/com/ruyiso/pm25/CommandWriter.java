@@ -0,0 +1,144 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes commands to the sensor from a single thread.
+ *
+ * Callers only enqueue pre-encoded {@link Command}s. The writer thread takes everything that is pending,
+ * copies it into one reusable buffer and hands it to the stream with a single write and flush, so a burst
+ * of requests and acks ends up in as few RFCOMM packets as possible.
+ */
+public final class CommandWriter {
+	public interface WriteFailureListener {
+		public void onWriteFailed(CommandWriter writer, IOException e);
+	}
+
+	/**
+	 * A command line encoded once, including the trailing CR LF.
+	 */
+	public static final class Command {
+		public static final Command REQUEST_SAMPLE = new Command("t");
+		public static final Command ACK_SAMPLE = new Command("ok");
+		public static final Command STOP_STREAM = new Command("STOP");
+
+		private final String text;
+		private final byte[] bytes;
+
+		public Command(String text) {
+			this.text = text;
+
+			// the sensor speaks plain ASCII, anything else is replaced
+			final int length = text.length();
+			bytes = new byte[length + 2];
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				bytes[i] = c < 0x80 ? (byte) c : (byte) '?';
+			}
+			bytes[length] = '\r';
+			bytes[length + 1] = '\n';
+		}
+
+		public int length() {
+			return bytes.length;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	private static final int QUEUE_CAPACITY = 64;
+	private static final int BATCH_SIZE = 512;
+
+	private final OutputStream out;
+	private final WriteFailureListener listener;
+	private final BlockingQueue<Command> queue = new ArrayBlockingQueue<Command>(QUEUE_CAPACITY);
+	private final byte[] batch = new byte[BATCH_SIZE];
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	private long commandsWritten;
+	private long writes;
+
+	public CommandWriter(OutputStream out, WriteFailureListener listener) {
+		this.out = out;
+		this.listener = listener;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "CommandWriter");
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * @return false if the writer has been closed or too many commands are pending
+	 */
+	public boolean send(Command command) {
+		if (closed) return false;
+		if (command.length() > BATCH_SIZE) throw new IllegalArgumentException("command too long: " + command);
+		return queue.offer(command);
+	}
+
+	/**
+	 * Stops the writer thread, pending commands are dropped. Does not close the stream.
+	 */
+	public void close() {
+		closed = true;
+		thread.interrupt();
+	}
+
+	public synchronized long getCommandsWritten() {
+		return commandsWritten;
+	}
+
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	private void writeLoop() {
+		try {
+			while (!closed) {
+				Command command = queue.take();
+				int length = 0;
+				int count = 0;
+
+				// coalesce everything that is pending and fits into the batch
+				while (command != null) {
+					System.arraycopy(command.bytes, 0, batch, length, command.bytes.length);
+					length += command.bytes.length;
+					count++;
+
+					Command next = queue.peek();
+					if (next == null || length + next.bytes.length > BATCH_SIZE) break;
+					command = queue.poll();
+				}
+
+				out.write(batch, 0, length);
+				out.flush();
+
+				synchronized (this) {
+					commandsWritten += count;
+					writes++;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			boolean wasClosed = closed;
+			closed = true;
+			queue.clear();
+			if (!wasClosed) listener.onWriteFailed(this, e);
+		}
+	}
+}
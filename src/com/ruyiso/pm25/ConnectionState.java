@@ -0,0 +1,9 @@
+package com.ruyiso.pm25;
+
+public enum ConnectionState {
+	IDLE,
+	CONNECTING,
+	CONNECTED,
+	FAILED,
+	DISCONNECTING
+}
@@ -0,0 +1,81 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Plain text export for spreadsheets and scripts: a header line and one line per reading of
+ * <pre>
+ * timestamp_ms,pm25,pm10,flags
+ * </pre>
+ * with the timestamp in ms since the epoch and the values in ug/m3 with one decimal. Lines are ASCII and
+ * end with a line feed.
+ *
+ * Lines are formatted into a reused buffer and written once it is full, no reading allocates.
+ */
+public final class CsvExportWriter implements ExportWriter {
+	public static final String HEADER = "timestamp_ms,pm25,pm10,flags\n";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_LINE_CHARS = 4 * (FixedPointFormat.MAX_INTEGER_CHARS + 2);
+
+	private final OutputStream out;
+
+	private final char[] line = new char[MAX_LINE_CHARS];
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+
+	private boolean started;
+
+	public CsvExportWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(long timestamp, int pm25Tenths, int pm10Tenths, int flags) throws IOException {
+		if (!started) writeHeader();
+
+		int length = FixedPointFormat.format(timestamp, line, 0);
+		line[length++] = ',';
+		length += formatTenths(pm25Tenths, length);
+		line[length++] = ',';
+		length += formatTenths(pm10Tenths, length);
+		line[length++] = ',';
+		length += FixedPointFormat.format(flags, line, length);
+		line[length++] = '\n';
+
+		if (position + length > BUFFER_SIZE) drain();
+		for (int i = 0; i < length; i++) {
+			buffer[position++] = (byte) line[i];
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (!started) writeHeader();
+		drain();
+		out.flush();
+	}
+
+	private void writeHeader() throws IOException {
+		started = true;
+		for (int i = 0; i < HEADER.length(); i++) {
+			buffer[position++] = (byte) HEADER.charAt(i);
+		}
+	}
+
+	/**
+	 * Exact, the stored values already are in tenths.
+	 */
+	private int formatTenths(int tenths, int offset) {
+		int length = FixedPointFormat.format(tenths / 10, line, offset);
+		line[offset + length++] = '.';
+		line[offset + length++] = (char) ('0' + tenths % 10);
+		return length;
+	}
+
+	private void drain() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+	}
+}
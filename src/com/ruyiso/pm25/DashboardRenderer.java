@@ -0,0 +1,130 @@
+package com.ruyiso.pm25;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.widget.TextView;
+
+/**
+ * Shows the readings of one sensor on the main screen.
+ *
+ * Updates only store the latest values and mark the display dirty, the views are written at most once per
+ * display frame however fast readings arrive. Numbers are formatted into reused char arrays and handed to
+ * the views without creating strings. Must only be used on the main thread.
+ */
+final class DashboardRenderer {
+	/** one frame at 60 Hz */
+	private static final long FRAME_INTERVAL_MS = 16;
+
+	private static final int PM_DECIMALS = 2;
+
+	private final Handler handler = new Handler();
+
+	private final TextView pm25View;
+	private final TextView pm10View;
+	private final TextView pm25HourView;
+	private final TextView aqiDayView;
+	private final ChartView chartView;
+
+	/** one buffer per view, a TextView keeps referring to the chars it has been given */
+	private final char[] pm25Chars = newBuffer();
+	private final char[] pm10Chars = newBuffer();
+	private final char[] pm25HourChars = newBuffer();
+	private final char[] aqiDayChars = newBuffer();
+
+	private final RollingAggregator.Summary summary = new RollingAggregator.Summary();
+
+	private SensorConnection connection;
+	private int pm25;
+	private int pm10;
+
+	private boolean dirty;
+	private boolean scheduled;
+	private long lastRender;
+
+	private final Runnable renderRunnable = new Runnable() {
+		@Override
+		public void run() {
+			scheduled = false;
+			render();
+		}
+	};
+
+	DashboardRenderer(TextView pm25View, TextView pm10View, TextView pm25HourView, TextView aqiDayView, ChartView chartView) {
+		this.pm25View = pm25View;
+		this.pm10View = pm10View;
+		this.pm25HourView = pm25HourView;
+		this.aqiDayView = aqiDayView;
+		this.chartView = chartView;
+	}
+
+	/**
+	 * @param connection source of the aggregates, may be null
+	 */
+	void setReading(SensorConnection connection, int pm25, int pm10) {
+		this.connection = connection;
+		this.pm25 = pm25;
+		this.pm10 = pm10;
+		invalidate();
+	}
+
+	/**
+	 * Shows no readings until the next {@link #setReading(SensorConnection, int, int)}.
+	 */
+	void clear() {
+		handler.removeCallbacks(renderRunnable);
+		scheduled = false;
+		dirty = false;
+		connection = null;
+
+		pm25View.setText(R.string.value_na);
+		pm10View.setText(R.string.value_na);
+		pm25HourView.setText(R.string.value_na);
+		aqiDayView.setText(R.string.value_na);
+		chartView.setHistory(null);
+	}
+
+	private void invalidate() {
+		dirty = true;
+		if (scheduled) return;
+
+		// the first update after a pause is drawn right away, a burst is merged into the next frame
+		scheduled = true;
+		long now = SystemClock.uptimeMillis();
+		handler.postAtTime(renderRunnable, Math.max(now, lastRender + FRAME_INTERVAL_MS));
+	}
+
+	private void render() {
+		if (!dirty) return;
+		dirty = false;
+		lastRender = SystemClock.uptimeMillis();
+
+		pm25View.setText(pm25Chars, 0, FixedPointFormat.format(pm25, PM_DECIMALS, pm25Chars, 0));
+		pm10View.setText(pm10Chars, 0, FixedPointFormat.format(pm10, PM_DECIMALS, pm10Chars, 0));
+
+		if (connection == null) return;
+
+		// the chart queries its own data when drawn, it is redrawn with the same cap as the numbers
+		chartView.setHistory(connection.getHistory());
+		chartView.invalidate();
+
+		long now = System.currentTimeMillis();
+		RollingAggregator aggregates = connection.getAggregates();
+		aggregates.read(RollingAggregator.WINDOW_HOUR, now, summary);
+		if (summary.count > 0) {
+			pm25HourView.setText(pm25HourChars, 0, FixedPointFormat.format(summary.meanPm25, PM_DECIMALS, pm25HourChars, 0));
+		} else {
+			pm25HourView.setText(R.string.value_na);
+		}
+
+		aggregates.read(RollingAggregator.WINDOW_DAY, now, summary);
+		if (summary.count > 0) {
+			aqiDayView.setText(aqiDayChars, 0, FixedPointFormat.format(summary.aqi, aqiDayChars, 0));
+		} else {
+			aqiDayView.setText(R.string.value_na);
+		}
+	}
+
+	private static char[] newBuffer() {
+		return new char[FixedPointFormat.MAX_INTEGER_CHARS + 1 + PM_DECIMALS];
+	}
+}
@@ -1,15 +1,19 @@
 package com.ruyiso.pm25;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.view.Window;
@@ -20,15 +24,38 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.ruyiso.pm25.DeviceRegistry.Device;
+
 public class DeviceListActivity extends Activity {
 	private static final String TAG = "DeviceListActivity";
 	private static final boolean D = true;
 	
 	public static String EXTRAC_DEVICE_ADDRESS = "device_address";
 	
+	/**
+	 * Discovery keeps running this long after the first likely sensor has been found, for other sensors
+	 * answering the same inquiry, instead of the full 12 seconds.
+	 */
+	private static final long DISCOVERY_GRACE_MS = 2000;
+	
 	private BluetoothAdapter mBtAdapter;
-	private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-	private ArrayAdapter<String> mNewDevicesArrayAdapter;
+	private DeviceRegistry mRegistry;
+	private ArrayAdapter<Device> mKnownDevicesArrayAdapter;
+	private ArrayAdapter<Device> mNewDevicesArrayAdapter;
+	
+	/** entries shown in either list by address, a device answers an inquiry several times */
+	private final Map<String, Device> mListedDevices = new HashMap<String, Device>();
+	
+	private final Handler mHandler = new Handler();
+	private boolean mGraceScheduled;
+	
+	private final Runnable mCancelDiscovery = new Runnable() {
+		@Override
+		public void run() {
+			if (D) Log.d(TAG, "sensor found, cancelling discovery");
+			mBtAdapter.cancelDiscovery();
+		}
+	};
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -46,20 +73,19 @@ public class DeviceListActivity extends Activity {
 		scanButton.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				// TODO Auto-generated method stub
 				doDiscovery();
 				v.setVisibility(View.GONE);
 			}
 		});
 		
-		// Initialize array adapter. One for paired devices and one for newly discovered devices.
-		mPairedDevicesArrayAdapter = new ArrayAdapter<String> (this, R.layout.device_name);
-		mNewDevicesArrayAdapter = new ArrayAdapter<String> (this, R.layout.device_name);
+		// Initialize array adapter. One for known and paired sensors and one for newly discovered ones.
+		mKnownDevicesArrayAdapter = new ArrayAdapter<Device> (this, R.layout.device_name);
+		mNewDevicesArrayAdapter = new ArrayAdapter<Device> (this, R.layout.device_name);
 		
-		// Find and setup the ListView for paired devices
-		ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
-		pairedListView.setAdapter(mPairedDevicesArrayAdapter);
-		pairedListView.setOnItemClickListener(mDeviceClickListener);
+		// Find and setup the ListView for known devices
+		ListView knownListView = (ListView) findViewById(R.id.paired_devices);
+		knownListView.setAdapter(mKnownDevicesArrayAdapter);
+		knownListView.setOnItemClickListener(mDeviceClickListener);
 		
 		// Find and setup the ListView for newly discovered devices
 		ListView newDeviceListView = (ListView) findViewById(R.id.new_devices);
@@ -76,25 +102,35 @@ public class DeviceListActivity extends Activity {
 		
 		// Get the local Bluetooth adapter
 		mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+		mRegistry = new DeviceRegistry(getApplicationContext());
+		
+		// Sensors that worked before come first, they are listed without waiting for a discovery
+		for (Device device : mRegistry.getSensors()) {
+			addKnownDevice(device);
+		}
 		
-		// Get a set of currently paired devices
+		// Then paired devices that look like sensors
 		Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+		for (BluetoothDevice device : pairedDevices) {
+			if (mListedDevices.containsKey(device.getAddress())) continue;
+			if (!DeviceRegistry.isLikelySensor(device.getName(), device.getBluetoothClass())) continue;
+			
+			Device known = mRegistry.get(device.getAddress());
+			addKnownDevice(known != null ? known : new Device(device.getAddress(), device.getName(), 0, DeviceRegistry.NO_RSSI, false));
+		}
 		
-		// If there are paired devices, add each one to the ArrayAdapter
-		if (pairedDevices.size() > 0) {
-			findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-			for(BluetoothDevice device : pairedDevices) {
-				mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-			}
-		} else {
-			String noDevices = getResources().getText(R.string.non_paired).toString();
-			mPairedDevicesArrayAdapter.add(noDevices);
+		TextView knownTitle = (TextView) findViewById(R.id.title_paired_devices);
+		knownTitle.setVisibility(View.VISIBLE);
+		if (mKnownDevicesArrayAdapter.getCount() == 0) {
+			knownTitle.setText(R.string.non_paired);
 		}
 	}
 	
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		mHandler.removeCallbacks(mCancelDiscovery);
+		
 		// Make sure we're not doing discovery anymore
 		if (mBtAdapter != null) {
 			mBtAdapter.cancelDiscovery();
@@ -104,6 +140,11 @@ public class DeviceListActivity extends Activity {
 		this.unregisterReceiver(mReceiver);
 	}
 	
+	private void addKnownDevice(Device device) {
+		mListedDevices.put(device.getAddress(), device);
+		mKnownDevicesArrayAdapter.add(device);
+	}
+	
 	/**
 	 * Start device discover with the BluetoothAdapter
 	 */
@@ -121,24 +162,55 @@ public class DeviceListActivity extends Activity {
 		if (mBtAdapter.isDiscovering()) {
 			mBtAdapter.cancelDiscovery();
 		}
+		mHandler.removeCallbacks(mCancelDiscovery);
+		mGraceScheduled = false;
 		
 		// Request discover from BluetoothAdapter
 		mBtAdapter.startDiscovery();
 	}
 	
+	/**
+	 * Lists a device found by discovery once, a repeated answer only updates its entry.
+	 */
+	private void onDeviceFound(BluetoothDevice btDevice, short rssi, BluetoothClass btClass) {
+		final String address = btDevice.getAddress();
+		final String name = btDevice.getName();
+		Device listed = mListedDevices.get(address);
+		
+		// confirmed sensors are listed whatever they advertise
+		boolean sensor = (listed != null && listed.isSppConfirmed()) || DeviceRegistry.isLikelySensor(name, btClass);
+		if (!sensor) return;
+		
+		Device device = mRegistry.onSeen(address, name, rssi, System.currentTimeMillis());
+		mListedDevices.put(address, device);
+		
+		if (listed == null) {
+			mNewDevicesArrayAdapter.add(device);
+		} else {
+			ArrayAdapter<Device> adapter = mKnownDevicesArrayAdapter.getPosition(listed) >= 0 ? mKnownDevicesArrayAdapter : mNewDevicesArrayAdapter;
+			int position = adapter.getPosition(listed);
+			adapter.remove(listed);
+			adapter.insert(device, position);
+		}
+		
+		// the target is in range, stop the inquiry soon as it slows down connecting
+		if (!mGraceScheduled) {
+			mGraceScheduled = true;
+			mHandler.postDelayed(mCancelDiscovery, DISCOVERY_GRACE_MS);
+		}
+	}
+	
 	// The on-click listener for all devices in the ListViews
 	private OnItemClickListener mDeviceClickListener = new OnItemClickListener() {
-		public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
+		public void onItemClick(AdapterView<?> av, View v, int position, long id) {
 			// Cancel discovery because it's costly and we're about to connect
 			mBtAdapter.cancelDiscovery();
 			
-			// Get the device MAC address, which is the last 17 chars in the View
-			String info = ((TextView) v).getText().toString();
-			String address = info.substring(info.length() - 17);
+			Device device = (Device) av.getItemAtPosition(position);
 			
 			// Create the result Intent and include the MAC address
 			Intent intent = new Intent();
-			intent.putExtra(EXTRAC_DEVICE_ADDRESS, address);
+			intent.putExtra(EXTRAC_DEVICE_ADDRESS, device.getAddress());
 			
 			// Set result and finish this activity
 			setResult(Activity.RESULT_OK, intent);
@@ -157,17 +229,20 @@ public class DeviceListActivity extends Activity {
 			// When discovery finds a device
 			if (BluetoothDevice.ACTION_FOUND.equals(action)) {
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-					mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-				}
+				short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceRegistry.NO_RSSI);
+				BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+				onDeviceFound(device, rssi, btClass);
 			}
 			// When discovery is finished, change the Activity title
 			else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+				mHandler.removeCallbacks(mCancelDiscovery);
 				setProgressBarIndeterminateVisibility(false);
 				setTitle(R.string.select_device);
+				findViewById(R.id.button_scan).setVisibility(View.VISIBLE);
 				if (mNewDevicesArrayAdapter.getCount() == 0) {
-					String noDevices = getResources().getText(R.string.none_found).toString();
-					mNewDevicesArrayAdapter.add(noDevices);
+					((TextView) findViewById(R.id.title_new_devices)).setText(R.string.none_found);
+				} else {
+					((TextView) findViewById(R.id.title_new_devices)).setText(R.string.title_other_devices);
 				}
 			}
 		}
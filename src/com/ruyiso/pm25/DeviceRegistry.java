@@ -0,0 +1,228 @@
+package com.ruyiso.pm25;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.bluetooth.BluetoothClass;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent list of the bluetooth devices seen while looking for sensors.
+ *
+ * Each device is kept with its name, when it was last seen, the signal strength of that sighting and
+ * whether a serial port link to it has ever worked. Devices that served readings are listed before any
+ * discovery runs, so picking a known sensor does not have to wait for an inquiry.
+ *
+ * Entries are stored in their own preferences file, one per address, and are read on every call, so any
+ * number of instances see the same state.
+ */
+public final class DeviceRegistry {
+	private static final String PREFERENCES_NAME = "device_registry";
+
+	/** signal strength of a device that was not seen by a discovery */
+	public static final short NO_RSSI = Short.MIN_VALUE;
+
+	/** name prefixes of the serial modules and sensors PM sensors are sold with, upper case */
+	private static final String[] SENSOR_NAME_PREFIXES = { "PM", "SDS", "HC-0", "HC0", "BT0", "BT-", "LINVOR", "JDY-", "SPP" };
+
+	public static final class Device {
+		private final String address;
+		private final String name;
+		private final long lastSeen;
+		private final short rssi;
+		private final boolean sppConfirmed;
+
+		Device(String address, String name, long lastSeen, short rssi, boolean sppConfirmed) {
+			this.address = address;
+			this.name = name;
+			this.lastSeen = lastSeen;
+			this.rssi = rssi;
+			this.sppConfirmed = sppConfirmed;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return the name, null if the device did not tell
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return time of the last sighting or connection, 0 if never
+		 */
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		/**
+		 * @return signal strength in dBm of the last sighting, {@link DeviceRegistry#NO_RSSI} if unknown
+		 */
+		public short getRssi() {
+			return rssi;
+		}
+
+		/**
+		 * @return true once a serial port link to the device delivered data
+		 */
+		public boolean isSppConfirmed() {
+			return sppConfirmed;
+		}
+
+		/**
+		 * List entry: name and address, and the signal strength if known.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(name != null ? name : address).append('\n').append(address);
+			if (rssi != NO_RSSI) text.append("  ").append(rssi).append(" dBm");
+			return text.toString();
+		}
+	}
+
+	/** most recently seen first */
+	private static final Comparator<Device> BY_LAST_SEEN = new Comparator<Device>() {
+		@Override
+		public int compare(Device lhs, Device rhs) {
+			return lhs.lastSeen < rhs.lastSeen ? 1 : (lhs.lastSeen == rhs.lastSeen ? 0 : -1);
+		}
+	};
+
+	private final Context applicationContext;
+
+	public DeviceRegistry(Context applicationContext) {
+		this.applicationContext = applicationContext;
+	}
+
+	/**
+	 * Guesses from the advertised name and class whether a device may be a PM sensor. Phones, computers,
+	 * headsets and the like are not; serial modules usually report no class at all.
+	 */
+	public static boolean isLikelySensor(String name, BluetoothClass btClass) {
+		if (name != null) {
+			String upper = name.toUpperCase(Locale.US);
+			for (String prefix : SENSOR_NAME_PREFIXES) {
+				if (upper.startsWith(prefix)) return true;
+			}
+		}
+		if (btClass == null) return true;
+
+		switch (btClass.getMajorDeviceClass()) {
+		case BluetoothClass.Device.Major.UNCATEGORIZED:
+		case BluetoothClass.Device.Major.MISC:
+		case BluetoothClass.Device.Major.HEALTH:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public synchronized Device get(String address) {
+		return decode(address, getPreferences().getString(address, null));
+	}
+
+	/**
+	 * @return all devices, most recently seen first
+	 */
+	public synchronized List<Device> getDevices() {
+		List<Device> devices = new ArrayList<Device>();
+		for (Map.Entry<String, ?> entry : getPreferences().getAll().entrySet()) {
+			if (!(entry.getValue() instanceof String)) continue;
+			Device device = decode(entry.getKey(), (String) entry.getValue());
+			if (device != null) devices.add(device);
+		}
+		Collections.sort(devices, BY_LAST_SEEN);
+		return devices;
+	}
+
+	/**
+	 * @return the devices a serial port link worked with, most recently seen first
+	 */
+	public List<Device> getSensors() {
+		List<Device> sensors = new ArrayList<Device>();
+		for (Device device : getDevices()) {
+			if (device.sppConfirmed) sensors.add(device);
+		}
+		return sensors;
+	}
+
+	/**
+	 * Records a sighting by a discovery.
+	 *
+	 * @param name null keeps the known name
+	 * @return the updated entry
+	 */
+	public synchronized Device onSeen(String address, String name, short rssi, long now) {
+		Device known = get(address);
+		Device device = new Device(address,
+				name != null ? name : (known != null ? known.name : null),
+				now, rssi,
+				known != null && known.sppConfirmed);
+		save(device);
+		return device;
+	}
+
+	/**
+	 * Records that a serial port link to the device delivered data.
+	 */
+	public synchronized void onConnected(String address, String name, long now) {
+		Device known = get(address);
+		save(new Device(address,
+				name != null ? name : (known != null ? known.name : null),
+				now,
+				known != null ? known.rssi : NO_RSSI,
+				true));
+	}
+
+	public synchronized void clear() {
+		getPreferences().edit().clear().commit();
+	}
+
+	private void save(Device device) {
+		getPreferences().edit()
+				.putString(device.address, encode(device))
+				.commit();
+	}
+
+	private SharedPreferences getPreferences() {
+		return applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/*
+	 * An entry is "last seen,rssi,spp confirmed,name", the name comes last as it may contain commas.
+	 */
+
+	private static String encode(Device device) {
+		StringBuilder value = new StringBuilder();
+		value.append(device.lastSeen).append(',')
+				.append(device.rssi).append(',')
+				.append(device.sppConfirmed ? '1' : '0').append(',');
+		if (device.name != null) value.append(device.name);
+		return value.toString();
+	}
+
+	private static Device decode(String address, String value) {
+		if (value == null) return null;
+
+		String[] fields = value.split(",", 4);
+		if (fields.length < 4) return null;
+		try {
+			return new Device(address,
+					fields[3].length() > 0 ? fields[3] : null,
+					Long.parseLong(fields[0]),
+					Short.parseShort(fields[1]),
+					"1".equals(fields[2]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.ruyiso.pm25;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+/**
+ * Shows the {@link LinkMetrics} of every sensor and the upload counters, refreshed once a second, and
+ * shares them as text.
+ *
+ * Throughput is computed here from the change of the counters between two refreshes, the links only
+ * count. The last minute of readings is taken from the {@link SampleRingBuffer} of every sensor without
+ * locking the reader, the air around the phone from its {@link GeoTileIndex}.
+ */
+public class DiagnosticsActivity extends Activity {
+	private static final long REFRESH_INTERVAL_MS = 1000;
+
+	/** half the side of the area around the phone summed up */
+	private static final double NEARBY_M = 1000;
+
+	private static final double METERS_PER_DEGREE = 111320;
+
+	private static final long RECENT_MS = 60000;
+
+	private TextView diagnosticsText;
+
+	private AcquisitionService acquisitionService;
+
+	private final Handler handler = new Handler();
+
+	private final StringBuilder report = new StringBuilder();
+
+	private final GeoTileIndex.Summary nearby = new GeoTileIndex.Summary();
+
+	/** snapshot of the recent samples, sized to the ring buffers on first use */
+	private long[] recentTimestamps;
+	private float[] recentPm25;
+	private float[] recentPm10;
+
+	/** counters of the previous refresh per address: bytes, frames and the uptime they were taken at */
+	private final Map<String, long[]> previousCounters = new HashMap<String, long[]>();
+
+	private final Runnable refresh = new Runnable() {
+		@Override
+		public void run() {
+			buildReport();
+			diagnosticsText.setText(report);
+			handler.postDelayed(this, REFRESH_INTERVAL_MS);
+		}
+	};
+
+	private final ServiceConnection acquisitionConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			acquisitionService = ((AcquisitionService.LocalBinder) binder).getService();
+			handler.removeCallbacks(refresh);
+			handler.post(refresh);
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			acquisitionService = null;
+			handler.removeCallbacks(refresh);
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		setContentView(R.layout.diagnostics);
+		diagnosticsText = (TextView) findViewById(R.id.textViewDiagnostics);
+
+		Button exportButton = (Button) findViewById(R.id.button_export);
+		exportButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				export();
+			}
+		});
+	}
+
+	@Override
+	protected void onStart() {
+		super.onStart();
+		// only binds, looking at the figures must not start acquisition
+		bindService(new Intent(this, AcquisitionService.class), acquisitionConnection, Context.BIND_AUTO_CREATE);
+	}
+
+	@Override
+	protected void onStop() {
+		super.onStop();
+		handler.removeCallbacks(refresh);
+		unbindService(acquisitionConnection);
+		acquisitionService = null;
+	}
+
+	private void buildReport() {
+		report.setLength(0);
+		if (acquisitionService == null) return;
+
+		final long now = SystemClock.elapsedRealtime();
+		final GeoFix fix = acquisitionService.getLocationTracker().getLatestFix();
+		if (fix == null) {
+			report.append("position: none\n\n");
+		} else {
+			report.append("position: ").append(fix)
+					.append(", age s: ").append((System.currentTimeMillis() - fix.getTimestamp()) / 1000)
+					.append(acquisitionService.getLocationTracker().isMocking() ? ", mocked" : "").append("\n\n");
+		}
+
+		boolean any = false;
+		for (SensorConnection connection : acquisitionService.getBluetoothService().getConnections()) {
+			any = true;
+			LinkMetrics metrics = connection.getMetrics();
+
+			report.append(connection.getName()).append(" (").append(connection.getAddress()).append(")\n");
+			report.append("state: ").append(connection.getConnectionState())
+					.append(", sampling period ms: ").append(connection.getCurrentSamplingPeriodMs()).append('\n');
+			report.append("firmware: ").append(connection.getCapabilities())
+					.append(connection.isStreaming() ? ", streaming" : ", polling").append('\n');
+
+			long bytes = metrics.getBytesReceived();
+			long frames = metrics.getFramesReceived();
+			long[] previous = previousCounters.get(connection.getAddress());
+			if (previous == null) {
+				previous = new long[3];
+				previousCounters.put(connection.getAddress(), previous);
+			} else if (now > previous[2]) {
+				long elapsedMs = now - previous[2];
+				report.append("bytes/s: ").append((bytes - previous[0]) * 1000 / elapsedMs)
+						.append(", frames/s: ").append((frames - previous[1]) * 1000 / elapsedMs).append('\n');
+			}
+			previous[0] = bytes;
+			previous[1] = frames;
+			previous[2] = now;
+
+			metrics.appendReport(report);
+			report.append("sampling ticks skipped: ").append(connection.getTicksSkipped()).append('\n');
+			appendRecent(connection.getRecentSamples());
+			appendNearby(connection.getTiles(), fix);
+			report.append('\n');
+		}
+		if (!any) report.append(getString(R.string.diagnostics_no_sensors)).append("\n\n");
+
+		UploadManager uploadManager = acquisitionService.getUploadManager();
+		Uploader uploader = uploadManager.getUploader();
+		if (uploader != null) {
+			report.append("upload batches queued: ").append(uploadManager.getQueuedBatches())
+					.append(", sent: ").append(uploader.getBatchesUploaded())
+					.append(", rejected: ").append(uploader.getBatchesRejected())
+					.append(", failures: ").append(uploader.getFailures()).append('\n');
+			report.append("upload bytes sent: ").append(uploader.getBytesUploaded()).append('\n');
+		}
+	}
+
+	private void appendRecent(SampleRingBuffer samples) {
+		if (recentTimestamps == null || recentTimestamps.length < samples.getCapacity()) {
+			recentTimestamps = new long[samples.getCapacity()];
+			recentPm25 = new float[samples.getCapacity()];
+			recentPm10 = new float[samples.getCapacity()];
+		}
+		final int count = samples.snapshot(recentTimestamps, recentPm25, recentPm10);
+		if (count == 0) return;
+
+		final long since = recentTimestamps[count - 1] - RECENT_MS;
+		int readings = 0;
+		float sumPm25 = 0;
+		float minPm25 = Float.MAX_VALUE;
+		float maxPm25 = 0;
+		float maxPm10 = 0;
+		long longestGapMs = 0;
+		for (int i = count - 1; i >= 0 && recentTimestamps[i] >= since; i--) {
+			readings++;
+			sumPm25 += recentPm25[i];
+			minPm25 = Math.min(minPm25, recentPm25[i]);
+			maxPm25 = Math.max(maxPm25, recentPm25[i]);
+			maxPm10 = Math.max(maxPm10, recentPm10[i]);
+			if (i > 0 && recentTimestamps[i - 1] >= since) {
+				longestGapMs = Math.max(longestGapMs, recentTimestamps[i] - recentTimestamps[i - 1]);
+			}
+		}
+		report.append("last minute: readings ").append(readings)
+				.append(", PM2.5 min ").append(Math.round(minPm25))
+				.append(", mean ").append(Math.round(sumPm25 / readings))
+				.append(", max ").append(Math.round(maxPm25))
+				.append(", PM10 max ").append(Math.round(maxPm10))
+				.append(", longest gap ms: ").append(longestGapMs).append('\n');
+	}
+
+	private void appendNearby(GeoTileIndex tiles, GeoFix fix) {
+		report.append("map tiles: ").append(tiles.getTileCount())
+				.append(", located readings: ").append(tiles.getReadings()).append('\n');
+		if (fix == null) return;
+
+		final double latitudeSpan = NEARBY_M / METERS_PER_DEGREE;
+		final double longitudeSpan = latitudeSpan / Math.max(0.01, Math.cos(Math.toRadians(fix.getLatitude())));
+		tiles.query(fix.getLatitude() - latitudeSpan, fix.getLongitude() - longitudeSpan,
+				fix.getLatitude() + latitudeSpan, fix.getLongitude() + longitudeSpan, nearby);
+		if (nearby.count == 0) return;
+		report.append("PM2.5 within 1 km: mean ").append(Math.round(nearby.meanPm25))
+				.append(", max ").append(nearby.maxPm25)
+				.append(", readings: ").append(nearby.count)
+				.append(", tiles read: ").append(nearby.tiles).append('\n');
+	}
+
+	private void export() {
+		buildReport();
+
+		Intent send = new Intent(Intent.ACTION_SEND);
+		send.setType("text/plain");
+		send.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_subject));
+		send.putExtra(Intent.EXTRA_TEXT, report.toString());
+		startActivity(Intent.createChooser(send, getString(R.string.button_export_diagnostics)));
+	}
+}
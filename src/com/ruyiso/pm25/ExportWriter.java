@@ -0,0 +1,19 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+
+/**
+ * Destination of an export, readings are written one at a time, oldest first.
+ */
+public interface ExportWriter {
+	/**
+	 * @param pm25Tenths PM2.5 in 0.1 ug/m3, as stored
+	 * @param pm10Tenths PM10 in 0.1 ug/m3, as stored
+	 */
+	public void write(long timestamp, int pm25Tenths, int pm10Tenths, int flags) throws IOException;
+
+	/**
+	 * Writes whatever is pending and the end of the export. The underlying stream is flushed, not closed.
+	 */
+	public void finish() throws IOException;
+}
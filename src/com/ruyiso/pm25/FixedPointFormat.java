@@ -0,0 +1,85 @@
+package com.ruyiso.pm25;
+
+/**
+ * Formats numbers into a caller supplied char array without allocating.
+ *
+ * Replaces DecimalFormat on the display path: values are rounded half up to a fixed number of decimals,
+ * there is no grouping and no locale handling, the decimal separator is always a point.
+ */
+public final class FixedPointFormat {
+	/** enough for any long plus sign */
+	public static final int MAX_INTEGER_CHARS = 20;
+
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	public static final int MAX_DECIMALS = POWERS_OF_TEN.length - 1;
+
+	private FixedPointFormat() {
+	}
+
+	/**
+	 * Writes value with the given number of decimals, e.g. 12.30 for 12.3 and 2 decimals. NaN and values
+	 * too large to be rounded exactly are written as "NaN" and "Inf" or "-Inf".
+	 *
+	 * @return the number of chars written, at most {@link #MAX_INTEGER_CHARS} + 1 + decimals
+	 */
+	public static int format(double value, int decimals, char[] buffer, int offset) {
+		if (decimals < 0 || decimals > MAX_DECIMALS) throw new IllegalArgumentException("invalid decimals " + decimals);
+
+		if (value != value) return write("NaN", buffer, offset);
+
+		final long scale = POWERS_OF_TEN[decimals];
+		final boolean negative = value < 0;
+		final double scaled = Math.abs(value) * scale + 0.5;
+		if (scaled >= Long.MAX_VALUE) return write(negative ? "-Inf" : "Inf", buffer, offset);
+
+		final long rounded = (long) scaled;
+		int position = offset;
+		// no minus sign for values rounding to zero
+		if (negative && rounded != 0) buffer[position++] = '-';
+
+		position += format(rounded / scale, buffer, position);
+		if (decimals > 0) {
+			buffer[position++] = '.';
+			long fraction = rounded % scale;
+			for (int i = position + decimals - 1; i >= position; i--) {
+				buffer[i] = (char) ('0' + fraction % 10);
+				fraction /= 10;
+			}
+			position += decimals;
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Writes the decimal digits of value.
+	 *
+	 * @return the number of chars written, at most {@link #MAX_INTEGER_CHARS}
+	 */
+	public static int format(long value, char[] buffer, int offset) {
+		if (value == Long.MIN_VALUE) return write(Long.toString(value), buffer, offset);
+
+		int position = offset;
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long rest = value / 10; rest != 0; rest /= 10) {
+			digits++;
+		}
+		for (int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return position + digits - offset;
+	}
+
+	private static int write(String text, char[] buffer, int offset) {
+		text.getChars(0, text.length(), buffer, offset);
+		return text.length();
+	}
+}
@@ -0,0 +1,197 @@
+package com.ruyiso.pm25;
+
+/**
+ * Incremental decoder for the sensor's binary frames.
+ *
+ * A frame is laid out as (all values big endian):
+ * <pre>
+ * 0x42 0x4d | length (2) | data words (length - 2) | checksum (2)
+ * </pre>
+ * where length counts the data words plus the checksum and the checksum is the 16 bit sum of every byte
+ * before it. Data word 4 holds PM2.5 and word 5 holds PM10, both in ug/m3 (atmospheric environment).
+ *
+ * Bytes may be fed in arbitrary chunks, frames split across several reads are reassembled. On a bad length
+ * or checksum the decoder rescans the bytes after the rejected header, so a valid frame hidden behind
+ * garbage is not lost. Decoding readings does not allocate.
+ *
+ * Frames with 0x43 as the second header byte announce the capabilities of the firmware, see
+ * {@link SensorCapabilities}. They are passed to the {@link CapabilityListener} if one is set.
+ */
+public final class FrameDecoder {
+	public interface FrameListener {
+		public void onFrame(int pm25, int pm10);
+	}
+
+	public interface CapabilityListener {
+		public void onCapabilities(SensorCapabilities capabilities);
+	}
+
+	public static final int HEADER_1 = 0x42;
+	public static final int HEADER_2 = 0x4d;
+
+	/** data words up to and including PM10 plus the checksum */
+	public static final int MIN_LENGTH = 14;
+	public static final int MAX_LENGTH = 60;
+
+	private static final int PM25_OFFSET = 4 + 8;
+	private static final int PM10_OFFSET = 4 + 10;
+
+	private static final int STATE_HEADER_1 = 0;
+	private static final int STATE_HEADER_2 = 1;
+	private static final int STATE_LENGTH_HIGH = 2;
+	private static final int STATE_LENGTH_LOW = 3;
+	private static final int STATE_BODY = 4;
+
+	private final FrameListener listener;
+	private CapabilityListener capabilityListener;
+
+	private final byte[] frame = new byte[4 + MAX_LENGTH];
+	private final byte[] rescan = new byte[4 + MAX_LENGTH];
+
+	private int state = STATE_HEADER_1;
+	private int frameLength;
+	private int expectedLength;
+	private boolean capabilityFrame;
+
+	private long framesDecoded;
+	private long framesRejected;
+	private long bytesSkipped;
+
+	public FrameDecoder(FrameListener listener) {
+		this.listener = listener;
+	}
+
+	public void setCapabilityListener(CapabilityListener capabilityListener) {
+		this.capabilityListener = capabilityListener;
+	}
+
+	public void feed(byte[] buffer, int offset, int count) {
+		final int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			if (!step(buffer[i])) rescan();
+		}
+	}
+
+	/**
+	 * Drops any partially received frame, e.g. after the link has been reestablished.
+	 */
+	public void reset() {
+		state = STATE_HEADER_1;
+		frameLength = 0;
+	}
+
+	public long getFramesDecoded() {
+		return framesDecoded;
+	}
+
+	public long getFramesRejected() {
+		return framesRejected;
+	}
+
+	public long getBytesSkipped() {
+		return bytesSkipped;
+	}
+
+	/**
+	 * Replays everything after the first byte of a rejected frame. A frame rejected during the replay
+	 * can only consist of replayed bytes, so the replay simply restarts one byte after its header.
+	 */
+	private void rescan() {
+		int count = frameLength - 1;
+		System.arraycopy(frame, 1, rescan, 0, count);
+		bytesSkipped++;
+		reset();
+
+		int frameStart = 0;
+		for (int i = 0; i < count; i++) {
+			if (state == STATE_HEADER_1) frameStart = i;
+			if (!step(rescan[i])) {
+				bytesSkipped++;
+				reset();
+				i = frameStart;
+			}
+		}
+	}
+
+	/**
+	 * @return false if the current frame has been rejected and has to be rescanned
+	 */
+	private boolean step(byte b) {
+		final int value = b & 0xff;
+
+		switch (state) {
+		case STATE_HEADER_1:
+			if (value == HEADER_1) {
+				frame[0] = b;
+				frameLength = 1;
+				state = STATE_HEADER_2;
+			} else {
+				bytesSkipped++;
+			}
+			return true;
+		case STATE_HEADER_2:
+			frame[frameLength++] = b;
+			if (value != HEADER_2 && value != SensorCapabilities.HEADER_2) return false;
+			capabilityFrame = value == SensorCapabilities.HEADER_2;
+			state = STATE_LENGTH_HIGH;
+			return true;
+		case STATE_LENGTH_HIGH:
+			frame[frameLength++] = b;
+			expectedLength = value << 8;
+			state = STATE_LENGTH_LOW;
+			return true;
+		case STATE_LENGTH_LOW:
+			frame[frameLength++] = b;
+			expectedLength |= value;
+			if (expectedLength < (capabilityFrame ? SensorCapabilities.MIN_LENGTH : MIN_LENGTH) || expectedLength > MAX_LENGTH) {
+				framesRejected++;
+				return false;
+			}
+			expectedLength += 4;
+			state = STATE_BODY;
+			return true;
+		case STATE_BODY:
+			frame[frameLength++] = b;
+			if (frameLength < expectedLength) return true;
+
+			if (checksum() != readWord(frameLength - 2)) {
+				framesRejected++;
+				return false;
+			}
+
+			if (capabilityFrame) {
+				reset();
+				onCapabilityFrame();
+				return true;
+			}
+
+			framesDecoded++;
+			reset();
+			listener.onFrame(readWord(PM25_OFFSET), readWord(PM10_OFFSET));
+			return true;
+		default:
+			throw new IllegalStateException("unknown decoder state " + state);
+		}
+	}
+
+	/**
+	 * Only runs for the few capability frames, so the allocation does not matter.
+	 */
+	private void onCapabilityFrame() {
+		if (capabilityListener == null) return;
+		capabilityListener.onCapabilities(new SensorCapabilities(readWord(4), readWord(6), readWord(8), readWord(10)));
+	}
+
+	private int checksum() {
+		int sum = 0;
+		final int end = frameLength - 2;
+		for (int i = 0; i < end; i++) {
+			sum += frame[i] & 0xff;
+		}
+		return sum & 0xffff;
+	}
+
+	private int readWord(int offset) {
+		return ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff);
+	}
+}
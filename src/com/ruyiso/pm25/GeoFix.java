@@ -0,0 +1,57 @@
+package com.ruyiso.pm25;
+
+/**
+ * A position of the phone, as readings are tagged with it.
+ */
+public final class GeoFix {
+	/** the bit of the stored reading flags telling the reading was added to the {@link GeoTileIndex} */
+	public static final int FLAG_LOCATED = 0x4;
+
+	/**
+	 * Where readings get their position from.
+	 */
+	public interface Source {
+		/**
+		 * Called by reader threads for every reading, must not block.
+		 *
+		 * @return the position at the time, null if none is known well enough
+		 */
+		public GeoFix getFixAt(long timestamp);
+	}
+
+	private final long timestamp;
+	private final double latitude;
+	private final double longitude;
+	private final float accuracy;
+
+	/**
+	 * @param accuracy radius in m, 0 if unknown
+	 */
+	public GeoFix(long timestamp, double latitude, double longitude, float accuracy) {
+		this.timestamp = timestamp;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.accuracy = accuracy;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public float getAccuracy() {
+		return accuracy;
+	}
+
+	@Override
+	public String toString() {
+		return latitude + "," + longitude + " +-" + accuracy + " m";
+	}
+}
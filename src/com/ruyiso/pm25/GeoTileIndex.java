@@ -0,0 +1,376 @@
+package com.ruyiso.pm25;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aggregates of the located readings of one sensor per map tile, for heatmaps and area averages.
+ *
+ * Tiles are {@link Geohash} cells of precision {@link #MIN_PRECISION} to {@link #MAX_PRECISION}, from
+ * tens of kilometers down to about 150 m. A reading updates its tile on every level, so any zoom level
+ * and any area is answered from the tiles instead of the stored readings. Areas are answered at the
+ * finest level where they span at most {@link #MAX_QUERY_TILES} cells, each of them looked up. Larger
+ * ones are answered at the coarsest level, by a pass over its tiles if fewer of them hold readings than
+ * the area has cells. Areas include the tiles overlapping their edges, so they may reach up to one tile
+ * beyond the area, and cross the antimeridian if their west edge is east of their east edge.
+ *
+ * Aggregates only add up, so an index loaded with {@link #readFrom(InputStream)} can be merged into one
+ * that already took readings. The file holds the finest level only, the others are rebuilt on loading:
+ * <pre>
+ * magic "PMGT" (4) | version (2) | tiles (4) | per tile: geohash (8) | count (4) | PM2.5 sum (8) | PM10 sum (8) | PM2.5 max (2) | PM10 max (2) | latest timestamp (8)
+ * </pre>
+ */
+public final class GeoTileIndex {
+	public static final int MAGIC = 0x504d4754;
+	public static final int VERSION = 1;
+
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 7;
+
+	/** cells looked up at most for an area, unless it is too large for the coarsest level */
+	public static final int MAX_QUERY_TILES = 256;
+
+	/**
+	 * Aggregates of the readings in one tile, in ug/m3.
+	 */
+	public static final class Tile {
+		private int count;
+		private long sumPm25;
+		private long sumPm10;
+		private int maxPm25;
+		private int maxPm10;
+		private long latestTimestamp = Long.MIN_VALUE;
+
+		private void add(long timestamp, int pm25, int pm10) {
+			add(1, pm25, pm10, pm25, pm10, timestamp);
+		}
+
+		private void add(int count, long sumPm25, long sumPm10, int maxPm25, int maxPm10, long latestTimestamp) {
+			this.count += count;
+			this.sumPm25 += sumPm25;
+			this.sumPm10 += sumPm10;
+			this.maxPm25 = Math.max(this.maxPm25, maxPm25);
+			this.maxPm10 = Math.max(this.maxPm10, maxPm10);
+			this.latestTimestamp = Math.max(this.latestTimestamp, latestTimestamp);
+		}
+	}
+
+	/**
+	 * Receives the tiles of a heatmap.
+	 */
+	public interface TileVisitor {
+		/**
+		 * Called with the index locked, keep it short.
+		 */
+		public void visitTile(double south, double west, double north, double east, int count, float meanPm25, int maxPm25);
+	}
+
+	/**
+	 * Aggregates of an area, filled by {@link GeoTileIndex#query}.
+	 */
+	public static final class Summary {
+		public int count;
+		public float meanPm25;
+		public float meanPm10;
+		public int maxPm25;
+		public int maxPm10;
+		/** tiles holding readings of the area */
+		public int tiles;
+		/** geohash precision the area was answered at */
+		public int precision;
+
+		private long sumPm25;
+		private long sumPm10;
+	}
+
+	/**
+	 * Tiles of one level by geohash, with open addressing over the primitive keys so adding a reading does
+	 * not box them.
+	 */
+	private static final class TileMap {
+		private long[] keys = new long[16];
+		/** null marks a free slot, any key including 0 is a valid geohash */
+		private Tile[] tiles = new Tile[16];
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		int capacity() {
+			return tiles.length;
+		}
+
+		long keyAt(int slot) {
+			return keys[slot];
+		}
+
+		/**
+		 * @return the tile in the slot, null if it is free
+		 */
+		Tile tileAt(int slot) {
+			return tiles[slot];
+		}
+
+		Tile get(long hash) {
+			final int mask = tiles.length - 1;
+			for (int slot = slot(hash, mask); tiles[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[slot] == hash) return tiles[slot];
+			}
+			return null;
+		}
+
+		Tile getOrCreate(long hash) {
+			Tile tile = get(hash);
+			if (tile != null) return tile;
+
+			// at most three quarters full, so probes stay short
+			if ((size + 1) * 4 > tiles.length * 3) grow();
+			tile = new Tile();
+			insert(hash, tile);
+			size++;
+			return tile;
+		}
+
+		void clear() {
+			Arrays.fill(tiles, null);
+			size = 0;
+		}
+
+		private void insert(long hash, Tile tile) {
+			final int mask = tiles.length - 1;
+			int slot = slot(hash, mask);
+			while (tiles[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = hash;
+			tiles[slot] = tile;
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys;
+			final Tile[] oldTiles = tiles;
+			keys = new long[oldKeys.length * 2];
+			tiles = new Tile[oldTiles.length * 2];
+			for (int i = 0; i < oldTiles.length; i++) {
+				if (oldTiles[i] != null) insert(oldKeys[i], oldTiles[i]);
+			}
+		}
+
+		/**
+		 * Spreads the keys, neighboring cells only differ in their low bits.
+		 */
+		private static int slot(long hash, int mask) {
+			return (int) ((hash * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+		}
+	}
+
+	/** tiles by geohash, one map per precision from {@link #MIN_PRECISION} on */
+	private final List<TileMap> levels = new ArrayList<TileMap>(MAX_PRECISION - MIN_PRECISION + 1);
+
+	private final double[] cell = new double[4];
+
+	private long readings;
+
+	public GeoTileIndex() {
+		for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+			levels.add(new TileMap());
+		}
+	}
+
+	/**
+	 * Adds a reading taken at the given place.
+	 */
+	public synchronized void add(double latitude, double longitude, long timestamp, int pm25, int pm10) {
+		final long hash = Geohash.encode(latitude, longitude, MAX_PRECISION);
+		for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+			getOrCreateTile(precision, Geohash.parent(hash, MAX_PRECISION, precision)).add(timestamp, pm25, pm10);
+		}
+		readings++;
+	}
+
+	public synchronized long getReadings() {
+		return readings;
+	}
+
+	/**
+	 * @return tiles holding readings at the finest level
+	 */
+	public synchronized int getTileCount() {
+		return levels.get(MAX_PRECISION - MIN_PRECISION).size();
+	}
+
+	/**
+	 * Sums up the tiles of the area at the finest level it spans at most {@link #MAX_QUERY_TILES} cells of.
+	 */
+	public synchronized void query(double south, double west, double north, double east, Summary out) {
+		final int precision = choosePrecision(south, west, north, east);
+		out.count = 0;
+		out.sumPm25 = 0;
+		out.sumPm10 = 0;
+		out.maxPm25 = 0;
+		out.maxPm10 = 0;
+		out.tiles = 0;
+		out.precision = precision;
+
+		walk(precision, south, west, north, east, out, null);
+
+		out.meanPm25 = out.count == 0 ? 0 : (float) out.sumPm25 / out.count;
+		out.meanPm10 = out.count == 0 ? 0 : (float) out.sumPm10 / out.count;
+	}
+
+	/**
+	 * Passes the tiles of the area holding readings at the precision {@link #query} would use.
+	 *
+	 * @return the precision used
+	 */
+	public synchronized int visitTiles(double south, double west, double north, double east, TileVisitor visitor) {
+		final int precision = choosePrecision(south, west, north, east);
+		walk(precision, south, west, north, east, null, visitor);
+		return precision;
+	}
+
+	public synchronized void clear() {
+		for (TileMap level : levels) {
+			level.clear();
+		}
+		readings = 0;
+	}
+
+	public synchronized void writeTo(OutputStream stream) throws IOException {
+		final DataOutputStream out = new DataOutputStream(stream);
+		final TileMap finest = levels.get(MAX_PRECISION - MIN_PRECISION);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(finest.size());
+		for (int slot = 0; slot < finest.capacity(); slot++) {
+			final Tile tile = finest.tileAt(slot);
+			if (tile == null) continue;
+			out.writeLong(finest.keyAt(slot));
+			out.writeInt(tile.count);
+			out.writeLong(tile.sumPm25);
+			out.writeLong(tile.sumPm10);
+			out.writeShort(tile.maxPm25);
+			out.writeShort(tile.maxPm10);
+			out.writeLong(tile.latestTimestamp);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Merges the tiles of a written index into this one.
+	 */
+	public void readFrom(InputStream stream) throws IOException {
+		final DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MAGIC) throw new IOException("not a tile index");
+		final int version = in.readUnsignedShort();
+		if (version != VERSION) throw new IOException("unsupported version " + version);
+		final int tiles = in.readInt();
+		if (tiles < 0) throw new IOException("invalid tile count " + tiles);
+
+		for (int i = 0; i < tiles; i++) {
+			final long hash = in.readLong();
+			final int count = in.readInt();
+			final long sumPm25 = in.readLong();
+			final long sumPm10 = in.readLong();
+			final int maxPm25 = in.readUnsignedShort();
+			final int maxPm10 = in.readUnsignedShort();
+			final long latestTimestamp = in.readLong();
+			synchronized (this) {
+				for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+					getOrCreateTile(precision, Geohash.parent(hash, MAX_PRECISION, precision))
+							.add(count, sumPm25, sumPm10, maxPm25, maxPm10, latestTimestamp);
+				}
+				readings += count;
+			}
+		}
+	}
+
+	private Tile getOrCreateTile(int precision, long hash) {
+		return levels.get(precision - MIN_PRECISION).getOrCreate(hash);
+	}
+
+	/**
+	 * Hands the tiles of the area holding readings to the summary or the visitor, whichever is given.
+	 */
+	private void walk(int precision, double south, double west, double north, double east, Summary out, TileVisitor visitor) {
+		if (west > east) {
+			// across the antimeridian, one part on either side of it
+			walk(precision, south, west, north, 180, out, visitor);
+			walk(precision, south, -180, north, east, out, visitor);
+			return;
+		}
+
+		final TileMap level = levels.get(precision - MIN_PRECISION);
+		if (countCells(precision, south, west, north, east) > level.size()) {
+			// only reached for areas too large for the coarsest level, e.g. a zoomed out map
+			for (int slot = 0; slot < level.capacity(); slot++) {
+				final Tile tile = level.tileAt(slot);
+				if (tile == null) continue;
+				final long hash = level.keyAt(slot);
+				Geohash.bounds(hash, precision, cell);
+				if (cell[2] > south && cell[0] < north && cell[3] > west && cell[1] < east) accept(hash, precision, tile, out, visitor);
+			}
+			return;
+		}
+
+		final double height = Geohash.cellHeight(precision);
+		final double width = Geohash.cellWidth(precision);
+		for (double latitude = cellStart(south, -90, height); latitude < north; latitude += height) {
+			for (double longitude = cellStart(west, -180, width); longitude < east; longitude += width) {
+				final long hash = Geohash.encode(latitude + height / 2, longitude + width / 2, precision);
+				final Tile tile = level.get(hash);
+				if (tile != null) accept(hash, precision, tile, out, visitor);
+			}
+		}
+	}
+
+	private void accept(long hash, int precision, Tile tile, Summary out, TileVisitor visitor) {
+		if (out != null) {
+			out.tiles++;
+			out.count += tile.count;
+			out.sumPm25 += tile.sumPm25;
+			out.sumPm10 += tile.sumPm10;
+			out.maxPm25 = Math.max(out.maxPm25, tile.maxPm25);
+			out.maxPm10 = Math.max(out.maxPm10, tile.maxPm10);
+		} else {
+			Geohash.bounds(hash, precision, cell);
+			visitor.visitTile(cell[0], cell[1], cell[2], cell[3], tile.count, (float) tile.sumPm25 / tile.count, tile.maxPm25);
+		}
+	}
+
+	/**
+	 * @return the finest precision covering the area with at most {@link #MAX_QUERY_TILES} cells
+	 */
+	private static int choosePrecision(double south, double west, double north, double east) {
+		for (int precision = MAX_PRECISION; precision > MIN_PRECISION; precision--) {
+			if (countCells(precision, south, west, north, east) <= MAX_QUERY_TILES) return precision;
+		}
+		return MIN_PRECISION;
+	}
+
+	/**
+	 * @return the cells of a precision overlapping the area, or slightly more
+	 */
+	private static double countCells(int precision, double south, double west, double north, double east) {
+		final double rows = Math.floor((north - south) / Geohash.cellHeight(precision)) + 2;
+		if (west > east) {
+			// both parts may have a cell cut by the antimeridian
+			return rows * (Math.floor((east - west + 360) / Geohash.cellWidth(precision)) + 3);
+		}
+		return rows * (Math.floor((east - west) / Geohash.cellWidth(precision)) + 2);
+	}
+
+	/**
+	 * @return the edge of the cell holding the value, cells start at origin
+	 */
+	private static double cellStart(double value, double origin, double size) {
+		return origin + Math.floor((value - origin) / size) * size;
+	}
+}
@@ -0,0 +1,112 @@
+package com.ruyiso.pm25;
+
+/**
+ * Geohash cells as plain longs, for keying map tiles without allocating strings.
+ *
+ * A cell of n characters is the 5n bit interleaving of longitude and latitude bits, longitude first, so the
+ * cell containing another one is found by shifting its bits right. Precision 7 cells are about 150 m
+ * across at the equator, every character less makes them 4 to 8 times larger.
+ */
+public final class Geohash {
+	public static final int MAX_PRECISION = 12;
+
+	private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+	private Geohash() {
+	}
+
+	/**
+	 * @param precision characters, 1 to {@link #MAX_PRECISION}
+	 */
+	public static long encode(double latitude, double longitude, int precision) {
+		final int bits = precision * 5;
+		double minLat = -90, maxLat = 90;
+		double minLon = -180, maxLon = 180;
+		long hash = 0;
+		for (int i = 0; i < bits; i++) {
+			hash <<= 1;
+			if ((i & 1) == 0) {
+				double mid = (minLon + maxLon) / 2;
+				if (longitude >= mid) {
+					hash |= 1;
+					minLon = mid;
+				} else {
+					maxLon = mid;
+				}
+			} else {
+				double mid = (minLat + maxLat) / 2;
+				if (latitude >= mid) {
+					hash |= 1;
+					minLat = mid;
+				} else {
+					maxLat = mid;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the cell of lower precision containing the cell
+	 */
+	public static long parent(long hash, int precision, int parentPrecision) {
+		return hash >>> (5 * (precision - parentPrecision));
+	}
+
+	/**
+	 * @return the height of the cells of a precision in degrees
+	 */
+	public static double cellHeight(int precision) {
+		return 180.0 / (1L << (precision * 5 / 2));
+	}
+
+	/**
+	 * @return the width of the cells of a precision in degrees
+	 */
+	public static double cellWidth(int precision) {
+		return 360.0 / (1L << ((precision * 5 + 1) / 2));
+	}
+
+	/**
+	 * Writes the south, west, north and east edges of the cell to the array.
+	 */
+	public static void bounds(long hash, int precision, double[] out) {
+		final int bits = precision * 5;
+		double minLat = -90, maxLat = 90;
+		double minLon = -180, maxLon = 180;
+		for (int i = 0; i < bits; i++) {
+			final boolean set = ((hash >>> (bits - 1 - i)) & 1) != 0;
+			if ((i & 1) == 0) {
+				double mid = (minLon + maxLon) / 2;
+				if (set) {
+					minLon = mid;
+				} else {
+					maxLon = mid;
+				}
+			} else {
+				double mid = (minLat + maxLat) / 2;
+				if (set) {
+					minLat = mid;
+				} else {
+					maxLat = mid;
+				}
+			}
+		}
+		out[0] = minLat;
+		out[1] = minLon;
+		out[2] = maxLat;
+		out[3] = maxLon;
+	}
+
+	/**
+	 * @return the usual base 32 form, e.g. for logs and exports
+	 */
+	public static String toString(long hash, int precision) {
+		char[] chars = new char[precision];
+		for (int i = precision - 1; i >= 0; i--) {
+			chars[i] = BASE32[(int) (hash & 0x1f)];
+			hash >>>= 5;
+		}
+		return new String(chars);
+	}
+}
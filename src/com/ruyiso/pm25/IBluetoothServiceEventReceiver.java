@@ -5,5 +5,11 @@ public interface IBluetoothServiceEventReceiver {
 	public void bluetoothEnabled();
 	public void bluetoothDisabling();
 	public void bluetoothDisabled();
+	public void connectionStateChanged(final String address, final ConnectionState state);
 	public void connectedTo(final String name, final String address);
+	/**
+	 * Reports the latest reading of a sensor. Readings arriving faster than the main thread handles them
+	 * are merged, the complete series is in the connection's buffer and store.
+	 */
+	public void receivedReading(final String address, final int pm25, final int pm10);
 }
@@ -0,0 +1,111 @@
+package com.ruyiso.pm25;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with a bounded relative error, after HdrHistogram.
+ *
+ * Values below {@link #SUB_BUCKETS} get a bucket each. Above, every power of two is split into
+ * {@link #SUB_BUCKETS} / 2 linear buckets, so a value is reported within 1/32 of itself from 64 ns up to
+ * about a minute; larger values are counted in the last bucket. Recording finds the bucket with a leading
+ * zero count and increments it atomically, it neither locks nor allocates and may be called from any
+ * number of threads. Readers see a consistent count per bucket but may miss concurrent recordings.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+	/** values up to 2^36 ns, about 69 s, are resolved */
+	private static final int MAX_MAGNITUDE = 35;
+
+	public static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+
+		counts.incrementAndGet(bucketOf(nanos));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return the mean, 0 if nothing was recorded
+	 */
+	public long getMeanNanos() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : totalNanos.get() / count;
+	}
+
+	/**
+	 * @param percentile 0 to 100
+	 * @return the value below which the given share of the recordings lies, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += counts.get(i);
+		}
+		if (count == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(highestValueOf(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude > MAX_MAGNITUDE) return BUCKET_COUNT - 1;
+
+		// the top SUB_BUCKET_BITS bits of the value, the highest one always set
+		int shift = magnitude - SUB_BUCKET_BITS + 1;
+		int top = (int) (value >>> shift);
+		return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS + top - HALF_SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the largest value counted in the bucket
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+
+		int index = bucket - SUB_BUCKETS;
+		int shift = index / HALF_SUB_BUCKETS + 1;
+		long top = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
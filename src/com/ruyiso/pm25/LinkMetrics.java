@@ -0,0 +1,197 @@
+package com.ruyiso.pm25;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of one sensor link, to tell where the time goes when a sensor is slow.
+ *
+ * <ul>
+ * <li>connect: opening the transport, e.g. the RFCOMM socket connect</li>
+ * <li>round trip: a sample request being queued until a frame arrives, requests are matched to frames in
+ * order</li>
+ * <li>delivery: a frame being decoded until the reading reaches the main thread</li>
+ * </ul>
+ *
+ * Recording costs an atomic increment or two and never allocates, it is done on the hot paths of the
+ * connection threads. Values are kept for the lifetime of the connection, across reconnects.
+ */
+public final class LinkMetrics {
+	/** requests remembered for the round trip, further ones push out the oldest as unanswered */
+	private static final int MAX_PENDING_REQUESTS = 16;
+
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong framesReceived = new AtomicLong();
+	private final AtomicLong parseErrors = new AtomicLong();
+	private final AtomicLong requestsUnanswered = new AtomicLong();
+	private final AtomicLong streamStalls = new AtomicLong();
+
+	/** send times of the requests waiting for a frame, a ring */
+	private final long[] pendingRequests = new long[MAX_PENDING_REQUESTS];
+	private int pendingHead;
+	private int pendingCount;
+
+	public LatencyHistogram getConnectLatency() {
+		return connectLatency;
+	}
+
+	public LatencyHistogram getRoundTrip() {
+		return roundTrip;
+	}
+
+	public LatencyHistogram getDeliveryLatency() {
+		return deliveryLatency;
+	}
+
+	public long getConnects() {
+		return connects.get();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+
+	/**
+	 * @return frames rejected for a bad length or checksum
+	 */
+	public long getParseErrors() {
+		return parseErrors.get();
+	}
+
+	/**
+	 * @return requests no frame arrived for before the link was closed or too many others were sent
+	 */
+	public long getRequestsUnanswered() {
+		return requestsUnanswered.get();
+	}
+
+	/**
+	 * @return times a pushed stream stopped until the acks were repeated, see {@link SensorCapabilities}
+	 */
+	public long getStreamStalls() {
+		return streamStalls.get();
+	}
+
+	void onConnectSucceeded(long startNanos) {
+		connects.incrementAndGet();
+		connectLatency.record(System.nanoTime() - startNanos);
+	}
+
+	void onConnectFailed() {
+		connectFailures.incrementAndGet();
+	}
+
+	void onReconnect() {
+		reconnects.incrementAndGet();
+	}
+
+	void onBytesReceived(int count) {
+		bytesReceived.addAndGet(count);
+	}
+
+	void onParseErrors(long count) {
+		parseErrors.addAndGet(count);
+	}
+
+	synchronized void onRequestSent(long nanos) {
+		if (pendingCount == MAX_PENDING_REQUESTS) {
+			requestsUnanswered.incrementAndGet();
+			pendingHead = (pendingHead + 1) % MAX_PENDING_REQUESTS;
+			pendingCount--;
+		}
+		pendingRequests[(pendingHead + pendingCount) % MAX_PENDING_REQUESTS] = nanos;
+		pendingCount++;
+	}
+
+	/**
+	 * Takes back the latest {@link #onRequestSent(long)}, for a request that could not be queued after all.
+	 */
+	synchronized void onRequestNotSent() {
+		if (pendingCount > 0) pendingCount--;
+	}
+
+	void onFrame(long nanos) {
+		framesReceived.incrementAndGet();
+
+		long sent;
+		synchronized (this) {
+			// frames nobody asked for, e.g. sent by the sensor on its own, have no round trip
+			if (pendingCount == 0) return;
+			sent = pendingRequests[pendingHead];
+			pendingHead = (pendingHead + 1) % MAX_PENDING_REQUESTS;
+			pendingCount--;
+		}
+		roundTrip.record(nanos - sent);
+	}
+
+	void onStreamStalled() {
+		streamStalls.incrementAndGet();
+	}
+
+	void onDelivered(long frameNanos) {
+		deliveryLatency.record(System.nanoTime() - frameNanos);
+	}
+
+	/**
+	 * Requests still waiting when the link goes away are not answered any more.
+	 */
+	synchronized void onLinkClosed() {
+		requestsUnanswered.addAndGet(pendingCount);
+		pendingCount = 0;
+	}
+
+	/**
+	 * Appends a human readable summary, one value per line.
+	 */
+	public void appendReport(StringBuilder out) {
+		out.append("connects: ").append(getConnects())
+				.append(", failed: ").append(getConnectFailures())
+				.append(", reconnects: ").append(getReconnects()).append('\n');
+		out.append("bytes received: ").append(getBytesReceived()).append('\n');
+		out.append("frames received: ").append(getFramesReceived())
+				.append(", parse errors: ").append(getParseErrors()).append('\n');
+		out.append("requests unanswered: ").append(getRequestsUnanswered())
+				.append(", stream stalls: ").append(getStreamStalls()).append('\n');
+		appendHistogram(out, "connect", connectLatency);
+		appendHistogram(out, "round trip", roundTrip);
+		appendHistogram(out, "delivery", deliveryLatency);
+	}
+
+	private static void appendHistogram(StringBuilder out, String name, LatencyHistogram histogram) {
+		out.append(name).append(" ms (").append(histogram.getCount()).append("): ");
+		if (histogram.getCount() == 0) {
+			out.append("-\n");
+			return;
+		}
+		out.append("p50 ").append(toMs(histogram.getValueAtPercentile(50)))
+				.append(", p90 ").append(toMs(histogram.getValueAtPercentile(90)))
+				.append(", p99 ").append(toMs(histogram.getValueAtPercentile(99)))
+				.append(", max ").append(toMs(histogram.getMaxNanos()))
+				.append(", mean ").append(toMs(histogram.getMeanNanos())).append('\n');
+	}
+
+	private static String toMs(long nanos) {
+		char[] buffer = new char[FixedPointFormat.MAX_INTEGER_CHARS + 3];
+		int length = FixedPointFormat.format(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1), 2, buffer, 0);
+		return new String(buffer, 0, length);
+	}
+}
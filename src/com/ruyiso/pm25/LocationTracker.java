@@ -0,0 +1,166 @@
+package com.ruyiso.pm25;
+
+import java.util.List;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Follows the position of the phone for tagging the readings of all sensors.
+ *
+ * Listens to GPS and network positions, or only to the {@link MockLocationProvider} while mocking. Only
+ * the latest position is kept, readings get it if it is recent and accurate enough to place them in a
+ * {@link GeoTileIndex} tile, otherwise they stay untagged. Started and stopped on the main thread,
+ * positions are read by the reader threads.
+ */
+public final class LocationTracker implements LocationListener, GeoFix.Source {
+	private static final String TAG = "LocationTracker";
+
+	private static final long MIN_INTERVAL_MS = 1000;
+
+	/** readings further from the latest position in time are not tagged */
+	public static final long MAX_FIX_AGE_MS = 10000;
+
+	/** positions less accurate than this are not used, about a third of the finest tile */
+	public static final float MAX_ACCURACY_M = 50;
+
+	private final LocationManager locationManager;
+
+	private final MockLocationProvider mockProvider;
+
+	private volatile GeoFix latestFix;
+
+	private boolean running;
+
+	private boolean mocking;
+
+	public LocationTracker(LocationManager locationManager) {
+		this.locationManager = locationManager;
+		mockProvider = new MockLocationProvider(locationManager);
+	}
+
+	/**
+	 * @return false if no position provider could be listened to
+	 */
+	public boolean start() {
+		if (running) return true;
+
+		boolean listening = false;
+		if (mocking) {
+			listening = mockProvider.start() && requestUpdates(MockLocationProvider.PROVIDER);
+		} else {
+			List<String> providers = locationManager.getAllProviders();
+			if (providers != null && providers.contains(LocationManager.GPS_PROVIDER)) {
+				listening |= requestUpdates(LocationManager.GPS_PROVIDER);
+			}
+			if (providers != null && providers.contains(LocationManager.NETWORK_PROVIDER)) {
+				listening |= requestUpdates(LocationManager.NETWORK_PROVIDER);
+			}
+		}
+		if (!listening) {
+			Log.i(TAG, "no position provider, readings are stored without position");
+			locationManager.removeUpdates(this);
+			mockProvider.stop();
+			return false;
+		}
+		running = true;
+		return true;
+	}
+
+	public void stop() {
+		if (!running) return;
+
+		running = false;
+		locationManager.removeUpdates(this);
+		mockProvider.stop();
+		latestFix = null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @param mocking whether to take positions from the {@link MockLocationProvider} instead of the real ones
+	 * @return false if tracking was running but could not be restarted, mocking is then left off again
+	 */
+	public boolean setMocking(boolean mocking) {
+		if (mocking == this.mocking) return true;
+
+		this.mocking = mocking;
+		if (!running) return true;
+		stop();
+		if (start()) return true;
+
+		if (mocking) {
+			// back to the real positions rather than none
+			this.mocking = false;
+			start();
+		}
+		return false;
+	}
+
+	public boolean isMocking() {
+		return mocking;
+	}
+
+	/**
+	 * @return the latest position, null if there is none
+	 */
+	public GeoFix getLatestFix() {
+		return latestFix;
+	}
+
+	@Override
+	public GeoFix getFixAt(long timestamp) {
+		final GeoFix fix = latestFix;
+		if (fix == null || fix.getAccuracy() > MAX_ACCURACY_M) return null;
+		if (Math.abs(timestamp - fix.getTimestamp()) > MAX_FIX_AGE_MS) return null;
+		return fix;
+	}
+
+	private boolean requestUpdates(String provider) {
+		try {
+			locationManager.requestLocationUpdates(provider, MIN_INTERVAL_MS, 0, this);
+			return true;
+		} catch (SecurityException e) {
+			Log.e(TAG, "requesting " + provider + " positions err", e);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "requesting " + provider + " positions err", e);
+		}
+		return false;
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		long timestamp = location.getTime();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+			// GPS time may be off the phone clock the readings are stamped with
+			timestamp = System.currentTimeMillis() - (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+		}
+		final float accuracy = location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+
+		// a coarse network position does not replace a recent GPS one
+		final GeoFix current = latestFix;
+		if (current != null && accuracy > current.getAccuracy() && timestamp - current.getTimestamp() < MAX_FIX_AGE_MS / 2) return;
+
+		latestFix = new GeoFix(timestamp, location.getLatitude(), location.getLongitude(), accuracy);
+	}
+
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+	}
+
+	@Override
+	public void onProviderEnabled(String provider) {
+	}
+
+	@Override
+	public void onProviderDisabled(String provider) {
+	}
+}
@@ -0,0 +1,210 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory link to a {@link SimulatedSensor}, for running the protocol without bluetooth.
+ *
+ * Both directions are bounded pipes, so a reader that falls behind slows the sensor down just like a full
+ * RFCOMM buffer would. Nothing here depends on Android, the transport works on any JVM.
+ */
+public final class LoopbackTransport implements SensorTransport {
+	private static final int PIPE_CAPACITY = 4096;
+
+	/**
+	 * Serves the simulated sensors registered by address.
+	 */
+	public static final class Factory implements SensorTransport.Factory {
+		private final ConcurrentHashMap<String, SimulatedSensor> sensors = new ConcurrentHashMap<String, SimulatedSensor>();
+
+		public void addSensor(String address, SimulatedSensor sensor) {
+			sensors.put(address, sensor);
+		}
+
+		public SimulatedSensor getSensor(String address) {
+			return sensors.get(address);
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public String getDeviceName(String address) {
+			SimulatedSensor sensor = sensors.get(address);
+			return sensor == null ? null : sensor.getName();
+		}
+
+		@Override
+		public SensorTransport create(String address) throws IOException {
+			SimulatedSensor sensor = sensors.get(address);
+			if (sensor == null) throw new IOException("no simulated sensor at " + address);
+			return new LoopbackTransport(sensor);
+		}
+	}
+
+	private final SimulatedSensor sensor;
+
+	private final Pipe toSensor = new Pipe(PIPE_CAPACITY);
+	private final Pipe fromSensor = new Pipe(PIPE_CAPACITY);
+
+	private boolean opened;
+	private boolean closed;
+
+	public LoopbackTransport(SimulatedSensor sensor) {
+		this.sensor = sensor;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		if (closed) throw new IOException("transport closed");
+		if (opened) return;
+
+		opened = true;
+		sensor.connect(toSensor.getInputStream(), fromSensor.getOutputStream());
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (!opened) throw new IOException("transport not open");
+		return fromSensor.getInputStream();
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (!opened) throw new IOException("transport not open");
+		return toSensor.getOutputStream();
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		// the sensor notices the closed pipes and drops the session
+		toSensor.close();
+		fromSensor.close();
+	}
+
+	/**
+	 * Bounded byte queue between one writing and one reading thread. Closing either end makes reads
+	 * return end of stream once drained and writes fail.
+	 */
+	static final class Pipe {
+		private final byte[] buffer;
+
+		private int head;
+		private int size;
+		private boolean closed;
+
+		private final InputStream inputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				return Pipe.this.available();
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		private final OutputStream outputStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		InputStream getInputStream() {
+			return inputStream;
+		}
+
+		OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		private synchronized int available() {
+			return size;
+		}
+
+		private synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+
+			while (size == 0) {
+				if (closed) return -1;
+				waitInterruptibly();
+			}
+
+			final int count = Math.min(len, size);
+			final int first = Math.min(count, buffer.length - head);
+			System.arraycopy(buffer, head, b, off, first);
+			System.arraycopy(buffer, 0, b, off + first, count - first);
+			head = (head + count) % buffer.length;
+			size -= count;
+
+			notifyAll();
+			return count;
+		}
+
+		private synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (size == buffer.length && !closed) {
+					waitInterruptibly();
+				}
+				if (closed) throw new IOException("pipe closed");
+
+				final int tail = (head + size) % buffer.length;
+				final int count = Math.min(len, Math.min(buffer.length - size, buffer.length - tail));
+				System.arraycopy(b, off, buffer, tail, count);
+				size += count;
+				off += count;
+				len -= count;
+
+				notifyAll();
+			}
+		}
+
+		private void waitInterruptibly() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting on pipe");
+			}
+		}
+	}
+}
@@ -1,39 +1,86 @@
 package com.ruyiso.pm25;
 
-import java.text.DecimalFormat;
-
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.bluetooth.BluetoothAdapter;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.text.InputType;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class MainActivity extends Activity implements SensorEventListener, IBluetoothServiceEventReceiver{
-	private static final DecimalFormat df = new DecimalFormat("0.00");
+public class MainActivity extends Activity implements IBluetoothServiceEventReceiver{
+	private static final long SAMPLING_PERIOD_1HZ = 1000;
+	private static final long SAMPLING_PERIOD_10HZ = 100;
+	private static final long SAMPLING_ADAPTIVE = SensorConnection.SAMPLING_ADAPTIVE;
 	
-	private SensorManager sensorManager;
+	private TextView state_textView;
+	private TextView target_textView;
+	private TextView motion_textView;
 	
-	private TextView pm25_textView;
-	private TextView pm10_textView;
+	/** shown in motion_textView, only changes are drawn */
+	private int displayedMotion = -1;
 	
-	float lastPm25 = 0;
-	float lastPm10 = 0;
+	private DashboardRenderer dashboard;
 	
-	private PowerManager.WakeLock wakeLock;
+	/** reused for the target line, which TextView copies */
+	private final StringBuilder targetText = new StringBuilder();
 	
 	private Button button_inquiry;
 	
+	/** owned by the acquisition service, null while not bound */
+	private AcquisitionService acquisitionService;
+	private BluetoothService bluetoothService;
+	
+	/** the sensor whose readings are shown, the one selected last */
+	private String displayedAddress;
+	
+	/** selected while the service was not bound yet */
+	private String pendingConnectAddress;
+	
+	private boolean bluetoothEnableRequested;
+	
+	private SessionExporter sessionExporter;
+	
+	private final SessionExporter.Listener exportListener = new SessionExporter.Listener() {
+		@Override
+		public void exportFinished(String location, long readings) {
+			if (readings < 0) {
+				Toast.makeText(MainActivity.this, R.string.export_failed, Toast.LENGTH_LONG).show();
+			} else {
+				Toast.makeText(MainActivity.this, getString(R.string.export_finished, readings, location), Toast.LENGTH_LONG).show();
+			}
+		}
+	};
+	
+	private final ServiceConnection acquisitionConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			acquisitionService = ((AcquisitionService.LocalBinder) binder).getService();
+			bluetoothService = acquisitionService.getBluetoothService();
+			acquisitionService.setClient(MainActivity.this);
+			onAcquisitionServiceBound();
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			acquisitionService = null;
+			bluetoothService = null;
+		}
+	};
+	
 	@SuppressWarnings("deprecation")
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -41,16 +88,17 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 		
 		setContentView(R.layout.main);
 		
-		pm25_textView = (TextView) findViewById(R.id.textViewPm25);
-		pm10_textView = (TextView) findViewById(R.id.textViewPm10);
-		
-		sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-		
-		final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		state_textView = (TextView) findViewById(R.id.textViewState);
+		target_textView = (TextView) findViewById(R.id.textViewTarget);
+		dashboard = new DashboardRenderer(
+				(TextView) findViewById(R.id.textViewPm25),
+				(TextView) findViewById(R.id.textViewPm10),
+				(TextView) findViewById(R.id.textViewPm25Hour),
+				(TextView) findViewById(R.id.textViewAqiDay),
+				(ChartView) findViewById(R.id.chart));
 		
-		wakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE, "do_not_turn_off");
-		
-		BluetoothService.initialize(getApplicationContext(), this);
+		motion_textView = (TextView) findViewById(R.id.textViewMotion);
+		sessionExporter = new SessionExporter(getApplicationContext(), new Handler());
 		
 		button_inquiry = (Button) findViewById(R.id.button_inquiry);
 		button_inquiry.setOnClickListener(new View.OnClickListener() {
@@ -65,55 +113,71 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 	@Override
 	protected void onStart() {
 		super.onStart();
-		if (!BluetoothService.requestEnableBluetooth(this)) {
-			bluetoothEnabled();
-		}
-	}
-	
-	@Override
-	protected void onResume() {
-		super.onResume();
-		wakeLock.acquire();
-		BluetoothService.registerBroadcastReceiver(this);
+		// acquisition goes on in the service after the activity is gone, it is only stopped from the menu
+		Intent intent = new Intent(this, AcquisitionService.class);
+		startService(intent);
+		bindService(intent, acquisitionConnection, Context.BIND_AUTO_CREATE);
 	}
 	
 	@Override
-	protected void onPause() {
-		super.onPause();
-		wakeLock.release();
-		BluetoothService.unregisterBroadcastReceiver(this);
-		BluetoothService.disconnect();
+	protected void onStop() {
+		super.onStop();
+		if (acquisitionService != null) acquisitionService.setClient(null);
+		unbindService(acquisitionConnection);
+		acquisitionService = null;
+		bluetoothService = null;
 	}
 	
-	@Override
-	public void onSensorChanged(SensorEvent sensorEvent) {
-		return;
+	private void onAcquisitionServiceBound() {
+		if (pendingConnectAddress != null) {
+			displayedAddress = pendingConnectAddress;
+			bluetoothService.connectToDevice(pendingConnectAddress);
+			pendingConnectAddress = null;
+		}
+		
+		// show the sensor that kept running while the activity was gone
+		if (displayedAddress == null) {
+			for (SensorConnection connection : bluetoothService.getConnections()) {
+				displayedAddress = connection.getAddress();
+				break;
+			}
+		}
+		SensorConnection displayed = displayedAddress == null ? null : bluetoothService.getConnection(displayedAddress);
+		if (displayed != null) {
+			connectionStateChanged(displayedAddress, displayed.getConnectionState());
+			if (displayed.isConnected()) connectedTo(displayed.getName(), displayedAddress);
+		}
+		
+		if (bluetoothService.bluetoothEnabled()) {
+			bluetoothEnabled();
+		} else if (!bluetoothEnableRequested) {
+			// only asked once, declining must not bring the dialog back on every bind
+			bluetoothEnableRequested = bluetoothService.requestEnableBluetooth(this);
+		}
 	}
 	
 	@Override
 	public void bluetoothEnabling() {
-		((TextView) findViewById(R.id.textViewState)).setText(R.string.value_enabling);
+		state_textView.setText(R.string.value_enabling);
 	}
 	
 	@Override
 	public void bluetoothEnabled() {
 		Toast.makeText(this, R.string.bluetooth_enabled, Toast.LENGTH_SHORT).show();
 		
-		((TextView) findViewById(R.id.textViewState)).setText(R.string.value_enabled);
+		state_textView.setText(R.string.value_enabled);
 		
-		startSearchDeviceIntent();
+		// only go through discovery if there is no known device to go back to
+		if (!bluetoothService.reconnectKnownDevices()) {
+			startSearchDeviceIntent();
+		}
 	}
 	
 	public void inquiryPM25() {
-		if (BluetoothService.isConnected()) {
-			BluetoothService.sendToTarget("t");
-			String message = BluetoothService.receiveFromTarget();
-			pm25_textView.setText(message);
-			BluetoothService.sendToTarget("ok");
-		}
-		else
+		// the reply arrives asynchronously through receivedReading()
+		if (bluetoothService == null || !bluetoothService.requestSample())
 		{
-			pm25_textView.setText(R.string.value_na);
+			dashboard.clear();
 		}
 	}
 	
@@ -125,7 +189,7 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 	@Override
 	public void bluetoothDisabling() {
 		// TODO Auto-generated method stub
-		((TextView) findViewById(R.id.textViewState)).setText(R.string.value_disabling);
+		state_textView.setText(R.string.value_disabling);
 	}
 
 	@Override
@@ -133,30 +197,67 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 		// TODO Auto-generated method stub
 		Toast.makeText(this, R.string.bluetooth_not_enabled, Toast.LENGTH_SHORT).show();
 		
-		((TextView) findViewById(R.id.textViewState)).setText(R.string.value_disabled);
-		((TextView) findViewById(R.id.textViewTarget)).setText(R.string.value_na);
+		state_textView.setText(R.string.value_disabled);
+		target_textView.setText(R.string.value_na);
 		
-		((TextView) findViewById(R.id.textViewPm10)).setText(R.string.value_na);
-		((TextView) findViewById(R.id.textViewPm25)).setText(R.string.value_na);
+		dashboard.clear();
+	}
+
+	@Override
+	public void connectionStateChanged(String address, ConnectionState state) {
+		if (displayedAddress == null) displayedAddress = address;
+		if (!address.equals(displayedAddress)) return;
+		
+		int text;
+		switch (state) {
+		case CONNECTING:
+			text = R.string.value_connecting;
+			break;
+		case CONNECTED:
+			text = R.string.value_connected;
+			break;
+		case FAILED:
+			text = R.string.value_connect_failed;
+			target_textView.setText(R.string.value_na);
+			break;
+		case DISCONNECTING:
+			text = R.string.value_disconnecting;
+			break;
+		default:
+			text = R.string.value_idle;
+			break;
+		}
+		state_textView.setText(text);
 	}
 
 	@Override
 	public void connectedTo(String name, String address) {
-		// TODO Auto-generated method stub
-		((TextView) findViewById(R.id.textViewTarget)).setText(name + " (" + address + ")");
+		if (!address.equals(displayedAddress)) return;
+		
+		targetText.setLength(0);
+		targetText.append(name).append(" (").append(address).append(')');
+		target_textView.setText(targetText);
 	}
 
 	@Override
-	public void onAccuracyChanged(Sensor arg0, int arg1) {
-		// TODO Auto-generated method stub
+	public void receivedReading(String address, int pm25, int pm10) {
+		if (!address.equals(displayedAddress)) return;
 		
+		// only recorded here, the dashboard draws once per frame
+		dashboard.setReading(bluetoothService.getConnection(address), pm25, pm10);
+		
+		int motion = acquisitionService.getMotionTimeline().getLatestMotion();
+		if (motion != displayedMotion) {
+			displayedMotion = motion;
+			motion_textView.setText(getResources().getStringArray(R.array.motion_classes)[motion]);
+		}
 	}
 	
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		switch (requestCode) {
 		case IntentRequestCodes.BT_REQUEST_ENABLE: {
-			if (BluetoothService.bluetoothEnabled()) {
+			if (bluetoothService != null && bluetoothService.bluetoothEnabled()) {
 				bluetoothEnabled();
 			}
 			break;
@@ -164,7 +265,13 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 		case IntentRequestCodes.BT_SELECT_DEVICE: {
 			if (resultCode == Activity.RESULT_OK) {
 				String address = data.getExtras().getString(DeviceListActivity.EXTRAC_DEVICE_ADDRESS);
-				BluetoothService.connectToDevice(address);
+				// results are delivered before the activity is started again, the service may not be bound yet
+				if (bluetoothService == null) {
+					pendingConnectAddress = address;
+				} else {
+					displayedAddress = address;
+					bluetoothService.connectToDevice(address);
+				}
 			}
 		}
 		default: {
@@ -174,9 +281,32 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 		}
 	}
 	
+	private void showUploadEndpointDialog() {
+		final UploadManager uploadManager = acquisitionService.getUploadManager();
+		final EditText input = new EditText(this);
+		input.setSingleLine();
+		input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+		input.setHint(R.string.upload_endpoint_hint);
+		input.setText(uploadManager.getEndpoint());
+		
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.upload_endpoint)
+				.setView(input)
+				.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						if (!uploadManager.setEndpoint(input.getText().toString().trim())) {
+							Toast.makeText(MainActivity.this, R.string.upload_endpoint_invalid, Toast.LENGTH_LONG).show();
+						}
+					}
+				})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
+	}
+	
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
-		if (BluetoothService.bluetoothAvailable()) {
+		if (BluetoothAdapter.getDefaultAdapter() != null) {
 			MenuInflater inflater = getMenuInflater();
 			inflater.inflate(R.menu.option_menu, menu);
 			return true;
@@ -184,12 +314,97 @@ public class MainActivity extends Activity implements SensorEventListener, IBlue
 		return super.onCreateOptionsMenu(menu);
 	}
 	
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		MenuItem sampling = menu.findItem(R.id.sampling_off);
+		if (sampling == null || bluetoothService == null) return super.onPrepareOptionsMenu(menu);
+		
+		long periodMs = bluetoothService.getSamplingPeriod();
+		if (periodMs == SAMPLING_PERIOD_1HZ) {
+			sampling = menu.findItem(R.id.sampling_1hz);
+		} else if (periodMs == SAMPLING_PERIOD_10HZ) {
+			sampling = menu.findItem(R.id.sampling_10hz);
+		} else if (periodMs == SAMPLING_ADAPTIVE) {
+			sampling = menu.findItem(R.id.sampling_adaptive);
+		}
+		sampling.setChecked(true);
+		
+		MenuItem capture = menu.findItem(R.id.capture);
+		if (capture != null) capture.setChecked(bluetoothService.isCapturing());
+		
+		MenuItem mockLocation = menu.findItem(R.id.mock_location);
+		if (mockLocation != null && acquisitionService != null) {
+			mockLocation.setChecked(acquisitionService.getLocationTracker().isMocking());
+		}
+		return true;
+	}
+	
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
+		if (acquisitionService == null) return false;
+		
 		switch (item.getItemId()) {
+		case R.id.forget_devices:
+			bluetoothService.forgetDevices();
+			displayedAddress = null;
+			dashboard.clear();
+			return true;
+		case R.id.export_files:
+		case R.id.export_socket: {
+			SensorConnection displayed = displayedAddress == null ? null : bluetoothService.getConnection(displayedAddress);
+			if (displayed == null || displayed.getStore() == null) {
+				Toast.makeText(this, R.string.export_nothing, Toast.LENGTH_SHORT).show();
+			} else if (item.getItemId() == R.id.export_files) {
+				sessionExporter.exportToFiles(displayed, exportListener);
+			} else if (sessionExporter.streamToLocalSocket(displayed, exportListener)) {
+				Toast.makeText(this, getString(R.string.export_waiting, SessionExporter.SOCKET_NAME), Toast.LENGTH_LONG).show();
+			}
+			return true;
+		}
+		case R.id.upload_endpoint:
+			showUploadEndpointDialog();
+			return true;
+		case R.id.diagnostics:
+			startActivity(new Intent(this, DiagnosticsActivity.class));
+			return true;
+		case R.id.capture:
+			bluetoothService.setCapturing(!bluetoothService.isCapturing());
+			item.setChecked(bluetoothService.isCapturing());
+			if (bluetoothService.isCapturing()) {
+				Toast.makeText(this, getString(R.string.capture_started, bluetoothService.getCaptureDirectory()), Toast.LENGTH_LONG).show();
+			}
+			return true;
+		case R.id.mock_location: {
+			LocationTracker locationTracker = acquisitionService.getLocationTracker();
+			if (!locationTracker.setMocking(!locationTracker.isMocking())) {
+				Toast.makeText(this, R.string.mock_location_denied, Toast.LENGTH_LONG).show();
+			}
+			item.setChecked(locationTracker.isMocking());
+			return true;
+		}
+		case R.id.stop_logging:
+			acquisitionService.stopAcquisition();
+			finish();
+			return true;
+		case R.id.sampling_off:
+			bluetoothService.setSamplingPeriod(0);
+			item.setChecked(true);
+			return true;
+		case R.id.sampling_1hz:
+			bluetoothService.setSamplingPeriod(SAMPLING_PERIOD_1HZ);
+			item.setChecked(true);
+			return true;
+		case R.id.sampling_10hz:
+			bluetoothService.setSamplingPeriod(SAMPLING_PERIOD_10HZ);
+			item.setChecked(true);
+			return true;
+		case R.id.sampling_adaptive:
+			bluetoothService.setSamplingPeriod(SAMPLING_ADAPTIVE);
+			item.setChecked(true);
+			return true;
 		case R.id.scan:
-			if (!BluetoothService.bluetoothEnabled()) {
-				BluetoothService.requestEnableBluetooth(this);
+			if (!bluetoothService.bluetoothEnabled()) {
+				bluetoothService.requestEnableBluetooth(this);
 				return true;
 			}
 			startSearchDeviceIntent();
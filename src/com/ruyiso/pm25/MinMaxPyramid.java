@@ -0,0 +1,169 @@
+package com.ruyiso.pm25;
+
+import java.util.Arrays;
+
+/**
+ * Level of detail history for charts: minimum and maximum of PM2.5 and PM10 per time bucket at several
+ * resolutions.
+ *
+ * Level 0 has buckets of {@link #FINEST_BUCKET_MS}, every further level is {@link #LEVEL_FACTOR} times
+ * coarser. Each level is a ring of {@link #BUCKETS_PER_LEVEL} buckets addressed by the absolute bucket
+ * number, so fine levels cover the last minutes and coarse ones months. Samples may arrive in any order,
+ * e.g. live ones while the store is still being loaded; a sample only lands in the buckets that still
+ * cover its time.
+ *
+ * {@link #query(long, long, int, Columns)} picks the finest level with at most {@link #LEVEL_FACTOR}
+ * buckets per column that still reaches back to the start of the range, so its cost depends on the
+ * number of columns only, not on the number of samples in the range.
+ */
+public final class MinMaxPyramid {
+	public static final long FINEST_BUCKET_MS = 100;
+	public static final int LEVEL_FACTOR = 4;
+	public static final int LEVELS = 9;
+	/** the finest level covers about 7 minutes, the coarsest about 10 months */
+	public static final int BUCKETS_PER_LEVEL = 4096;
+
+	private static final int MASK = BUCKETS_PER_LEVEL - 1;
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	/**
+	 * Per column extremes filled by a query, NaN for columns without samples.
+	 */
+	public static final class Columns {
+		public final float[] minPm25;
+		public final float[] maxPm25;
+		public final float[] minPm10;
+		public final float[] maxPm10;
+
+		public Columns(int capacity) {
+			minPm25 = new float[capacity];
+			maxPm25 = new float[capacity];
+			minPm10 = new float[capacity];
+			maxPm10 = new float[capacity];
+		}
+
+		public int getCapacity() {
+			return minPm25.length;
+		}
+	}
+
+	private final long[] bucketMs = new long[LEVELS];
+
+	/** absolute bucket number held by each slot, {@link #EMPTY} if none */
+	private final long[][] numbers = new long[LEVELS][BUCKETS_PER_LEVEL];
+	private final float[][] minsPm25 = new float[LEVELS][BUCKETS_PER_LEVEL];
+	private final float[][] maxsPm25 = new float[LEVELS][BUCKETS_PER_LEVEL];
+	private final float[][] minsPm10 = new float[LEVELS][BUCKETS_PER_LEVEL];
+	private final float[][] maxsPm10 = new float[LEVELS][BUCKETS_PER_LEVEL];
+
+	/** newest bucket number per level */
+	private final long[] newest = new long[LEVELS];
+
+	public MinMaxPyramid() {
+		long width = FINEST_BUCKET_MS;
+		for (int level = 0; level < LEVELS; level++) {
+			bucketMs[level] = width;
+			width *= LEVEL_FACTOR;
+		}
+		clear();
+	}
+
+	public synchronized void clear() {
+		for (int level = 0; level < LEVELS; level++) {
+			Arrays.fill(numbers[level], EMPTY);
+			newest[level] = EMPTY;
+		}
+	}
+
+	public synchronized void add(long timestamp, float pm25, float pm10) {
+		for (int level = 0; level < LEVELS; level++) {
+			final long number = floorDiv(timestamp, bucketMs[level]);
+			// the ring of this level has already moved past the bucket
+			if (newest[level] != EMPTY && number <= newest[level] - BUCKETS_PER_LEVEL) continue;
+
+			final int slot = (int) (number & MASK);
+			final long[] levelNumbers = numbers[level];
+			if (levelNumbers[slot] != number) {
+				levelNumbers[slot] = number;
+				minsPm25[level][slot] = maxsPm25[level][slot] = pm25;
+				minsPm10[level][slot] = maxsPm10[level][slot] = pm10;
+				if (number > newest[level]) newest[level] = number;
+				continue;
+			}
+
+			if (pm25 < minsPm25[level][slot]) minsPm25[level][slot] = pm25;
+			if (pm25 > maxsPm25[level][slot]) maxsPm25[level][slot] = pm25;
+			if (pm10 < minsPm10[level][slot]) minsPm10[level][slot] = pm10;
+			if (pm10 > maxsPm10[level][slot]) maxsPm10[level][slot] = pm10;
+		}
+	}
+
+	/**
+	 * @return time of the newest sample's bucket, {@link Long#MIN_VALUE} if there is none
+	 */
+	public synchronized long getNewestTime() {
+		return newest[0] == EMPTY ? Long.MIN_VALUE : newest[0] * bucketMs[0];
+	}
+
+	/**
+	 * Splits [start, end) into equally long columns and fills in the extremes of each.
+	 *
+	 * @return the width in ms of the buckets used, larger than a column if the range goes back further
+	 * than the fine levels do
+	 */
+	public synchronized long query(long start, long end, int columnCount, Columns out) {
+		if (columnCount <= 0 || columnCount > out.getCapacity()) throw new IllegalArgumentException("invalid column count " + columnCount);
+		if (end <= start) throw new IllegalArgumentException("empty range");
+
+		Arrays.fill(out.minPm25, 0, columnCount, Float.NaN);
+		Arrays.fill(out.maxPm25, 0, columnCount, Float.NaN);
+		Arrays.fill(out.minPm10, 0, columnCount, Float.NaN);
+		Arrays.fill(out.maxPm10, 0, columnCount, Float.NaN);
+
+		final double columnMs = (double) (end - start) / columnCount;
+		final int level = selectLevel(start, columnMs);
+		final long width = bucketMs[level];
+		if (newest[level] == EMPTY) return width;
+
+		final long first = Math.max(floorDiv(start, width), newest[level] - BUCKETS_PER_LEVEL + 1);
+		final long last = Math.min(floorDiv(end - 1, width), newest[level]);
+		final long[] levelNumbers = numbers[level];
+
+		for (long number = first; number <= last; number++) {
+			final int slot = (int) (number & MASK);
+			if (levelNumbers[slot] != number) continue;
+
+			// buckets straddling a column boundary count for the column holding their middle
+			long middle = number * width + width / 2;
+			int column = (int) ((middle - start) / columnMs);
+			if (column < 0) column = 0;
+			if (column >= columnCount) column = columnCount - 1;
+
+			merge(out.minPm25, out.maxPm25, column, minsPm25[level][slot], maxsPm25[level][slot]);
+			merge(out.minPm10, out.maxPm10, column, minsPm10[level][slot], maxsPm10[level][slot]);
+		}
+		return width;
+	}
+
+	private int selectLevel(long start, double columnMs) {
+		for (int level = 0; level < LEVELS; level++) {
+			// at most LEVEL_FACTOR buckets per column, the next finer level would have more
+			if (bucketMs[level] * LEVEL_FACTOR < columnMs) continue;
+			// the level must still hold the start of the range
+			if (newest[level] != EMPTY && floorDiv(start, bucketMs[level]) <= newest[level] - BUCKETS_PER_LEVEL) continue;
+			return level;
+		}
+		return LEVELS - 1;
+	}
+
+	private static void merge(float[] mins, float[] maxs, int column, float min, float max) {
+		// NaN marks an empty column, comparisons with it are false
+		if (!(mins[column] <= min)) mins[column] = min;
+		if (!(maxs[column] >= max)) maxs[column] = max;
+	}
+
+	private static long floorDiv(long value, long divisor) {
+		long quotient = value / divisor;
+		return value < 0 && quotient * divisor != value ? quotient - 1 : quotient;
+	}
+}
@@ -0,0 +1,143 @@
+package com.ruyiso.pm25;
+
+import java.util.Random;
+
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Walks the phone around from People's Square in Shanghai, for testing the geotagging without going out.
+ *
+ * Positions are reported by an Android test provider named {@link #PROVIDER} once a second. The walk
+ * starts at the same place and takes the same turns every time, so together with a
+ * {@link SimulatedSensor} or a replayed capture it fills the same tiles on every run. Android only
+ * accepts test providers from apps selected for mock locations in the developer options.
+ */
+public final class MockLocationProvider {
+	private static final String TAG = "MockLocationProvider";
+
+	public static final String PROVIDER = "pm25-mock";
+
+	private static final long INTERVAL_MS = 1000;
+
+	private static final double START_LATITUDE = 31.2304;
+	private static final double START_LONGITUDE = 121.4737;
+
+	/** walking pace, in m/s */
+	private static final double SPEED = 1.4;
+
+	private static final float ACCURACY_M = 8;
+
+	private static final long SEED = 25;
+
+	private static final double METERS_PER_DEGREE = 111320;
+
+	private final LocationManager locationManager;
+
+	private final Handler handler = new Handler();
+
+	private final Runnable tick = new Runnable() {
+		@Override
+		public void run() {
+			step();
+			publish();
+			handler.postDelayed(this, INTERVAL_MS);
+		}
+	};
+
+	private Random random;
+	private double latitude;
+	private double longitude;
+	/** radians clockwise from north */
+	private double heading;
+
+	private boolean running;
+
+	public MockLocationProvider(LocationManager locationManager) {
+		this.locationManager = locationManager;
+	}
+
+	/**
+	 * Installs the test provider and starts walking, must be called on the main thread.
+	 *
+	 * @return false if the app may not mock locations
+	 */
+	public boolean start() {
+		if (running) return true;
+
+		try {
+			locationManager.addTestProvider(PROVIDER, false, false, false, false, true, true, true, Criteria.POWER_LOW, Criteria.ACCURACY_FINE);
+			locationManager.setTestProviderEnabled(PROVIDER, true);
+		} catch (SecurityException e) {
+			Log.e(TAG, "mock locations are not allowed for this app, select it in the developer options", e);
+			return false;
+		} catch (IllegalArgumentException e) {
+			// left over from a previous run that was killed
+			Log.i(TAG, "test provider already installed");
+		}
+
+		random = new Random(SEED);
+		latitude = START_LATITUDE;
+		longitude = START_LONGITUDE;
+		heading = 0;
+		running = true;
+		handler.post(tick);
+		return true;
+	}
+
+	public void stop() {
+		if (!running) return;
+
+		running = false;
+		handler.removeCallbacks(tick);
+		try {
+			locationManager.removeTestProvider(PROVIDER);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "removing test provider err", e);
+		} catch (SecurityException e) {
+			Log.e(TAG, "removing test provider err", e);
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Walks on for one interval, mostly straight ahead with a turn at a corner now and then.
+	 */
+	private void step() {
+		if (random.nextInt(60) == 0) {
+			heading += random.nextBoolean() ? Math.PI / 2 : -Math.PI / 2;
+		} else {
+			heading += random.nextGaussian() * 0.05;
+		}
+		final double distance = SPEED * INTERVAL_MS / 1000;
+		latitude += distance * Math.cos(heading) / METERS_PER_DEGREE;
+		longitude += distance * Math.sin(heading) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+	}
+
+	private void publish() {
+		Location location = new Location(PROVIDER);
+		location.setLatitude(latitude);
+		location.setLongitude(longitude);
+		location.setAccuracy(ACCURACY_M);
+		location.setTime(System.currentTimeMillis());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+			// locations without it are rejected as incomplete from Jelly Bean MR1 on
+			location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+		}
+		try {
+			locationManager.setTestProviderLocation(PROVIDER, location);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "setting mock location err", e);
+		} catch (SecurityException e) {
+			Log.e(TAG, "setting mock location err", e);
+		}
+	}
+}
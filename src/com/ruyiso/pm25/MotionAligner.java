@@ -0,0 +1,98 @@
+package com.ruyiso.pm25;
+
+/**
+ * Holds back readings until the motion at their time is known, then passes them on with the motion
+ * class in their flags.
+ *
+ * Motion windows arrive batched, seconds after the readings they belong to. Rather than keeping the
+ * accelerometer samples around, the few readings of that time are kept here, only a window's class is
+ * kept in the {@link MotionTimeline}. Readings waiting longer than the maximum delay are passed on with
+ * whatever is known by then. Used by the reader thread of one connection, only the timeline may be set
+ * from other threads.
+ */
+public final class MotionAligner {
+	public interface Sink {
+		public void onAligned(long timestamp, int pm25, int pm10, int flags);
+	}
+
+	private final Sink sink;
+	private final long maxDelayMs;
+
+	private final long[] timestamps;
+	private final int[] pm25;
+	private final int[] pm10;
+	private final int[] flags;
+	private int head;
+	private int size;
+
+	private volatile MotionTimeline timeline;
+
+	/**
+	 * @param capacity readings held at most, further ones push out the oldest
+	 */
+	public MotionAligner(Sink sink, int capacity, long maxDelayMs) {
+		this.sink = sink;
+		this.maxDelayMs = maxDelayMs;
+		timestamps = new long[capacity];
+		pm25 = new int[capacity];
+		pm10 = new int[capacity];
+		flags = new int[capacity];
+	}
+
+	/**
+	 * @param timeline where motion comes from, null passes readings on right away without motion
+	 */
+	public void setTimeline(MotionTimeline timeline) {
+		this.timeline = timeline;
+	}
+
+	public int getPending() {
+		return size;
+	}
+
+	/**
+	 * Adds a reading and passes on all readings that can be matched up by now.
+	 *
+	 * @param flags stored with the reading besides the motion, outside {@link MotionTimeline#MOTION_MASK}
+	 */
+	public void add(long timestamp, int pm25, int pm10, int flags) {
+		if (size == timestamps.length) {
+			emit(head, timeline == null ? MotionTimeline.MOTION_UNKNOWN : timeline.getMotionAt(timestamps[head]));
+			head = (head + 1) % timestamps.length;
+			size--;
+		}
+		final int index = (head + size) % timestamps.length;
+		timestamps[index] = timestamp;
+		this.pm25[index] = pm25;
+		this.pm10[index] = pm10;
+		this.flags[index] = flags & ~MotionTimeline.MOTION_MASK;
+		size++;
+
+		drain(timestamp, false);
+	}
+
+	/**
+	 * Passes on the readings that can be matched up by now.
+	 *
+	 * @param all also the ones whose motion is not known yet, e.g. when the link closes
+	 */
+	public void drain(long now, boolean all) {
+		if (size == 0) return;
+
+		final MotionTimeline current = timeline;
+		final long coveredUntil = current == null ? Long.MAX_VALUE : current.getCoveredUntil();
+		while (size > 0) {
+			final long timestamp = timestamps[head];
+			// a clock set back leaves readings in the future, they are not held up either
+			if (!all && timestamp >= coveredUntil && now - timestamp < maxDelayMs && timestamp <= now) break;
+
+			emit(head, current == null ? MotionTimeline.MOTION_UNKNOWN : current.getMotionAt(timestamp));
+			head = (head + 1) % timestamps.length;
+			size--;
+		}
+	}
+
+	private void emit(int index, int motion) {
+		sink.onAligned(timestamps[index], pm25[index], pm10[index], flags[index] | (motion & MotionTimeline.MOTION_MASK));
+	}
+}
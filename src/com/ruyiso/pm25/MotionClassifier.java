@@ -0,0 +1,127 @@
+package com.ruyiso.pm25;
+
+/**
+ * Reduces accelerometer samples to a motion class per window of {@link #WINDOW_MS}, as they arrive.
+ *
+ * Only running sums are kept, no samples: per window the deviation of the acceleration magnitude and the
+ * cadence of its swings around a slowly following baseline. Gravity drops out of the deviation, so the
+ * orientation of the phone does not matter.
+ * <ul>
+ * <li>stationary: the magnitude hardly varies, e.g. lying on a table or in a bag at rest</li>
+ * <li>walking: large swings at step cadence, running included</li>
+ * <li>vehicle: everything else that moves, vibration without step cadence</li>
+ * </ul>
+ * A window with too few samples, e.g. across a gap in the delivery, is not classified.
+ */
+public final class MotionClassifier {
+	public interface Listener {
+		/**
+		 * @param motion one of the {@link MotionTimeline} motion classes
+		 */
+		public void onWindow(long startMs, long endMs, int motion, float deviation, float cadenceHz);
+	}
+
+	public static final long WINDOW_MS = 2000;
+
+	/** below this standard deviation of the magnitude in m/s2 the phone is at rest */
+	static final float STATIONARY_DEVIATION = 0.12f;
+
+	/** steps swing the magnitude by well over this */
+	static final float WALKING_DEVIATION = 1.0f;
+
+	static final float MIN_CADENCE_HZ = 1.2f;
+	static final float MAX_CADENCE_HZ = 3.5f;
+
+	/** swings smaller than this around the baseline are noise, not steps */
+	private static final float SWING_THRESHOLD = 0.6f;
+
+	/** weight of a sample in the baseline, about a second at 50 Hz */
+	private static final float BASELINE_SMOOTHING = 0.02f;
+
+	/** a window needs samples at 5 Hz at least */
+	private static final int MIN_SAMPLES = (int) (WINDOW_MS / 200);
+
+	private final Listener listener;
+
+	private long windowStart = Long.MIN_VALUE;
+	private int count;
+	private double sum;
+	private double sumSquares;
+	private int swings;
+	private boolean above;
+
+	private float baseline = Float.NaN;
+
+	public MotionClassifier(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Adds a sample, samples must come in time order.
+	 *
+	 * @param timestamp wall clock ms
+	 * @param x acceleration including gravity in m/s2
+	 */
+	public void add(long timestamp, float x, float y, float z) {
+		if (windowStart == Long.MIN_VALUE || timestamp < windowStart) {
+			startWindow(timestamp);
+		} else if (timestamp >= windowStart + WINDOW_MS) {
+			finishWindow();
+			// a gap of more than a window starts afresh at the sample
+			startWindow(timestamp < windowStart + 2 * WINDOW_MS ? windowStart + WINDOW_MS : timestamp);
+		}
+
+		final float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+		count++;
+		sum += magnitude;
+		sumSquares += (double) magnitude * magnitude;
+
+		if (Float.isNaN(baseline)) baseline = magnitude;
+		baseline += (magnitude - baseline) * BASELINE_SMOOTHING;
+
+		// a swing is a rise above and a fall back below the baseline, with hysteresis against noise
+		if (!above && magnitude > baseline + SWING_THRESHOLD) {
+			above = true;
+		} else if (above && magnitude < baseline - SWING_THRESHOLD) {
+			above = false;
+			swings++;
+		}
+	}
+
+	/**
+	 * Drops the current window, e.g. when tracking is stopped.
+	 */
+	public void reset() {
+		windowStart = Long.MIN_VALUE;
+		baseline = Float.NaN;
+		above = false;
+	}
+
+	/**
+	 * @return the motion class for the given features
+	 */
+	static int classify(float deviation, float cadenceHz) {
+		if (deviation < STATIONARY_DEVIATION) return MotionTimeline.MOTION_STATIONARY;
+		if (deviation >= WALKING_DEVIATION && cadenceHz >= MIN_CADENCE_HZ && cadenceHz <= MAX_CADENCE_HZ) {
+			return MotionTimeline.MOTION_WALKING;
+		}
+		return MotionTimeline.MOTION_VEHICLE;
+	}
+
+	private void startWindow(long start) {
+		windowStart = start;
+		count = 0;
+		sum = 0;
+		sumSquares = 0;
+		swings = 0;
+	}
+
+	private void finishWindow() {
+		if (count < MIN_SAMPLES) return;
+
+		final double mean = sum / count;
+		final float deviation = (float) Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+		final float cadenceHz = swings * 1000f / WINDOW_MS;
+		listener.onWindow(windowStart, windowStart + WINDOW_MS, classify(deviation, cadenceHz), deviation, cadenceHz);
+	}
+}
@@ -0,0 +1,88 @@
+package com.ruyiso.pm25;
+
+/**
+ * The motion classes of the last few minutes, shared by the phone's motion tracking and all sensor
+ * connections.
+ *
+ * Windows arrive in batches, up to the batching latency after the time they describe, so readings are
+ * only matched up once {@link #getCoveredUntil()} has passed them, see {@link MotionAligner}. While
+ * nothing is tracked every time counts as covered and the motion is unknown.
+ */
+public final class MotionTimeline {
+	public static final int MOTION_UNKNOWN = 0;
+	public static final int MOTION_STATIONARY = 1;
+	public static final int MOTION_WALKING = 2;
+	public static final int MOTION_VEHICLE = 3;
+
+	/** the bits of the stored reading flags holding the motion class */
+	public static final int MOTION_MASK = 0x3;
+
+	/** four minutes of windows */
+	private static final int CAPACITY = 120;
+
+	private final long[] starts = new long[CAPACITY];
+	private final long[] ends = new long[CAPACITY];
+	private final byte[] motions = new byte[CAPACITY];
+	private int head;
+	private int size;
+
+	private boolean tracking;
+	private long trackingSince;
+
+	/**
+	 * @param tracking whether windows are coming, readings wait for them only while they are
+	 */
+	public synchronized void setTracking(boolean tracking, long now) {
+		if (tracking && !this.tracking) trackingSince = now;
+		this.tracking = tracking;
+	}
+
+	public synchronized boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * Adds the next window, windows must come in time order.
+	 */
+	public synchronized void add(long startMs, long endMs, int motion) {
+		final int index = (head + size) % CAPACITY;
+		if (size == CAPACITY) {
+			head = (head + 1) % CAPACITY;
+		} else {
+			size++;
+		}
+		starts[index] = startMs;
+		ends[index] = endMs;
+		motions[index] = (byte) motion;
+	}
+
+	/**
+	 * @return the time up to which the motion is known, readings before it can be matched up
+	 */
+	public synchronized long getCoveredUntil() {
+		if (!tracking) return Long.MAX_VALUE;
+		if (size == 0) return trackingSince;
+		return Math.max(trackingSince, ends[(head + size - 1) % CAPACITY]);
+	}
+
+	/**
+	 * @return the motion class of the window holding the time, {@link #MOTION_UNKNOWN} if there is none
+	 */
+	public synchronized int getMotionAt(long timestamp) {
+		// newest first, readings are matched up shortly after the window arrives
+		for (int i = size - 1; i >= 0; i--) {
+			final int index = (head + i) % CAPACITY;
+			if (timestamp >= ends[index]) return MOTION_UNKNOWN;
+			if (timestamp >= starts[index]) return motions[index];
+		}
+		return MOTION_UNKNOWN;
+	}
+
+	/**
+	 * @return the class of the newest window, {@link #MOTION_UNKNOWN} if there is none or tracking is off
+	 */
+	public synchronized int getLatestMotion() {
+		if (!tracking || size == 0) return MOTION_UNKNOWN;
+		return motions[(head + size - 1) % CAPACITY];
+	}
+}
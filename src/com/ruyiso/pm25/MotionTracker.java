@@ -0,0 +1,110 @@
+package com.ruyiso.pm25;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Classifies the motion of the phone from its accelerometer into a {@link MotionTimeline}.
+ *
+ * From KitKat on the accelerometer is registered with a report latency of {@link #MAX_REPORT_LATENCY_US},
+ * so the sensor hub collects the samples in its FIFO and the app is woken for a batch every few seconds
+ * instead of 50 times a second. Samples are reduced by a {@link MotionClassifier} on a thread of their
+ * own as they arrive and dropped, only the class of every window is kept.
+ */
+public final class MotionTracker implements SensorEventListener, MotionClassifier.Listener {
+	private static final String TAG = "MotionTracker";
+
+	/** 50 Hz, enough to see the steps */
+	private static final int SAMPLING_PERIOD_US = 20000;
+
+	public static final int MAX_REPORT_LATENCY_US = 10 * 1000 * 1000;
+
+	/** event times further off the elapsed realtime clock than this are on the uptime clock */
+	private static final long CLOCK_TOLERANCE_MS = 60 * 1000;
+
+	private final SensorManager sensorManager;
+	private final MotionTimeline timeline;
+	private final MotionClassifier classifier = new MotionClassifier(this);
+
+	private HandlerThread thread;
+
+	public MotionTracker(SensorManager sensorManager, MotionTimeline timeline) {
+		this.sensorManager = sensorManager;
+		this.timeline = timeline;
+	}
+
+	/**
+	 * @return false if there is no accelerometer
+	 */
+	public synchronized boolean start() {
+		if (thread != null) return true;
+
+		Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		if (accelerometer == null) {
+			Log.i(TAG, "no accelerometer, readings are stored without motion");
+			return false;
+		}
+
+		thread = new HandlerThread("MotionTracker");
+		thread.start();
+		Handler handler = new Handler(thread.getLooper());
+		classifier.reset();
+
+		boolean registered;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			registered = sensorManager.registerListener(this, accelerometer, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, handler);
+			Log.i(TAG, "batching up to " + accelerometer.getFifoMaxEventCount() + " accelerometer events");
+		} else {
+			registered = sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME, handler);
+		}
+		if (!registered) {
+			Log.e(TAG, "registering accelerometer listener err");
+			thread.quit();
+			thread = null;
+			return false;
+		}
+
+		timeline.setTracking(true, System.currentTimeMillis());
+		return true;
+	}
+
+	public synchronized void stop() {
+		if (thread == null) return;
+
+		sensorManager.unregisterListener(this);
+		thread.quit();
+		thread = null;
+		timeline.setTracking(false, System.currentTimeMillis());
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		final long eventMs = event.timestamp / 1000000;
+		long clockMs = SystemClock.elapsedRealtime();
+		// some older devices stamp events with the uptime clock instead
+		if (Math.abs(clockMs - eventMs) > CLOCK_TOLERANCE_MS) clockMs = SystemClock.uptimeMillis();
+
+		final long timestamp = System.currentTimeMillis() - (clockMs - eventMs);
+		classifier.add(timestamp, event.values[0], event.values[1], event.values[2]);
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+		// the classes only depend on variations, a bias does not matter
+	}
+
+	@Override
+	public void onWindow(long startMs, long endMs, int motion, float deviation, float cadenceHz) {
+		timeline.add(startMs, endMs, motion);
+		if (Log.isLoggable(TAG, Log.VERBOSE)) {
+			Log.v(TAG, "motion " + motion + ", deviation " + deviation + " m/s2, cadence " + cadenceHz + " Hz");
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.ruyiso.pm25;
+
+import java.util.Random;
+
+/**
+ * Bounded exponential backoff with jitter for reconnect attempts.
+ *
+ * The n-th delay is drawn uniformly from the upper half of min(maxDelay, initialDelay * 2^n), so devices
+ * that lost their link at the same moment do not retry in lockstep. After maxAttempts delays the backoff
+ * is exhausted until {@link #reset()} is called.
+ */
+public final class ReconnectBackoff {
+	private final long initialDelayMs;
+	private final long maxDelayMs;
+	private final int maxAttempts;
+	private final Random random = new Random();
+
+	private int attempt;
+
+	public ReconnectBackoff(long initialDelayMs, long maxDelayMs, int maxAttempts) {
+		if (initialDelayMs <= 0 || maxDelayMs < initialDelayMs || maxAttempts <= 0) {
+			throw new IllegalArgumentException("invalid backoff " + initialDelayMs + "/" + maxDelayMs + "/" + maxAttempts);
+		}
+		this.initialDelayMs = initialDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return the delay before the next attempt in ms, or -1 if no attempts are left
+	 */
+	public synchronized long nextDelayMs() {
+		if (attempt >= maxAttempts) return -1;
+
+		// cap the shift so the multiplication cannot overflow
+		long ceiling = Math.min(maxDelayMs, initialDelayMs << Math.min(attempt, 30));
+		attempt++;
+
+		long half = ceiling / 2;
+		return half + (long) (random.nextDouble() * (ceiling - half));
+	}
+
+	public synchronized int getAttempts() {
+		return attempt;
+	}
+
+	public synchronized void reset() {
+		attempt = 0;
+	}
+}
@@ -0,0 +1,99 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * Serial port profile link to a bluetooth sensor.
+ */
+public final class RfcommTransport implements SensorTransport {
+	private static final String TAG = "RfcommTransport";
+	private static final UUID uuidSpp = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	public static final class Factory implements SensorTransport.Factory {
+		private final BluetoothAdapter btAdapter;
+
+		public Factory(BluetoothAdapter btAdapter) {
+			this.btAdapter = btAdapter;
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return btAdapter.isEnabled();
+		}
+
+		@Override
+		public String getDeviceName(String address) {
+			return btAdapter.getRemoteDevice(address).getName();
+		}
+
+		@Override
+		public SensorTransport create(String address) throws IOException {
+			return new RfcommTransport(btAdapter, btAdapter.getRemoteDevice(address));
+		}
+	}
+
+	private final BluetoothAdapter btAdapter;
+	private final BluetoothDevice device;
+
+	private BluetoothSocket socket;
+	private boolean closed;
+
+	public RfcommTransport(BluetoothAdapter btAdapter, BluetoothDevice device) {
+		this.btAdapter = btAdapter;
+		this.device = device;
+	}
+
+	@Override
+	public void open() throws IOException {
+		BluetoothSocket socket;
+		synchronized (this) {
+			if (closed) throw new IOException("transport closed");
+			socket = device.createRfcommSocketToServiceRecord(uuidSpp);
+			if (socket == null) throw new IOException("unable to get bluetooth socket");
+			this.socket = socket;
+		}
+
+		// discovery slows the connection down considerably
+		if (btAdapter.isDiscovering()) btAdapter.cancelDiscovery();
+
+		Log.i(TAG, "Connecting Socket to " + device.getName());
+		// blocks without the lock, so close() can abort it
+		socket.connect();
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (socket == null) throw new IOException("transport not open");
+		return socket.getInputStream();
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (socket == null) throw new IOException("transport not open");
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (socket == null) return;
+
+		try {
+			socket.getOutputStream().close();
+			socket.getInputStream().close();
+		} catch (IOException e) {
+			// not connected yet, closing the socket is enough
+		} catch (NullPointerException e) {
+
+		}
+		socket.close();
+	}
+}
@@ -0,0 +1,213 @@
+package com.ruyiso.pm25;
+
+/**
+ * Running mean, minimum, maximum and air quality index of PM2.5 and PM10 over the last minute, hour and
+ * day.
+ *
+ * Every window is split into {@link #BUCKETS} buckets holding count, sums and extremes of the samples in
+ * their time slice. A sample only touches the current bucket and the running totals of each window; when a
+ * bucket falls out of the window its sums are subtracted and the extremes are recomputed from the remaining
+ * buckets. Adding a sample and reading a summary therefore cost the same no matter how much has been
+ * collected, at the price of windows that slide in steps of one bucket.
+ */
+public final class RollingAggregator {
+	public static final int WINDOW_MINUTE = 0;
+	public static final int WINDOW_HOUR = 1;
+	public static final int WINDOW_DAY = 2;
+
+	public static final int BUCKETS = 60;
+
+	private static final long[] WINDOW_LENGTHS_MS = {60L * 1000, 60L * 60 * 1000, 24L * 60 * 60 * 1000};
+
+	/**
+	 * Values of one window, filled by {@link RollingAggregator#read(int, long, Summary)}.
+	 */
+	public static final class Summary {
+		public int count;
+		public float meanPm25;
+		public float minPm25;
+		public float maxPm25;
+		public float meanPm10;
+		public float minPm10;
+		public float maxPm10;
+		/** index of the mean of the window, the higher of the PM2.5 and PM10 index */
+		public int aqi;
+	}
+
+	private final Window[] windows = new Window[WINDOW_LENGTHS_MS.length];
+
+	public RollingAggregator() {
+		for (int i = 0; i < windows.length; i++) {
+			windows[i] = new Window(WINDOW_LENGTHS_MS[i] / BUCKETS);
+		}
+	}
+
+	/**
+	 * Adds a sample. Samples older than the current bucket of a window only count for that bucket.
+	 */
+	public synchronized void add(long timestamp, float pm25, float pm10) {
+		for (Window window : windows) {
+			window.add(timestamp, pm25, pm10);
+		}
+	}
+
+	/**
+	 * Copies the current values of a window, buckets that ended before now are dropped first.
+	 */
+	public synchronized void read(int window, long now, Summary out) {
+		windows[window].read(now, out);
+	}
+
+	public synchronized void clear() {
+		for (Window window : windows) {
+			window.clear();
+		}
+	}
+
+	private static final class Window {
+		private final long bucketLengthMs;
+
+		private final int[] counts = new int[BUCKETS];
+		private final double[] sumsPm25 = new double[BUCKETS];
+		private final double[] sumsPm10 = new double[BUCKETS];
+		private final float[] minsPm25 = new float[BUCKETS];
+		private final float[] maxsPm25 = new float[BUCKETS];
+		private final float[] minsPm10 = new float[BUCKETS];
+		private final float[] maxsPm10 = new float[BUCKETS];
+
+		/** slot number (time / bucket length) of the newest bucket */
+		private long currentSlot = Long.MIN_VALUE;
+
+		private int count;
+		private double sumPm25;
+		private double sumPm10;
+		private float minPm25;
+		private float maxPm25;
+		private float minPm10;
+		private float maxPm10;
+		private int aqi;
+
+		Window(long bucketLengthMs) {
+			this.bucketLengthMs = bucketLengthMs;
+			clear();
+		}
+
+		void clear() {
+			for (int i = 0; i < BUCKETS; i++) {
+				clearBucket(i);
+			}
+			currentSlot = Long.MIN_VALUE;
+			count = 0;
+			sumPm25 = 0;
+			sumPm10 = 0;
+			updateExtremes();
+			aqi = 0;
+		}
+
+		void add(long timestamp, float pm25, float pm10) {
+			long slot = timestamp / bucketLengthMs;
+			advance(slot);
+			if (slot <= currentSlot - BUCKETS) return;
+
+			int bucket = (int) (slot % BUCKETS);
+			counts[bucket]++;
+			sumsPm25[bucket] += pm25;
+			sumsPm10[bucket] += pm10;
+			if (pm25 < minsPm25[bucket]) minsPm25[bucket] = pm25;
+			if (pm25 > maxsPm25[bucket]) maxsPm25[bucket] = pm25;
+			if (pm10 < minsPm10[bucket]) minsPm10[bucket] = pm10;
+			if (pm10 > maxsPm10[bucket]) maxsPm10[bucket] = pm10;
+
+			count++;
+			sumPm25 += pm25;
+			sumPm10 += pm10;
+			if (pm25 < minPm25) minPm25 = pm25;
+			if (pm25 > maxPm25) maxPm25 = pm25;
+			if (pm10 < minPm10) minPm10 = pm10;
+			if (pm10 > maxPm10) maxPm10 = pm10;
+			updateAqi();
+		}
+
+		void read(long now, Summary out) {
+			advance(now / bucketLengthMs);
+
+			out.count = count;
+			if (count == 0) {
+				out.meanPm25 = out.minPm25 = out.maxPm25 = Float.NaN;
+				out.meanPm10 = out.minPm10 = out.maxPm10 = Float.NaN;
+				out.aqi = 0;
+				return;
+			}
+			out.meanPm25 = (float) (sumPm25 / count);
+			out.minPm25 = minPm25;
+			out.maxPm25 = maxPm25;
+			out.meanPm10 = (float) (sumPm10 / count);
+			out.minPm10 = minPm10;
+			out.maxPm10 = maxPm10;
+			out.aqi = aqi;
+		}
+
+		/**
+		 * Moves the window so that it ends with the given slot, at most all buckets are evicted.
+		 */
+		private void advance(long slot) {
+			if (slot <= currentSlot) return;
+
+			boolean evicted = false;
+			long first = currentSlot == Long.MIN_VALUE ? slot : Math.max(currentSlot + 1, slot - BUCKETS + 1);
+			for (long s = first; s <= slot; s++) {
+				int bucket = (int) (s % BUCKETS);
+				if (counts[bucket] > 0) {
+					count -= counts[bucket];
+					sumPm25 -= sumsPm25[bucket];
+					sumPm10 -= sumsPm10[bucket];
+					evicted = true;
+				}
+				clearBucket(bucket);
+			}
+			currentSlot = slot;
+
+			if (evicted) {
+				if (count == 0) {
+					// avoid drifting sums from subtracting floating point values
+					sumPm25 = 0;
+					sumPm10 = 0;
+				}
+				updateExtremes();
+				updateAqi();
+			}
+		}
+
+		private void clearBucket(int bucket) {
+			counts[bucket] = 0;
+			sumsPm25[bucket] = 0;
+			sumsPm10[bucket] = 0;
+			minsPm25[bucket] = Float.POSITIVE_INFINITY;
+			maxsPm25[bucket] = Float.NEGATIVE_INFINITY;
+			minsPm10[bucket] = Float.POSITIVE_INFINITY;
+			maxsPm10[bucket] = Float.NEGATIVE_INFINITY;
+		}
+
+		private void updateExtremes() {
+			minPm25 = Float.POSITIVE_INFINITY;
+			maxPm25 = Float.NEGATIVE_INFINITY;
+			minPm10 = Float.POSITIVE_INFINITY;
+			maxPm10 = Float.NEGATIVE_INFINITY;
+			for (int i = 0; i < BUCKETS; i++) {
+				if (counts[i] == 0) continue;
+				if (minsPm25[i] < minPm25) minPm25 = minsPm25[i];
+				if (maxsPm25[i] > maxPm25) maxPm25 = maxsPm25[i];
+				if (minsPm10[i] < minPm10) minPm10 = minsPm10[i];
+				if (maxsPm10[i] > maxPm10) maxPm10 = maxsPm10[i];
+			}
+		}
+
+		private void updateAqi() {
+			if (count == 0) {
+				aqi = 0;
+				return;
+			}
+			aqi = Math.max(AirQualityIndex.fromPm25((float) (sumPm25 / count)), AirQualityIndex.fromPm10((float) (sumPm10 / count)));
+		}
+	}
+}
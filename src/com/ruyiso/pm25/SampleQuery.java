@@ -0,0 +1,350 @@
+package com.ruyiso.pm25;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Time range and threshold queries over a {@link SampleStore}, answered through cursors.
+ *
+ * The {@link BlockIndex} of every segment tells which blocks hold readings of the time range and, for
+ * thresholds, which ones hold a PM2.5 value above it. Only those blocks are read, so a query costs about
+ * the blocks its results are in plus a look at the index of every segment, whatever the size of the
+ * history. Cursors read one block at a time and advance without allocating. Results come in the order
+ * the readings were written, which is oldest first unless the clock was set back, see {@link SampleStore}.
+ */
+public final class SampleQuery {
+	/** threshold letting every reading through */
+	public static final int ANY = -1;
+
+	private SampleQuery() {
+	}
+
+	/**
+	 * @return a cursor over the flushed readings in [start, end)
+	 */
+	public static Cursor readings(SampleStore store, long start, long end) {
+		return new Cursor(store, start, end, ANY);
+	}
+
+	/**
+	 * @param pm25Tenths readings with PM2.5 above this are returned, in 0.1 ug/m3
+	 * @return a cursor over the flushed readings in [start, end) with PM2.5 above the threshold
+	 */
+	public static Cursor readingsAbove(SampleStore store, long start, long end, int pm25Tenths) {
+		return new Cursor(store, start, end, pm25Tenths);
+	}
+
+	/**
+	 * @param pm25Tenths periods with PM2.5 above this are returned, in 0.1 ug/m3
+	 * @param maxGapMs readings further apart end a period even if both are above, e.g. when the link was lost
+	 * @return a cursor over the periods in [start, end) with PM2.5 above the threshold
+	 */
+	public static PeriodCursor periodsAbove(SampleStore store, long start, long end, int pm25Tenths, long maxGapMs) {
+		return new PeriodCursor(new Cursor(store, start, end, pm25Tenths), maxGapMs);
+	}
+
+	/**
+	 * Readings of a query, the current one is exposed through primitive getters like with
+	 * {@link SampleStore.Cursor}.
+	 */
+	public static final class Cursor {
+		private final SampleStore store;
+		private final File[] segments;
+		private final long start;
+		private final long end;
+		private final int threshold;
+
+		private final ByteBuffer header = ByteBuffer.allocate(SampleStore.HEADER_SIZE);
+		private final ByteBuffer buffer = ByteBuffer.allocate(SampleStore.BLOCK_RECORDS * SampleStore.RECORD_SIZE);
+
+		private int segmentIndex = -1;
+		private BlockIndex blocks;
+		private int block;
+		private int endBlock;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private long base;
+		private long size;
+
+		private long timestamp;
+		private int pm25Tenths;
+		private int pm10Tenths;
+		private int flags;
+		private boolean afterGap;
+
+		private long blocksRead;
+		private long blocksSkipped;
+
+		Cursor(SampleStore store, long start, long end, int threshold) {
+			this.store = store;
+			this.start = start;
+			this.end = end;
+			this.threshold = threshold;
+			segments = store.listSegments();
+			buffer.limit(0);
+		}
+
+		/**
+		 * @return false once all matching readings have been visited
+		 */
+		public boolean next() throws IOException {
+			afterGap = false;
+			while (true) {
+				while (buffer.remaining() >= SampleStore.RECORD_SIZE) {
+					final long timestamp = base + buffer.getInt();
+					final int pm25Tenths = buffer.getChar();
+					final int pm10Tenths = buffer.getChar();
+					final int flags = buffer.getShort() & 0xffff;
+					if (timestamp < start) continue;
+					if (timestamp >= end) {
+						// the rest of the segment is later still
+						buffer.limit(buffer.position());
+						block = endBlock;
+						break;
+					}
+					if (pm25Tenths <= threshold) {
+						afterGap = true;
+						continue;
+					}
+
+					this.timestamp = timestamp;
+					this.pm25Tenths = pm25Tenths;
+					this.pm10Tenths = pm10Tenths;
+					this.flags = flags;
+					return true;
+				}
+				if (!readNextBlock()) return false;
+			}
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return PM2.5 as stored, in 0.1 ug/m3
+		 */
+		public int getPm25Tenths() {
+			return pm25Tenths;
+		}
+
+		/**
+		 * @return PM10 as stored, in 0.1 ug/m3
+		 */
+		public int getPm10Tenths() {
+			return pm10Tenths;
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		/**
+		 * @return whether readings of the time range below the threshold were passed over since the previous one
+		 */
+		public boolean isAfterGap() {
+			return afterGap;
+		}
+
+		/**
+		 * @return blocks read from the segments so far
+		 */
+		public long getBlocksRead() {
+			return blocksRead;
+		}
+
+		/**
+		 * @return blocks of the time range passed over by their index so far
+		 */
+		public long getBlocksSkipped() {
+			return blocksSkipped;
+		}
+
+		public void close() throws IOException {
+			if (file != null) file.close();
+			file = null;
+			channel = null;
+		}
+
+		private boolean readNextBlock() throws IOException {
+			while (true) {
+				while (blocks != null && block < endBlock) {
+					final int current = block++;
+					if (blocks.getMaxPm25(current) <= threshold) {
+						afterGap = true;
+						blocksSkipped++;
+						continue;
+					}
+					if (readBlock(current)) return true;
+				}
+				if (!openNextSegment()) return false;
+			}
+		}
+
+		private boolean readBlock(int index) throws IOException {
+			final long position = SampleStore.HEADER_SIZE + (long) index * blocks.getBlockRecords() * SampleStore.RECORD_SIZE;
+			// the index may count records that are still in the write buffer
+			final long count = Math.min((long) blocks.getCount(index) * SampleStore.RECORD_SIZE, size - position);
+			if (count < SampleStore.RECORD_SIZE) return false;
+
+			buffer.clear();
+			buffer.limit((int) count);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) break;
+			}
+			buffer.flip();
+			// only whole records
+			buffer.limit(buffer.limit() - buffer.limit() % SampleStore.RECORD_SIZE);
+			blocksRead++;
+			return true;
+		}
+
+		/**
+		 * Moves on to the next segment with blocks that may match, its file is only opened then.
+		 */
+		private boolean openNextSegment() throws IOException {
+			close();
+			blocks = null;
+
+			while (++segmentIndex < segments.length) {
+				final File segment = segments[segmentIndex];
+				final BlockIndex index = store.getBlockIndex(segment);
+				final int count = index.getBlocks();
+				if (count == 0) continue;
+
+				int first = index.findBlock(start);
+				final int last = Math.min(index.findBlock(end) + 1, count);
+				while (first < last && index.getFirstTimestamp(first) < end && index.getMaxPm25(first) <= threshold) {
+					afterGap = true;
+					blocksSkipped++;
+					first++;
+				}
+				if (first >= last || index.getFirstTimestamp(first) >= end) continue;
+
+				try {
+					file = new RandomAccessFile(segment, "r");
+				} catch (FileNotFoundException e) {
+					// deleted for retention meanwhile
+					continue;
+				}
+				channel = file.getChannel();
+				size = channel.size();
+				header.clear();
+				while (header.hasRemaining()) {
+					if (channel.read(header, header.position()) < 0) break;
+				}
+				if (header.hasRemaining() || header.getInt(0) != SampleStore.MAGIC) {
+					close();
+					continue;
+				}
+
+				base = header.getLong(8);
+				blocks = index;
+				block = first;
+				endBlock = last;
+				buffer.limit(0);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Periods of consecutive readings above a threshold, with their peak and mean.
+	 */
+	public static final class PeriodCursor {
+		private final Cursor readings;
+		private final long maxGapMs;
+
+		private boolean started;
+		/** set while the readings cursor is on a reading not part of a returned period yet */
+		private boolean pending;
+
+		private long periodStart;
+		private long periodEnd;
+		private int count;
+		private long sumPm25Tenths;
+		private int peakPm25Tenths;
+		private int peakPm10Tenths;
+
+		PeriodCursor(Cursor readings, long maxGapMs) {
+			this.readings = readings;
+			this.maxGapMs = maxGapMs;
+		}
+
+		/**
+		 * @return false once all periods have been visited
+		 */
+		public boolean next() throws IOException {
+			if (!started) {
+				started = true;
+				pending = readings.next();
+			}
+			if (!pending) return false;
+
+			periodStart = periodEnd = readings.getTimestamp();
+			count = 1;
+			sumPm25Tenths = peakPm25Tenths = readings.getPm25Tenths();
+			peakPm10Tenths = readings.getPm10Tenths();
+
+			while ((pending = readings.next())) {
+				final long timestamp = readings.getTimestamp();
+				if (readings.isAfterGap() || timestamp < periodEnd || timestamp - periodEnd > maxGapMs) break;
+
+				periodEnd = timestamp;
+				count++;
+				sumPm25Tenths += readings.getPm25Tenths();
+				peakPm25Tenths = Math.max(peakPm25Tenths, readings.getPm25Tenths());
+				peakPm10Tenths = Math.max(peakPm10Tenths, readings.getPm10Tenths());
+			}
+			return true;
+		}
+
+		/**
+		 * @return the timestamp of the first reading above the threshold
+		 */
+		public long getStart() {
+			return periodStart;
+		}
+
+		/**
+		 * @return the timestamp of the last reading above the threshold
+		 */
+		public long getEnd() {
+			return periodEnd;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return in 0.1 ug/m3
+		 */
+		public int getMeanPm25Tenths() {
+			return (int) ((sumPm25Tenths + count / 2) / count);
+		}
+
+		/**
+		 * @return in 0.1 ug/m3
+		 */
+		public int getPeakPm25Tenths() {
+			return peakPm25Tenths;
+		}
+
+		/**
+		 * @return in 0.1 ug/m3
+		 */
+		public int getPeakPm10Tenths() {
+			return peakPm10Tenths;
+		}
+
+		public void close() throws IOException {
+			readings.close();
+		}
+	}
+}
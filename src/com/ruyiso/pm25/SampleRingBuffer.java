@@ -0,0 +1,114 @@
+package com.ruyiso.pm25;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed capacity history of the most recent samples for one writer and any number of readers.
+ *
+ * Samples are kept as primitives, adding one neither allocates nor locks. Every slot carries the sequence
+ * number of the sample in it. The writer invalidates the slot before overwriting it and publishes the new
+ * sequence afterwards; a reader accepts a slot only if it sees the expected sequence before and after
+ * copying it, otherwise the slot has been overwritten meanwhile and the snapshot is retried. All accesses go
+ * through atomic arrays so their order is guaranteed without further fences.
+ */
+public final class SampleRingBuffer {
+	private static final long WRITING = -1;
+
+	private final int capacity;
+	private final int mask;
+
+	/** per slot the timestamp followed by both values packed into one long */
+	private final AtomicLongArray slots;
+	private final AtomicLongArray sequences;
+
+	/** number of samples published so far */
+	private final AtomicLong published = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	public SampleRingBuffer(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 24)) throw new IllegalArgumentException("invalid capacity " + capacity);
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+
+		this.capacity = size;
+		this.mask = size - 1;
+		this.slots = new AtomicLongArray(2 * size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, WRITING);
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of samples ever added, older ones than the last {@link #getCapacity()} are gone
+	 */
+	public long getCount() {
+		return published.get();
+	}
+
+	/**
+	 * Adds a sample. Must only be called from a single thread.
+	 */
+	public void add(long timestamp, float pm25, float pm10) {
+		final long sequence = published.get();
+		final int slot = (int) (sequence & mask);
+
+		sequences.set(slot, WRITING);
+		slots.set(2 * slot, timestamp);
+		slots.set(2 * slot + 1, pack(pm25, pm10));
+		sequences.set(slot, sequence);
+
+		published.set(sequence + 1);
+	}
+
+	/**
+	 * Copies the latest samples, oldest first, into the given arrays.
+	 *
+	 * @return the number of samples copied, at most the length of the shortest array
+	 */
+	public int snapshot(long[] timestamps, float[] pm25, float[] pm10) {
+		final int max = Math.min(capacity, Math.min(timestamps.length, Math.min(pm25.length, pm10.length)));
+
+		retry:
+		while (true) {
+			final long end = published.get();
+			final long start = Math.max(0, end - max);
+
+			int count = 0;
+			for (long sequence = start; sequence < end; sequence++) {
+				final int slot = (int) (sequence & mask);
+
+				if (sequences.get(slot) != sequence) continue retry;
+				final long timestamp = slots.get(2 * slot);
+				final long values = slots.get(2 * slot + 1);
+				if (sequences.get(slot) != sequence) continue retry;
+
+				timestamps[count] = timestamp;
+				pm25[count] = unpackPm25(values);
+				pm10[count] = unpackPm10(values);
+				count++;
+			}
+			return count;
+		}
+	}
+
+	private static long pack(float pm25, float pm10) {
+		return ((long) Float.floatToRawIntBits(pm25) << 32) | (Float.floatToRawIntBits(pm10) & 0xffffffffL);
+	}
+
+	private static float unpackPm25(long values) {
+		return Float.intBitsToFloat((int) (values >>> 32));
+	}
+
+	private static float unpackPm10(long values) {
+		return Float.intBitsToFloat((int) values);
+	}
+}
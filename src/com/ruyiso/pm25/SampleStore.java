@@ -0,0 +1,583 @@
+package com.ruyiso.pm25;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Append-only on-disk store for the readings of one sensor.
+ *
+ * Readings are kept in segment files of fixed width records. Each segment starts with a header
+ * <pre>
+ * magic (4) | version (2) | record size (2) | base timestamp (8)
+ * </pre>
+ * followed by records of
+ * <pre>
+ * timestamp - base in ms (4) | PM2.5 in 0.1 ug/m3 (2) | PM10 in 0.1 ug/m3 (2) | flags (2)
+ * </pre>
+ * so a reading takes 10 bytes and the n-th record of a segment can be found without scanning. Segments are
+ * named by a sequence number growing with every new one, so their order is the order they were written
+ * in even if the clock was set back. Cursors return the readings in that order, which is oldest first
+ * unless the clock was set back; readings taken afterwards then follow the later ones written before.
+ *
+ * Appends are collected in a buffer and written with one call once it is full or {@link #FLUSH_INTERVAL_MS}
+ * have passed, the file is synced to the device every {@link #SYNC_INTERVAL_MS}. A segment is rotated
+ * once it holds {@link #RECORDS_PER_SEGMENT} records, when the time offset would overflow or when the
+ * clock went backwards. On open a torn last record left by a killed process is cut off.
+ *
+ * Every segment has a {@link BlockIndex} of its blocks of {@link #BLOCK_RECORDS} records, kept up to date
+ * while appending and written next to the segment once it is closed, so {@link SampleQuery} only reads the
+ * blocks that may hold what it looks for. Indexes missing or out of date after a crash are rebuilt from
+ * their segment when first needed.
+ *
+ * Only one thread may append, reading with {@link Cursor}s is possible concurrently and sees all
+ * flushed records.
+ */
+public final class SampleStore {
+	public static final int MAGIC = 0x504d3235;
+	public static final short VERSION = 1;
+
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 10;
+
+	/** about 3.6 hours at 10 Hz, 1.3 MB */
+	public static final int RECORDS_PER_SEGMENT = 1 << 17;
+
+	/** about 100 seconds at 10 Hz, 10 KB */
+	public static final int BLOCK_RECORDS = 1024;
+
+	public static final long FLUSH_INTERVAL_MS = 5000;
+	public static final long SYNC_INTERVAL_MS = 30000;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String BLOCK_INDEX_SUFFIX = ".blk";
+
+	private static final int BUFFERED_RECORDS = 512;
+
+	/** largest value representable in the 16 bit fields, 0.1 ug/m3 units */
+	private static final int MAX_VALUE = 0xffff;
+
+	private final File directory;
+	private final long retentionMs;
+
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE);
+
+	private File segment;
+	private RandomAccessFile segmentFile;
+	private FileChannel segmentChannel;
+	private long segmentBase;
+	/** of the newest segment, the next one gets a higher number */
+	private long lastSequence;
+	private long segmentLastTimestamp;
+	private int segmentRecords;
+	/** index of the segment being appended to */
+	private BlockIndex segmentBlocks;
+
+	/** indexes of the closed segments by file name, a few KB each */
+	private final HashMap<String, BlockIndex> blockIndexes = new HashMap<String, BlockIndex>();
+
+	private long lastFlush;
+	private long lastSync;
+	private boolean unsynced;
+
+	/**
+	 * @param retentionMs segments whose readings are all older than this are deleted, 0 keeps everything
+	 */
+	public SampleStore(File directory, long retentionMs) throws IOException {
+		this.directory = directory;
+		this.retentionMs = retentionMs;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create " + directory);
+		}
+
+		openLastSegment();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Appends a reading. Values are stored with a resolution of 0.1 ug/m3.
+	 */
+	public synchronized void append(long timestamp, float pm25, float pm10, int flags) throws IOException {
+		if (segmentChannel == null
+				|| segmentRecords >= RECORDS_PER_SEGMENT
+				|| timestamp < segmentLastTimestamp
+				|| timestamp - segmentBase > Integer.MAX_VALUE) {
+			startSegment(timestamp);
+		}
+
+		final char pm25Tenths = encodeValue(pm25);
+		final char pm10Tenths = encodeValue(pm10);
+		writeBuffer.putInt((int) (timestamp - segmentBase));
+		writeBuffer.putChar(pm25Tenths);
+		writeBuffer.putChar(pm10Tenths);
+		writeBuffer.putShort((short) flags);
+		segmentBlocks.add(timestamp, pm25Tenths, pm10Tenths);
+		segmentRecords++;
+		segmentLastTimestamp = timestamp;
+
+		if (!writeBuffer.hasRemaining() || timestamp - lastFlush >= FLUSH_INTERVAL_MS) {
+			flush();
+			lastFlush = timestamp;
+		}
+		if (timestamp - lastSync >= SYNC_INTERVAL_MS) {
+			sync();
+			lastSync = timestamp;
+		}
+	}
+
+	/**
+	 * Writes buffered readings to the segment file.
+	 */
+	public synchronized void flush() throws IOException {
+		if (segmentChannel == null || writeBuffer.position() == 0) return;
+
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			segmentChannel.write(writeBuffer);
+		}
+		writeBuffer.clear();
+		unsynced = true;
+	}
+
+	/**
+	 * Writes buffered readings and makes sure they reached the storage device.
+	 */
+	public synchronized void sync() throws IOException {
+		flush();
+		if (segmentChannel == null || !unsynced) return;
+
+		segmentChannel.force(false);
+		unsynced = false;
+	}
+
+	public synchronized void close() throws IOException {
+		closeSegment();
+	}
+
+	/**
+	 * @return the segment files in the order they were written
+	 */
+	public File[] listSegments() {
+		File[] segments = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) return new File[0];
+
+		Arrays.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long sequenceA = parseSequence(a);
+				long sequenceB = parseSequence(b);
+				return sequenceA < sequenceB ? -1 : (sequenceA == sequenceB ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+
+	/**
+	 * @return a cursor over all flushed readings in the order they were written
+	 */
+	public Cursor openCursor() {
+		return new Cursor(listSegments());
+	}
+
+	/**
+	 * Skips the segments that only hold readings before start, the cursor may still return some older
+	 * readings from the segments covering start.
+	 *
+	 * @return a cursor over the flushed readings from about start on, in the order they were written
+	 */
+	public Cursor openCursor(long start) {
+		File[] segments = listSegments();
+		ArrayList<File> remaining = new ArrayList<File>(segments.length);
+		for (File segment : segments) {
+			// the clock may have been set back, so any segment can be the one reaching past start
+			if (getLatestTimestamp(segment) >= start) remaining.add(segment);
+		}
+		return new Cursor(remaining.toArray(new File[remaining.size()]));
+	}
+
+	/**
+	 * @return the latest timestamp in the segment, Long.MAX_VALUE if it has no readable readings
+	 */
+	private long getLatestTimestamp(File segment) {
+		final BlockIndex index = getBlockIndex(segment);
+		final int blocks = index.getBlocks();
+		// timestamps only grow within a segment
+		return blocks == 0 ? Long.MAX_VALUE : index.getLastTimestamp(blocks - 1);
+	}
+
+	/**
+	 * @return the index of the segment, a copy for the one being appended to
+	 */
+	BlockIndex getBlockIndex(File segment) {
+		synchronized (this) {
+			if (segment.equals(this.segment)) return segmentBlocks.copy();
+		}
+		// closed segments do not change, loading or rebuilding them must not hold up appending
+		final String name = segment.getName();
+		synchronized (blockIndexes) {
+			BlockIndex index = blockIndexes.get(name);
+			if (index != null) return index;
+		}
+		BlockIndex index = loadBlockIndex(segment, 0);
+		// unreadable for now, or deleted for retention meanwhile and not worth keeping
+		if (index == null) return new BlockIndex(BLOCK_RECORDS, 0);
+		if (!segment.exists()) return index;
+		synchronized (blockIndexes) {
+			blockIndexes.put(name, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the index written next to the segment, or rebuilds and writes it if it does not match.
+	 *
+	 * @param maxRecords records the segment may still take, for the one being appended to
+	 * @return null if the segment could not be read
+	 */
+	private static BlockIndex loadBlockIndex(File segment, int maxRecords) {
+		final long records = Math.max(0, (segment.length() - HEADER_SIZE) / RECORD_SIZE);
+		final File file = getBlockIndexFile(segment);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				BlockIndex index = BlockIndex.readFrom(in, maxRecords);
+				if (index.getRecords() == records && index.getBlockRecords() == BLOCK_RECORDS) return index;
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// written when the segment is closed, not there after a crash
+		} catch (IOException e) {
+			// torn or from another version, rebuilt below
+		}
+
+		BlockIndex index = new BlockIndex(BLOCK_RECORDS, (int) Math.max(records, maxRecords));
+		Cursor cursor = new Cursor(new File[] { segment });
+		try {
+			try {
+				while (cursor.next()) {
+					index.add(cursor.getTimestamp(), cursor.getPm25Tenths(), cursor.getPm10Tenths());
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		// only the index of a closed segment can be kept, the other one is written on closing it
+		if (maxRecords == 0 && segment.exists()) {
+			writeBlockIndex(segment, index);
+			// retention may have deleted the segment while the index was written
+			if (!segment.exists()) getBlockIndexFile(segment).delete();
+		}
+		return index;
+	}
+
+	private static void writeBlockIndex(File segment, BlockIndex index) {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getBlockIndexFile(segment))));
+			try {
+				index.writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// the index is rebuilt from the segment when it is needed, appending goes on
+		}
+	}
+
+	private static File getBlockIndexFile(File segment) {
+		String name = segment.getName();
+		return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + BLOCK_INDEX_SUFFIX);
+	}
+
+	private void openLastSegment() throws IOException {
+		File[] segments = listSegments();
+		if (segments.length == 0) return;
+
+		File last = segments[segments.length - 1];
+		lastSequence = parseSequence(last);
+		RandomAccessFile file = new RandomAccessFile(last, "rw");
+		FileChannel channel = file.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long size = channel.size();
+		if (size < HEADER_SIZE || !readHeader(channel, header)) {
+			// the process died while creating the segment, start over
+			file.close();
+			if (!last.delete()) throw new IOException("unable to delete " + last);
+			return;
+		}
+
+		// cut off a partially written record
+		long records = (size - HEADER_SIZE) / RECORD_SIZE;
+		long end = HEADER_SIZE + records * RECORD_SIZE;
+		if (end != size) channel.truncate(end);
+
+		// block numbers must match record positions, without an index for all records the next reading
+		// starts a new segment instead
+		BlockIndex blocks = loadBlockIndex(last, RECORDS_PER_SEGMENT);
+		if (blocks == null || blocks.getRecords() != records) {
+			file.close();
+			return;
+		}
+
+		segment = last;
+		segmentFile = file;
+		segmentChannel = channel;
+		segmentBase = header.getLong(8);
+		segmentRecords = (int) records;
+		segmentLastTimestamp = segmentBase;
+		if (records > 0) {
+			ByteBuffer offset = ByteBuffer.allocate(4);
+			channel.read(offset, end - RECORD_SIZE);
+			segmentLastTimestamp = segmentBase + offset.getInt(0);
+		}
+		channel.position(end);
+		segmentBlocks = blocks;
+	}
+
+	private void startSegment(long timestamp) throws IOException {
+		closeSegment();
+
+		// stores of older versions named segments by their base, numbering goes on after the last one
+		long sequence = lastSequence + 1;
+		File file = new File(directory, sequence + SEGMENT_SUFFIX);
+		while (file.exists()) {
+			file = new File(directory, ++sequence + SEGMENT_SUFFIX);
+		}
+		lastSequence = sequence;
+		final long base = timestamp;
+
+		segment = file;
+		segmentBlocks = new BlockIndex(BLOCK_RECORDS, RECORDS_PER_SEGMENT);
+		segmentFile = new RandomAccessFile(file, "rw");
+		segmentChannel = segmentFile.getChannel();
+		segmentChannel.truncate(0);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short) RECORD_SIZE);
+		header.putLong(base);
+		header.flip();
+		while (header.hasRemaining()) {
+			segmentChannel.write(header);
+		}
+
+		segmentBase = base;
+		segmentLastTimestamp = timestamp;
+		segmentRecords = 0;
+		unsynced = true;
+
+		deleteExpiredSegments(timestamp);
+	}
+
+	private void closeSegment() throws IOException {
+		if (segmentChannel == null) return;
+
+		sync();
+		segmentFile.close();
+		writeBlockIndex(segment, segmentBlocks);
+		synchronized (blockIndexes) {
+			blockIndexes.put(segment.getName(), segmentBlocks);
+		}
+		segment = null;
+		segmentBlocks = null;
+		segmentFile = null;
+		segmentChannel = null;
+	}
+
+	/**
+	 * Deletes the closed segments whose latest reading is past the retention period. Their order says
+	 * nothing about their age once the clock has been set back, so each is looked at by its index.
+	 */
+	private void deleteExpiredSegments(long now) {
+		if (retentionMs <= 0) return;
+
+		File[] segments = listSegments();
+		// the last one is being appended to
+		for (int i = 0; i + 1 < segments.length; i++) {
+			if (now - getLatestTimestamp(segments[i]) < retentionMs) continue;
+			segments[i].delete();
+			getBlockIndexFile(segments[i]).delete();
+			synchronized (blockIndexes) {
+				blockIndexes.remove(segments[i].getName());
+			}
+		}
+	}
+
+	private static boolean readHeader(FileChannel channel, ByteBuffer header) throws IOException {
+		header.clear();
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) return false;
+		}
+		return header.getInt(0) == MAGIC && header.getShort(4) == VERSION && header.getShort(6) == RECORD_SIZE;
+	}
+
+	private static long parseSequence(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static char encodeValue(float value) {
+		int tenths = Math.round(value * 10);
+		if (tenths < 0) return 0;
+		if (tenths > MAX_VALUE) return (char) MAX_VALUE;
+		return (char) tenths;
+	}
+
+	/**
+	 * Sequential reader over a list of segments. The current record is exposed through primitive getters,
+	 * advancing does not allocate.
+	 */
+	public static final class Cursor {
+		private static final int BUFFERED_RECORDS = 1024;
+
+		private final File[] segments;
+		private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE);
+
+		private int segmentIndex = -1;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private long base;
+		private long position;
+		private long end;
+
+		private long timestamp;
+		private int pm25Tenths;
+		private int pm10Tenths;
+		private int flags;
+
+		Cursor(File[] segments) {
+			this.segments = segments;
+			buffer.limit(0);
+		}
+
+		/**
+		 * @return false once all readings have been visited
+		 */
+		public boolean next() throws IOException {
+			while (buffer.remaining() < RECORD_SIZE) {
+				if (!fill()) return false;
+			}
+
+			timestamp = base + buffer.getInt();
+			pm25Tenths = buffer.getChar();
+			pm10Tenths = buffer.getChar();
+			flags = buffer.getShort() & 0xffff;
+			return true;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public float getPm25() {
+			return pm25Tenths / 10f;
+		}
+
+		public float getPm10() {
+			return pm10Tenths / 10f;
+		}
+
+		/**
+		 * @return PM2.5 as stored, in 0.1 ug/m3
+		 */
+		public int getPm25Tenths() {
+			return pm25Tenths;
+		}
+
+		/**
+		 * @return PM10 as stored, in 0.1 ug/m3
+		 */
+		public int getPm10Tenths() {
+			return pm10Tenths;
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		public void close() throws IOException {
+			if (file != null) file.close();
+			file = null;
+			channel = null;
+		}
+
+		private boolean fill() throws IOException {
+			if (channel != null && position < end) {
+				buffer.clear();
+				long count = Math.min(buffer.capacity(), end - position);
+				buffer.limit((int) count);
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position + buffer.position());
+					if (read < 0) break;
+				}
+				if (buffer.position() < RECORD_SIZE) {
+					// the segment has been cut short meanwhile
+					end = position;
+					return openNextSegment();
+				}
+				position += buffer.position();
+				buffer.flip();
+				// only whole records
+				buffer.limit(buffer.limit() - buffer.limit() % RECORD_SIZE);
+				return true;
+			}
+			return openNextSegment();
+		}
+
+		private boolean openNextSegment() throws IOException {
+			close();
+
+			while (++segmentIndex < segments.length) {
+				File segment = segments[segmentIndex];
+				if (!segment.exists()) continue;
+
+				file = new RandomAccessFile(segment, "r");
+				channel = file.getChannel();
+				long size = channel.size();
+				if (size < HEADER_SIZE || !readHeader(channel, header)) {
+					close();
+					continue;
+				}
+
+				base = header.getLong(8);
+				position = HEADER_SIZE;
+				end = HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+				buffer.limit(0);
+				return true;
+			}
+			return false;
+		}
+	}
+}
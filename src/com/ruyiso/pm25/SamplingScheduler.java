@@ -0,0 +1,134 @@
+package com.ruyiso.pm25;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues sample requests at a fixed rate on its own thread.
+ *
+ * Requests are pipelined: a tick does not wait for the reply to the previous request, so one late reply
+ * does not shift the cadence. Only when maxOutstanding requests are unanswered ticks are skipped, and
+ * after as many skipped ticks in a row the outstanding replies are considered lost.
+ */
+public final class SamplingScheduler {
+	public interface RequestSender {
+		/**
+		 * @return false if the request could not be sent
+		 */
+		public boolean sendRequest();
+	}
+
+	private final RequestSender sender;
+	private final int maxOutstanding;
+
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> task;
+	private long periodMs;
+	private long lastTickNanos;
+
+	private int outstanding;
+	private int consecutiveSkips;
+
+	private long requestsSent;
+	private long ticksSkipped;
+
+	public SamplingScheduler(RequestSender sender, int maxOutstanding) {
+		this.sender = sender;
+		this.maxOutstanding = maxOutstanding;
+	}
+
+	/**
+	 * Starts sampling or changes the period of a running scheduler. A running scheduler keeps its phase,
+	 * the next tick is due one new period after the last one.
+	 */
+	public synchronized void start(long periodMs) {
+		if (periodMs <= 0) throw new IllegalArgumentException("period must be positive: " + periodMs);
+		if (task != null && this.periodMs == periodMs) return;
+
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "SamplingScheduler");
+				}
+			});
+		}
+		long initialDelayNs = 0;
+		if (task != null) {
+			task.cancel(false);
+			initialDelayNs = Math.max(0, lastTickNanos + TimeUnit.MILLISECONDS.toNanos(periodMs) - System.nanoTime());
+		} else {
+			outstanding = 0;
+			consecutiveSkips = 0;
+		}
+
+		this.periodMs = periodMs;
+		task = executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, initialDelayNs, TimeUnit.MILLISECONDS.toNanos(periodMs), TimeUnit.NANOSECONDS);
+	}
+
+	public synchronized void stop() {
+		if (task != null) task.cancel(false);
+		task = null;
+
+		if (executor != null) executor.shutdown();
+		executor = null;
+	}
+
+	public synchronized boolean isRunning() {
+		return task != null;
+	}
+
+	public synchronized long getPeriodMs() {
+		return periodMs;
+	}
+
+	/**
+	 * Called for every reply received from the sensor.
+	 */
+	public synchronized void onResponse() {
+		if (outstanding > 0) outstanding--;
+		consecutiveSkips = 0;
+	}
+
+	public synchronized long getRequestsSent() {
+		return requestsSent;
+	}
+
+	public synchronized long getTicksSkipped() {
+		return ticksSkipped;
+	}
+
+	private void tick() {
+		synchronized (this) {
+			lastTickNanos = System.nanoTime();
+			if (outstanding >= maxOutstanding) {
+				ticksSkipped++;
+				if (++consecutiveSkips >= maxOutstanding) {
+					outstanding = 0;
+					consecutiveSkips = 0;
+				}
+				return;
+			}
+			outstanding++;
+		}
+
+		// send outside the lock, a slow write must not hold up onResponse()
+		boolean sent = sender.sendRequest();
+
+		synchronized (this) {
+			if (sent) {
+				requestsSent++;
+			} else if (outstanding > 0) {
+				outstanding--;
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.ruyiso.pm25;
+
+/**
+ * What a sensor's firmware supports, as announced in reply to the SYNC command.
+ *
+ * Firmware speaking protocol version 2 or later answers SYNC with a capability frame, framed like a
+ * reading but with a different second header byte (all values big endian):
+ * <pre>
+ * 0x42 0x43 | length (2) | protocol version (2) | flags (2) | fastest period ms (2) | slowest period ms (2) | checksum (2)
+ * </pre>
+ * Later versions may append words, they are ignored. Older firmware does not answer at all and is only
+ * ever polled, see {@link #LEGACY}.
+ *
+ * With {@link #FLAG_PUSH} the sensor accepts
+ * <pre>
+ * STREAM period_ms ack_every
+ * STOP
+ * </pre>
+ * After STREAM it sends a frame every period without being asked. It sends at most 2 * ack_every frames
+ * beyond the latest "ok", the app sends one "ok" for every ack_every frames received, so a reader that
+ * falls behind stops the stream instead of piling up frames in the RFCOMM buffers. STOP ends the stream,
+ * sample requests are answered either way.
+ */
+public final class SensorCapabilities {
+	public static final int HEADER_2 = 0x43;
+
+	/** the words up to and including the slowest period plus the checksum */
+	public static final int MIN_LENGTH = 10;
+	public static final int FRAME_SIZE = 4 + MIN_LENGTH;
+
+	public static final int PROTOCOL_VERSION = 2;
+
+	public static final int FLAG_PUSH = 1;
+
+	/** firmware that did not answer SYNC, polling only at any rate */
+	public static final SensorCapabilities LEGACY = new SensorCapabilities(1, 0, 0, 0xffff);
+
+	private final int version;
+	private final int flags;
+	private final int fastestPeriodMs;
+	private final int slowestPeriodMs;
+
+	public SensorCapabilities(int version, int flags, int fastestPeriodMs, int slowestPeriodMs) {
+		this.version = version;
+		this.flags = flags;
+		this.fastestPeriodMs = fastestPeriodMs;
+		// a slowest period below the fastest one would be a firmware bug, trust the fastest
+		this.slowestPeriodMs = Math.max(fastestPeriodMs, slowestPeriodMs);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean isPushSupported() {
+		return (flags & FLAG_PUSH) != 0;
+	}
+
+	public int getFastestPeriodMs() {
+		return fastestPeriodMs;
+	}
+
+	public int getSlowestPeriodMs() {
+		return slowestPeriodMs;
+	}
+
+	/**
+	 * @return the supported period closest to the wanted one
+	 */
+	public long clampPeriod(long periodMs) {
+		return Math.min(slowestPeriodMs, Math.max(fastestPeriodMs, periodMs));
+	}
+
+	/**
+	 * Writes the capability frame announcing these capabilities.
+	 *
+	 * @return the number of bytes written, {@link #FRAME_SIZE}
+	 */
+	public int encode(byte[] buffer, int offset) {
+		buffer[offset] = (byte) FrameDecoder.HEADER_1;
+		buffer[offset + 1] = (byte) HEADER_2;
+		putWord(buffer, offset + 2, MIN_LENGTH);
+		putWord(buffer, offset + 4, version);
+		putWord(buffer, offset + 6, flags);
+		putWord(buffer, offset + 8, fastestPeriodMs);
+		putWord(buffer, offset + 10, slowestPeriodMs);
+
+		int sum = 0;
+		for (int i = offset; i < offset + FRAME_SIZE - 2; i++) {
+			sum += buffer[i] & 0xff;
+		}
+		putWord(buffer, offset + FRAME_SIZE - 2, sum & 0xffff);
+		return FRAME_SIZE;
+	}
+
+	private static void putWord(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 8);
+		buffer[offset + 1] = (byte) value;
+	}
+
+	@Override
+	public String toString() {
+		return "v" + version + (isPushSupported() ? " push" : " polling") + " " + fastestPeriodMs + "-" + slowestPeriodMs + " ms";
+	}
+}
@@ -0,0 +1,1140 @@
+package com.ruyiso.pm25;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.ruyiso.pm25.CommandWriter.Command;
+
+/**
+ * One session with a single sensor, over whatever {@link SensorTransport} the factory provides.
+ *
+ * Every connection has its own connect, reader, writer and sampling threads and its own lock, so sessions
+ * with several sensors run side by side. Events are reported to the owning {@link BluetoothService}.
+ *
+ * Readings are polled with one request per sample until the sensor answers SYNC with its capabilities.
+ * Firmware that can push frames is then subscribed to a stream at the sampling period instead and acked
+ * every few frames, see {@link SensorCapabilities}. Firmware that never answers keeps being polled.
+ *
+ * Readings taken where the phone's position is known are added to the {@link GeoTileIndex} of the sensor,
+ * which is kept next to its stored readings and saved by the reader whenever the link closes.
+ */
+public final class SensorConnection {
+	private static final String TAG = "SensorConnection";
+
+	/** sampling period leaving the rate to the {@link AdaptiveRateController} */
+	public static final long SAMPLING_ADAPTIVE = -1;
+
+	private static final long CONNECT_TIMEOUT_MS = 10000;
+
+	/** the reader of a closed link only has to store the readings waiting for their motion */
+	private static final long READER_FINISH_TIMEOUT_MS = 2000;
+
+	/** requests that may be in flight before the scheduler skips a tick */
+	private static final int MAX_OUTSTANDING_REQUESTS = 4;
+
+	/** pushed frames are acked about this often */
+	private static final long STREAM_ACK_INTERVAL_MS = 1000;
+
+	private static final int MAX_STREAM_ACK_EVERY = 16;
+
+	/** a stream without frames for this long, or four periods if longer, is acked again */
+	private static final long STREAM_STALL_MS = 3000;
+
+	/** readings wait this long at most for the batched motion, a report latency plus a window */
+	private static final long MOTION_ALIGN_DELAY_MS = MotionTracker.MAX_REPORT_LATENCY_US / 1000 + 2 * MotionClassifier.WINDOW_MS;
+
+	/** 25 seconds at 10 Hz */
+	private static final int MOTION_ALIGN_CAPACITY = 256;
+
+	/** about 7 minutes at 10 Hz */
+	private static final int RECENT_SAMPLES_CAPACITY = 4096;
+
+	private static final String TILES_FILE = "tiles.idx";
+
+	private final BluetoothService service;
+
+	private final SensorTransport.Factory transportFactory;
+
+	private final String address;
+
+	private final Handler handler;
+
+	private final SampleRingBuffer recentSamples = new SampleRingBuffer(RECENT_SAMPLES_CAPACITY);
+
+	private final RollingAggregator aggregates = new RollingAggregator();
+
+	private final MinMaxPyramid history = new MinMaxPyramid();
+
+	/** null until opened by {@link #openStore}, and if the storage is not available */
+	private volatile SampleStore store;
+
+	/** released once opening the store has been tried, links are only opened afterwards */
+	private final CountDownLatch storeOpened = new CountDownLatch(1);
+
+	private boolean storeFailing;
+
+	private final GeoTileIndex tiles = new GeoTileIndex();
+
+	/** set once the saved tiles are merged in, they are not saved before so none get lost */
+	private volatile boolean tilesLoaded;
+
+	/** serializes saving the tiles, the connection lock is not held for file writes */
+	private final Object tilesFileLock = new Object();
+
+	/** readings in the tiles when they were saved last, guarded by tilesFileLock */
+	private long tilesSavedReadings;
+
+	/** where readings get their position from, null for none */
+	private volatile GeoFix.Source geoSource;
+
+	/** stores the readings once their motion is known, only used by the reader thread */
+	private final MotionAligner motionAligner = new MotionAligner(new MotionAligner.Sink() {
+		@Override
+		public void onAligned(long timestamp, int pm25, int pm10, int flags) {
+			storeSample(timestamp, pm25, pm10, flags);
+		}
+	}, MOTION_ALIGN_CAPACITY, MOTION_ALIGN_DELAY_MS);
+
+	private final LinkMetrics metrics = new LinkMetrics();
+
+	/** records the raw link while set, see {@link #startCapture(File)} */
+	private volatile WireCapture capture;
+
+	/** latest reading, PM2.5 in the upper and PM10 in the lower half */
+	private volatile long latestReading;
+
+	/** when the latest reading was decoded, System.nanoTime() */
+	private volatile long latestReadingNanos;
+
+	private final AtomicBoolean readingDeliveryPending = new AtomicBoolean();
+
+	private final Runnable readingDelivery = new Runnable() {
+		@Override
+		public void run() {
+			// cleared before reading, a reading arriving meanwhile schedules another delivery
+			readingDeliveryPending.set(false);
+			long reading = latestReading;
+			metrics.onDelivered(latestReadingNanos);
+			service.onReadingReceived(SensorConnection.this, (int) (reading >>> 32), (int) reading);
+		}
+	};
+
+	private SensorTransport connectedTransport;
+
+	private volatile CommandWriter commandWriter;
+
+	private BufferedInputStream inputStream;
+
+	private ReaderThread readerThread;
+
+	/** reader of the closed link, it may still be storing its last readings */
+	private ReaderThread finishingReader;
+
+	private ConnectThread connectThread;
+
+	private ConnectionState connectionState = ConnectionState.IDLE;
+
+	private long samplingPeriodMs;
+
+	private final AdaptiveRateController rateController = new AdaptiveRateController();
+
+	/** set while the adaptive controller drives the scheduler */
+	private volatile boolean samplingAdaptive;
+
+	private final SamplingScheduler samplingScheduler = new SamplingScheduler(new SamplingScheduler.RequestSender() {
+		@Override
+		public boolean sendRequest() {
+			boolean sent = requestSample();
+			if (sent && samplingAdaptive) rateController.onRequestSent(System.currentTimeMillis());
+			return sent;
+		}
+	}, MAX_OUTSTANDING_REQUESTS);
+
+	/** what the firmware announced, {@link SensorCapabilities#LEGACY} until it answers SYNC */
+	private SensorCapabilities capabilities = SensorCapabilities.LEGACY;
+
+	/** set while the sensor pushes frames, the reader then acks every streamAckEvery of them */
+	private volatile boolean streaming;
+
+	private volatile int streamAckEvery;
+
+	private long streamPeriodMs;
+
+	/** the period asked for, before fitting it to the sensor */
+	private volatile long streamRequestedPeriodMs;
+
+	/** counted by the reader thread while streaming, for the stall check */
+	private volatile long streamFrames;
+
+	private long streamFramesChecked;
+
+	private final Runnable streamWatchdog = new Runnable() {
+		@Override
+		public void run() {
+			checkStream();
+		}
+	};
+
+	private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff(1000, 60000, 10);
+
+	private boolean reconnectEnabled;
+
+	private final Runnable reconnectRunnable = new Runnable() {
+		@Override
+		public void run() {
+			onReconnectDue();
+		}
+	};
+
+	SensorConnection(BluetoothService service, SensorTransport.Factory transportFactory, String address, Handler handler) {
+		this.service = service;
+		this.transportFactory = transportFactory;
+		this.address = address;
+		this.handler = handler;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public String getName() {
+		String name = transportFactory.getDeviceName(address);
+		return name == null ? "unknowName" : name;
+	}
+
+	/**
+	 * @return the latest readings of this sensor, filled by the reader thread
+	 */
+	public SampleRingBuffer getRecentSamples() {
+		return recentSamples;
+	}
+
+	/**
+	 * @return running means, extremes and air quality index of this sensor
+	 */
+	public RollingAggregator getAggregates() {
+		return aggregates;
+	}
+
+	/**
+	 * @return the located readings of this sensor per map tile
+	 */
+	public GeoTileIndex getTiles() {
+		return tiles;
+	}
+
+	/**
+	 * @return live and stored readings at chart resolutions
+	 */
+	public MinMaxPyramid getHistory() {
+		return history;
+	}
+
+	/**
+	 * @return the persisted readings of this sensor, null while it is being opened or if the storage is not
+	 * available
+	 */
+	public SampleStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return connect, round trip and throughput figures of this link
+	 */
+	public LinkMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return sampling ticks skipped because too many requests were unanswered
+	 */
+	public long getTicksSkipped() {
+		return samplingScheduler.getTicksSkipped();
+	}
+
+	/**
+	 * @return the sampling period currently used, 0 if not sampling
+	 */
+	public synchronized long getCurrentSamplingPeriodMs() {
+		if (streaming) return streamPeriodMs;
+		return samplingScheduler.isRunning() ? samplingScheduler.getPeriodMs() : 0;
+	}
+
+	/**
+	 * @return what the sensor announced in the handshake, {@link SensorCapabilities#LEGACY} if it did not
+	 */
+	public synchronized SensorCapabilities getCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * @return true while the sensor pushes its frames instead of being polled
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public synchronized ConnectionState getConnectionState() {
+		return connectionState;
+	}
+
+	public synchronized boolean isConnected() {
+		return connectionState == ConnectionState.CONNECTED;
+	}
+
+	/**
+	 * @return true while connecting, connected or waiting to reconnect
+	 */
+	public synchronized boolean isActive() {
+		return reconnectEnabled || connectionState == ConnectionState.CONNECTING || connectionState == ConnectionState.CONNECTED;
+	}
+
+	/**
+	 * Opens the link and keeps reestablishing it with backoff until {@link #disconnect()} is called.
+	 */
+	public synchronized void connect() {
+		if (connectionState == ConnectionState.CONNECTING || connectionState == ConnectionState.CONNECTED) return;
+
+		cancelReconnect();
+		reconnectBackoff.reset();
+		reconnectEnabled = true;
+		openLink();
+	}
+
+	/**
+	 * Closes the link, no reconnect is attempted afterwards.
+	 */
+	public synchronized void disconnect() {
+		cancelReconnect();
+		closeLink();
+	}
+
+	/**
+	 * Sets the period of automatic sampling, 0 turns it off and {@link #SAMPLING_ADAPTIVE} adapts it to the
+	 * readings and the battery.
+	 */
+	public synchronized void setSamplingPeriod(long periodMs) {
+		samplingPeriodMs = periodMs;
+		updateSampling();
+	}
+
+	/**
+	 * @return the controller used with {@link #SAMPLING_ADAPTIVE}, including its savings
+	 */
+	public AdaptiveRateController getRateController() {
+		return rateController;
+	}
+
+	/**
+	 * @param level remaining charge, 0 to 1
+	 */
+	public void setBatteryState(float level, boolean charging) {
+		long periodMs = rateController.setBatteryState(level, charging, System.currentTimeMillis());
+		if (samplingAdaptive) applyAdaptivePeriod(periodMs);
+	}
+
+	/**
+	 * Asks the sensor for one reading, the reply is delivered through
+	 * {@link IBluetoothServiceEventReceiver#receivedReading(String, int, int)}.
+	 */
+	public boolean requestSample() {
+		// noted before queueing, the reply may arrive before sendCommand() returns
+		metrics.onRequestSent(System.nanoTime());
+		if (sendCommand(Command.REQUEST_SAMPLE)) return true;
+
+		metrics.onRequestNotSent();
+		return false;
+	}
+
+	/**
+	 * Queues a command line for the sensor.
+	 *
+	 * @return false if there is no connection or too many commands are pending. Failures while writing
+	 * close the link and are reported as {@link ConnectionState#FAILED}.
+	 */
+	public boolean sendToTarget(String message) {
+		return sendCommand(new Command(message));
+	}
+
+	private boolean sendCommand(Command command) {
+		// deliberately not synchronized, requests and acks must not wait for connection management
+		CommandWriter writer = commandWriter;
+		return writer != null && writer.send(command);
+	}
+
+	/**
+	 * @param timeline motion of the phone to store with the readings, null for none
+	 */
+	public void setMotionTimeline(MotionTimeline timeline) {
+		motionAligner.setTimeline(timeline);
+	}
+
+	/**
+	 * @param source position of the phone to tag the readings with, null for none
+	 */
+	public void setGeoSource(GeoFix.Source source) {
+		geoSource = source;
+	}
+
+	/**
+	 * Records the raw bytes of the link to a new capture file in the directory, until
+	 * {@link #stopCapture()}. Reconnects are recorded in the same file.
+	 */
+	public synchronized void startCapture(File directory) {
+		if (capture != null) return;
+
+		File file = new File(directory, address.replace(':', '-') + "-" + System.currentTimeMillis() + ".pmcap");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("unable to create " + directory);
+			capture = new WireCapture(file.getPath());
+		} catch (IOException e) {
+			Log.e(TAG, address + " starting capture err", e);
+			return;
+		}
+		Log.i(TAG, address + " capturing to " + file);
+		if (connectedTransport != null) capture.recordLinkOpened();
+	}
+
+	public synchronized void stopCapture() {
+		WireCapture stopped = capture;
+		if (stopped == null) return;
+
+		// the reader and writer threads see the capture gone before it is closed, late records are ignored
+		capture = null;
+		try {
+			stopped.close();
+			Log.i(TAG, address + " capture stopped, " + stopped.getBytesRecorded() + " bytes recorded");
+		} catch (IOException e) {
+			Log.e(TAG, address + " writing capture err", e);
+		}
+	}
+
+	public boolean isCapturing() {
+		return capture != null;
+	}
+
+	private synchronized void updateSampling() {
+		final boolean connected = connectionState == ConnectionState.CONNECTED;
+		final long now = System.currentTimeMillis();
+
+		samplingAdaptive = connected && samplingPeriodMs == SAMPLING_ADAPTIVE;
+		if (samplingAdaptive) {
+			rateController.start(now);
+			applyPeriod(rateController.getPeriodMs());
+			return;
+		}
+
+		rateController.stop(now);
+		applyPeriod(connected && samplingPeriodMs > 0 ? samplingPeriodMs : 0);
+	}
+
+	private synchronized void applyAdaptivePeriod(long periodMs) {
+		// the link may have gone or the mode changed since the period was chosen
+		if (!samplingAdaptive) return;
+		applyPeriod(periodMs);
+	}
+
+	/**
+	 * Streams at the period if the sensor can push, polls otherwise. 0 stops sampling.
+	 */
+	private synchronized void applyPeriod(long periodMs) {
+		if (periodMs > 0 && capabilities.isPushSupported()) {
+			samplingScheduler.stop();
+			if (subscribe(periodMs)) return;
+			Log.e(TAG, address + " subscribing err, polling instead");
+		} else {
+			unsubscribe();
+		}
+
+		if (periodMs > 0) {
+			samplingScheduler.start(periodMs);
+		} else {
+			samplingScheduler.stop();
+		}
+	}
+
+	/**
+	 * @return false if the subscription could not be sent
+	 */
+	private synchronized boolean subscribe(long periodMs) {
+		final long supportedMs = capabilities.clampPeriod(periodMs);
+		streamRequestedPeriodMs = periodMs;
+		if (streaming && supportedMs == streamPeriodMs) return true;
+
+		final int ackEvery = (int) Math.max(1, Math.min(MAX_STREAM_ACK_EVERY, STREAM_ACK_INTERVAL_MS / supportedMs));
+		if (!sendCommand(new Command("STREAM " + supportedMs + " " + ackEvery))) {
+			streaming = false;
+			handler.removeCallbacks(streamWatchdog);
+			return false;
+		}
+
+		Log.i(TAG, address + " streaming every " + supportedMs + " ms, acking every " + ackEvery + " frames");
+		streamAckEvery = ackEvery;
+		streamPeriodMs = supportedMs;
+		streaming = true;
+		streamFramesChecked = streamFrames;
+		handler.removeCallbacks(streamWatchdog);
+		handler.postDelayed(streamWatchdog, getStreamStallMs());
+		return true;
+	}
+
+	private synchronized void unsubscribe() {
+		if (!streaming) return;
+
+		streaming = false;
+		handler.removeCallbacks(streamWatchdog);
+		sendCommand(Command.STOP_STREAM);
+	}
+
+	private synchronized long getStreamStallMs() {
+		return Math.max(STREAM_STALL_MS, 4 * streamPeriodMs);
+	}
+
+	/**
+	 * Frames lost on the way leave the sensor waiting for an ack that never comes, an extra ack gets the
+	 * stream going again.
+	 */
+	private synchronized void checkStream() {
+		if (!streaming) return;
+
+		long frames = streamFrames;
+		if (frames == streamFramesChecked) {
+			Log.w(TAG, address + " stream stalled, acking again");
+			metrics.onStreamStalled();
+			sendCommand(Command.ACK_SAMPLE);
+		}
+		streamFramesChecked = frames;
+		handler.postDelayed(streamWatchdog, getStreamStallMs());
+	}
+
+	private synchronized void onCapabilities(ReaderThread thread, SensorCapabilities announced) {
+		if (readerThread != thread) return;
+
+		Log.i(TAG, address + " sensor capabilities: " + announced);
+		capabilities = announced;
+		updateSampling();
+	}
+
+	private synchronized void setConnectionState(ConnectionState state) {
+		if (connectionState == state) return;
+
+		Log.v(TAG, address + " connection state: " + connectionState + " --> " + state);
+		connectionState = state;
+		service.onConnectionStateChanged(this, state);
+	}
+
+	private synchronized void scheduleReconnect() {
+		if (!reconnectEnabled) return;
+
+		long delay = reconnectBackoff.nextDelayMs();
+		if (delay < 0) {
+			Log.i(TAG, address + " giving up reconnecting after " + reconnectBackoff.getAttempts() + " attempts");
+			reconnectEnabled = false;
+			return;
+		}
+
+		Log.i(TAG, address + " reconnecting in " + delay + " ms");
+		handler.removeCallbacks(reconnectRunnable);
+		handler.postDelayed(reconnectRunnable, delay);
+	}
+
+	private synchronized void cancelReconnect() {
+		reconnectEnabled = false;
+		handler.removeCallbacks(reconnectRunnable);
+	}
+
+	private synchronized void onReconnectDue() {
+		if (!reconnectEnabled || connectionState == ConnectionState.CONNECTING || connectionState == ConnectionState.CONNECTED) return;
+
+		if (!transportFactory.isAvailable()) {
+			scheduleReconnect();
+			return;
+		}
+		metrics.onReconnect();
+		openLink();
+	}
+
+	private synchronized void openLink() {
+		Log.i(TAG, "Bluetooth-Slave: " + getName() + "; " + address);
+
+		setConnectionState(ConnectionState.CONNECTING);
+
+		// opening the transport blocks for seconds, so it runs on its own thread without holding the lock
+		final ConnectThread thread = new ConnectThread();
+		connectThread = thread;
+		thread.start();
+
+		handler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				onConnectTimeout(thread);
+			}
+		}, CONNECT_TIMEOUT_MS);
+	}
+
+	private synchronized void onConnectTimeout(ConnectThread thread) {
+		if (connectThread != thread) return;
+
+		Log.e(TAG, address + " connecting socket timed out after " + CONNECT_TIMEOUT_MS + " ms");
+		// closing the transport makes the pending open() fail, the thread then reports the failure
+		thread.cancel();
+	}
+
+	private synchronized void onConnectFailed(ConnectThread thread) {
+		if (connectThread != thread) return;
+
+		connectThread = null;
+		closeConnection();
+		setConnectionState(ConnectionState.FAILED);
+		scheduleReconnect();
+	}
+
+	private synchronized boolean onConnectSucceeded(ConnectThread thread, SensorTransport transport) {
+		// the attempt has been superseded by disconnect()
+		if (connectThread != thread) return false;
+
+		try {
+			InputStream realInputStream = transport.getInputStream();
+			if (realInputStream == null) {
+				Log.e(TAG, "socket getInputStream err");
+				return false;
+			}
+			inputStream = new BufferedInputStream(realInputStream);
+		} catch (IOException e) {
+			Log.e(TAG, "socket getInputStream exception");
+			return false;
+		}
+
+		try {
+			OutputStream realOutputStream = transport.getOutputStream();
+			if (realOutputStream == null) {
+				Log.e(TAG, "socket getOutputStream err");
+				return false;
+			}
+			// the writer batches commands itself, no buffered stream needed
+			CommandWriter writer = new CommandWriter(new CaptureOutputStream(realOutputStream), new CommandWriter.WriteFailureListener() {
+				@Override
+				public void onWriteFailed(CommandWriter writer, IOException e) {
+					SensorConnection.this.onWriteFailed(writer, e);
+				}
+			});
+			writer.start();
+			commandWriter = writer;
+		} catch (IOException e) {
+			Log.e(TAG, "socket getOutputStream exception");
+			return false;
+		}
+		connectedTransport = transport;
+		connectThread = null;
+		if (capture != null) capture.recordLinkOpened();
+
+		// from now on a lost link is reestablished without going through discovery again
+		reconnectBackoff.reset();
+
+		// sync message sending, newer firmware answers with its capabilities
+		if (!sendCommand(service.getSyncCommand())) {
+			Log.e(TAG, "sendSyncMessage err");
+		}
+
+		// start draining the input stream, replies are delivered through the event receiver
+		readerThread = new ReaderThread(inputStream);
+		readerThread.start();
+
+		setConnectionState(ConnectionState.CONNECTED);
+		updateSampling();
+
+		service.onConnected(this);
+		return true;
+	}
+
+	private synchronized void onWriteFailed(CommandWriter writer, IOException e) {
+		if (commandWriter != writer) return;
+
+		Log.e(TAG, address + " writing to socket err", e);
+		closeConnection();
+		setConnectionState(ConnectionState.FAILED);
+		scheduleReconnect();
+	}
+
+	private synchronized void onConnectionLost(ReaderThread thread) {
+		if (readerThread != thread) return;
+
+		Log.e(TAG, address + " connection lost");
+		closeConnection();
+		setConnectionState(ConnectionState.FAILED);
+		scheduleReconnect();
+	}
+
+	private synchronized void closeLink() {
+		if (connectThread == null && connectedTransport == null) {
+			if (connectionState == ConnectionState.FAILED) setConnectionState(ConnectionState.IDLE);
+			return;
+		}
+
+		setConnectionState(ConnectionState.DISCONNECTING);
+
+		if (connectThread != null) {
+			connectThread.cancel();
+		}
+		connectThread = null;
+
+		closeConnection();
+		setConnectionState(ConnectionState.IDLE);
+	}
+
+	private synchronized void closeConnection() {
+
+		samplingScheduler.stop();
+		// the next connection may be to other firmware, nothing to unsubscribe from on a closed link
+		streaming = false;
+		handler.removeCallbacks(streamWatchdog);
+		capabilities = SensorCapabilities.LEGACY;
+		metrics.onLinkClosed();
+		if (samplingAdaptive) {
+			samplingAdaptive = false;
+			rateController.stop(System.currentTimeMillis());
+			Log.i(TAG, address + " adaptive sampling took " + rateController.getSamples() + " samples instead of "
+					+ rateController.getFixedRateSamples() + ", saved " + rateController.getSamplesSaved() + " samples and "
+					+ rateController.getWakeupsSaved() + " radio wake-ups");
+		}
+
+		// the reader syncs the store and saves the tiles on its way out, not the caller's thread under the lock
+		if (readerThread != null) {
+			readerThread.cancel();
+			finishingReader = readerThread;
+		}
+		readerThread = null;
+
+		if (commandWriter != null) {
+			commandWriter.close();
+		}
+		commandWriter = null;
+
+		if (inputStream != null) {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				Log.e(TAG, address + " closing input stream err", e);
+			} catch (NullPointerException e) {
+				// thrown by some bluetooth stacks for a socket closed underneath
+				Log.e(TAG, address + " closing input stream err", e);
+			}
+		}
+		inputStream = null;
+
+		if (connectedTransport != null) {
+			try {
+				connectedTransport.close();
+			} catch (IOException e) {
+				Log.e(TAG, address + " closing transport err", e);
+			}
+		}
+		connectedTransport = null;
+	}
+
+	/**
+	 * Waits until the reader of the closed link has stored its last readings, synced the store and saved the
+	 * tiles. Must be called without the connection lock, the reader may need it to finish.
+	 *
+	 * @return false if the reader did not finish in time
+	 */
+	boolean awaitReaderFinished(long timeoutMs) {
+		ReaderThread reader;
+		synchronized (this) {
+			reader = finishingReader;
+		}
+		if (reader == null) return true;
+
+		try {
+			reader.join(timeoutMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (reader.isAlive()) return false;
+
+		synchronized (this) {
+			if (finishingReader == reader) finishingReader = null;
+		}
+		return true;
+	}
+
+	private void storeSample(long timestamp, int pm25, int pm10, int flags) {
+		final SampleStore store = this.store;
+		if (store == null) return;
+
+		try {
+			store.append(timestamp, pm25, pm10, flags);
+			storeFailing = false;
+		} catch (IOException e) {
+			// report once, not for every sample while the storage is full
+			if (!storeFailing) Log.e(TAG, address + " storing sample err", e);
+			storeFailing = true;
+		}
+	}
+
+	/**
+	 * Opens the store of the readings and fills the chart history from it on a background thread. Opening
+	 * may rebuild block indexes, so it must not be called on the main thread.
+	 */
+	void openStore(File directory, long retentionMs) {
+		try {
+			store = new SampleStore(directory, retentionMs);
+		} catch (IOException e) {
+			Log.e(TAG, address + " opening sample store err", e);
+		}
+		storeOpened.countDown();
+		loadHistory();
+	}
+
+	/**
+	 * Waits until opening the store has been tried.
+	 *
+	 * @return false if interrupted first
+	 */
+	private boolean awaitStoreOpened() {
+		try {
+			storeOpened.await();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Releases the store files, the connection must not be used afterwards.
+	 */
+	void closeStore() {
+		awaitStoreOpened();
+		final SampleStore store = this.store;
+		if (store == null) return;
+
+		saveTiles();
+		try {
+			store.close();
+		} catch (IOException e) {
+			Log.e(TAG, address + " closing sample store err", e);
+		}
+	}
+
+	/**
+	 * Fills the chart history with the stored readings on a background thread. Live readings arriving
+	 * meanwhile are merged, the order does not matter.
+	 */
+	private void loadHistory() {
+		final SampleStore store = this.store;
+		if (store == null) return;
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loadTiles(store);
+
+				SampleStore.Cursor cursor = store.openCursor();
+				try {
+					while (cursor.next()) {
+						history.add(cursor.getTimestamp(), cursor.getPm25(), cursor.getPm10());
+					}
+				} catch (IOException e) {
+					Log.e(TAG, address + " loading history err", e);
+				} finally {
+					try {
+						cursor.close();
+					} catch (IOException e) {
+						Log.e(TAG, address + " closing cursor err", e);
+					}
+				}
+			}
+		}, "HistoryLoader " + address);
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+	}
+
+	/**
+	 * Merges the saved tiles into the ones filled since the connection was created.
+	 */
+	private void loadTiles(SampleStore store) {
+		File file = new File(store.getDirectory(), TILES_FILE);
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				tiles.readFrom(new BufferedInputStream(in));
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// nothing located yet
+		} catch (IOException e) {
+			// the readings are still stored, only the map starts over
+			Log.e(TAG, address + " loading tiles err", e);
+		}
+		tilesLoaded = true;
+	}
+
+	/**
+	 * Writes the tiles to a new file replacing the saved one, so a killed process leaves the old one. Called
+	 * by the exiting reader and when the store is closed, never on the main thread.
+	 */
+	private void saveTiles() {
+		final SampleStore store = this.store;
+		if (store == null || !tilesLoaded) return;
+
+		synchronized (tilesFileLock) {
+			final long readings = tiles.getReadings();
+			if (readings == tilesSavedReadings) return;
+
+			File file = new File(store.getDirectory(), TILES_FILE);
+			File temporary = new File(store.getDirectory(), TILES_FILE + ".tmp");
+			try {
+				FileOutputStream out = new FileOutputStream(temporary);
+				try {
+					BufferedOutputStream buffered = new BufferedOutputStream(out);
+					tiles.writeTo(buffered);
+					buffered.flush();
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				if (!temporary.renameTo(file)) throw new IOException("unable to rename " + temporary);
+				tilesSavedReadings = readings;
+			} catch (IOException e) {
+				Log.e(TAG, address + " saving tiles err", e);
+			}
+		}
+	}
+
+	private void syncStore() {
+		final SampleStore store = this.store;
+		if (store == null) return;
+
+		try {
+			store.sync();
+		} catch (IOException e) {
+			Log.e(TAG, address + " syncing sample store err", e);
+		}
+	}
+
+	/**
+	 * Passes commands on to the sensor, recording them while capturing.
+	 */
+	private final class CaptureOutputStream extends FilterOutputStream {
+		CaptureOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			out.write(buffer, offset, count);
+			WireCapture current = capture;
+			if (current != null) current.recordOut(buffer, offset, count);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+	}
+
+	/**
+	 * Opens the transport off the main thread. A pending open() is aborted by closing the transport.
+	 */
+	private final class ConnectThread extends Thread {
+		private SensorTransport transport;
+		private boolean cancelled;
+
+		ConnectThread() {
+			super("BluetoothConnect " + address);
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			closeTransport();
+		}
+
+		private synchronized void closeTransport() {
+			if (transport == null) return;
+			try {
+				transport.close();
+			} catch (IOException e) {
+				Log.e(TAG, "closing transport err", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			// readings arriving before the store is open would be lost
+			if (!awaitStoreOpened()) {
+				onConnectFailed(this);
+				return;
+			}
+
+			// one reader at a time fills the buffers and the store, the previous one finishes first
+			if (!awaitReaderFinished(READER_FINISH_TIMEOUT_MS)) {
+				Log.e(TAG, address + " previous reader still running");
+				metrics.onConnectFailed();
+				onConnectFailed(this);
+				return;
+			}
+
+			final long startNanos = System.nanoTime();
+			SensorTransport transport;
+			try {
+				synchronized (this) {
+					if (cancelled) return;
+					this.transport = transportFactory.create(address);
+					transport = this.transport;
+				}
+
+				transport.open();
+			} catch (IOException e) {
+				Log.e(TAG, "connecting socket err", e);
+				metrics.onConnectFailed();
+				closeTransport();
+				onConnectFailed(this);
+				return;
+			}
+
+			if (onConnectSucceeded(this, transport)) {
+				metrics.onConnectSucceeded(startNanos);
+			} else {
+				metrics.onConnectFailed();
+				closeTransport();
+				onConnectFailed(this);
+			}
+		}
+	}
+
+	/**
+	 * Continuously drains the transport input stream through a {@link FrameDecoder} and hands every decoded
+	 * reading to the service. Runs without holding the connection lock, so a slow sensor never blocks
+	 * other calls.
+	 */
+	private final class ReaderThread extends Thread implements FrameDecoder.FrameListener, FrameDecoder.CapabilityListener {
+		private final InputStream in;
+		private final byte[] readBuffer = new byte[256];
+		private final FrameDecoder decoder = new FrameDecoder(this);
+		private long framesRejected;
+		private int framesSinceAck;
+		/** when the bytes being decoded were read, the time of every reading in them */
+		private long readNanos;
+		private long readMillis;
+		private volatile boolean cancelled;
+
+		ReaderThread(InputStream in) {
+			super("BluetoothReader " + address);
+			this.in = in;
+			decoder.setCapabilityListener(this);
+		}
+
+		void cancel() {
+			cancelled = true;
+			interrupt();
+		}
+
+		@Override
+		public void onFrame(int pm25, int pm10) {
+			final long nanos = readNanos;
+			metrics.onFrame(nanos);
+			// the time of the read rather than of the decoding, so a replayed capture gives the same readings
+			final long timestamp = readMillis;
+			recentSamples.add(timestamp, pm25, pm10);
+			aggregates.add(timestamp, pm25, pm10);
+			history.add(timestamp, pm25, pm10);
+			motionAligner.add(timestamp, pm25, pm10, locate(timestamp, pm25, pm10));
+			final boolean pushed = streaming;
+			if (pushed) {
+				streamFrames++;
+			} else {
+				samplingScheduler.onResponse();
+			}
+			if (samplingAdaptive) {
+				long periodMs = rateController.onReading(timestamp, pm25, pm10);
+				// only changes take the connection lock
+				if (periodMs != (pushed ? streamRequestedPeriodMs : samplingScheduler.getPeriodMs())) applyAdaptivePeriod(periodMs);
+			}
+			ack(pushed);
+
+			// readings arriving while one waits for the main thread replace it instead of queueing up
+			latestReading = ((long) pm25 << 32) | (pm10 & 0xffffffffL);
+			latestReadingNanos = nanos;
+			if (!readingDeliveryPending.getAndSet(true)) handler.post(readingDelivery);
+		}
+
+		/**
+		 * Adds the reading to its tile if the position at its time is known.
+		 *
+		 * @return the flags to store it with
+		 */
+		private int locate(long timestamp, int pm25, int pm10) {
+			final GeoFix.Source source = geoSource;
+			final GeoFix fix = source == null ? null : source.getFixAt(timestamp);
+			if (fix == null) return 0;
+
+			tiles.add(fix.getLatitude(), fix.getLongitude(), timestamp, pm25, pm10);
+			return GeoFix.FLAG_LOCATED;
+		}
+
+		@Override
+		public void onCapabilities(SensorCapabilities capabilities) {
+			SensorConnection.this.onCapabilities(this, capabilities);
+		}
+
+		/**
+		 * Polled frames are acked one by one as old firmware expects, pushed ones every few frames.
+		 */
+		private void ack(boolean pushed) {
+			if (pushed && ++framesSinceAck < streamAckEvery) return;
+
+			framesSinceAck = 0;
+			if (sendCommand(Command.ACK_SAMPLE) && pushed && samplingAdaptive) {
+				// the acks are what wakes up the radio of a streaming sensor
+				rateController.onRequestSent(System.currentTimeMillis());
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!cancelled) {
+					int count = in.read(readBuffer, 0, readBuffer.length);
+					if (count < 0) break;
+
+					readNanos = System.nanoTime();
+					readMillis = System.currentTimeMillis();
+					metrics.onBytesReceived(count);
+					WireCapture current = capture;
+					if (current != null) current.recordIn(readBuffer, 0, count, readNanos, readMillis);
+					decoder.feed(readBuffer, 0, count);
+
+					long rejected = decoder.getFramesRejected();
+					if (rejected != framesRejected) {
+						metrics.onParseErrors(rejected - framesRejected);
+						framesRejected = rejected;
+					}
+				}
+			} catch (IOException e) {
+				if (!cancelled) Log.e(TAG, "reading from socket err", e);
+			}
+			// readings still waiting for their motion are stored with what is known, the process may be
+			// killed any time after the link is gone
+			motionAligner.drain(System.currentTimeMillis(), true);
+			syncStore();
+			saveTiles();
+			if (!cancelled) onConnectionLost(this);
+			Log.i(TAG, "reader thread finished, frames decoded: " + decoder.getFramesDecoded() + ", rejected: " + decoder.getFramesRejected());
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream link to one sensor.
+ *
+ * A transport is used for a single connection attempt: {@link #open()} blocks until the link is up,
+ * afterwards the streams carry frames from and commands to the sensor. {@link #close()} may be called from
+ * any thread at any time and makes a pending open() or read fail.
+ */
+public interface SensorTransport {
+	/**
+	 * Creates the transports for the sensors of one kind.
+	 */
+	public interface Factory {
+		/**
+		 * @return false while no link can be opened at all, e.g. bluetooth is off
+		 */
+		public boolean isAvailable();
+
+		/**
+		 * @return the display name of the sensor, null if unknown
+		 */
+		public String getDeviceName(String address);
+
+		public SensorTransport create(String address) throws IOException;
+	}
+
+	public void open() throws IOException;
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,33 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+
+/**
+ * Streams stored readings into an {@link ExportWriter} straight from the store's segment files, one
+ * cursor buffer at a time, so exports of any length run in constant memory. Only the blocks of the time
+ * range are read, see {@link SampleQuery}.
+ */
+public final class SessionExport {
+	private SessionExport() {
+	}
+
+	/**
+	 * Exports the flushed readings in [start, end) and finishes the writer.
+	 *
+	 * @return the number of readings written
+	 */
+	public static long export(SampleStore store, long start, long end, ExportWriter writer) throws IOException {
+		long readings = 0;
+		SampleQuery.Cursor cursor = SampleQuery.readings(store, start, end);
+		try {
+			while (cursor.next()) {
+				writer.write(cursor.getTimestamp(), cursor.getPm25Tenths(), cursor.getPm10Tenths(), cursor.getFlags());
+				readings++;
+			}
+		} finally {
+			cursor.close();
+		}
+		writer.finish();
+		return readings;
+	}
+}
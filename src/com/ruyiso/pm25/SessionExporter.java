@@ -0,0 +1,167 @@
+package com.ruyiso.pm25;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.content.Context;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Gets the stored readings of a sensor off the device, on a background thread.
+ *
+ * Files go to the app's external files directory, a columnar export (.pmx) and a CSV. The columnar
+ * export can also be streamed to a local socket, e.g. to a desktop with
+ * <pre>
+ * adb forward tcp:5025 localabstract:pm25-export
+ * nc localhost 5025 &gt; export.pmx
+ * </pre>
+ */
+public final class SessionExporter {
+	private static final String TAG = "SessionExporter";
+
+	public static final String SOCKET_NAME = "pm25-export";
+
+	private static final String EXPORT_DIRECTORY = "exports";
+
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+	public interface Listener {
+		/**
+		 * Called on the main thread.
+		 *
+		 * @param location the file or socket written to
+		 * @param readings readings exported, -1 if the export failed
+		 */
+		public void exportFinished(String location, long readings);
+	}
+
+	private final Context applicationContext;
+	private final Handler handler;
+
+	/** only one client is waited for at a time */
+	private boolean streaming;
+
+	public SessionExporter(Context applicationContext, Handler handler) {
+		this.applicationContext = applicationContext;
+		this.handler = handler;
+	}
+
+	/**
+	 * Writes all readings of the sensor to a .pmx and a .csv file named after it and the time.
+	 */
+	public void exportToFiles(final SensorConnection connection, final Listener listener) {
+		final SampleStore store = connection.getStore();
+		if (store == null) {
+			listener.exportFinished(connection.getAddress(), -1);
+			return;
+		}
+
+		Thread exporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				File directory = applicationContext.getExternalFilesDir(EXPORT_DIRECTORY);
+				if (directory == null) directory = new File(applicationContext.getFilesDir(), EXPORT_DIRECTORY);
+				String name = connection.getAddress().replace(':', '-') + "-" + System.currentTimeMillis();
+
+				File columnar = new File(directory, name + ".pmx");
+				long readings = -1;
+				try {
+					// the store only hands flushed readings to cursors
+					store.flush();
+					if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("unable to create " + directory);
+
+					readings = exportToFile(store, columnar, false);
+					exportToFile(store, new File(directory, name + ".csv"), true);
+				} catch (IOException e) {
+					Log.e(TAG, "exporting to " + directory + " err", e);
+					readings = -1;
+				}
+				post(listener, columnar.getPath(), readings);
+			}
+		}, "SessionExporter " + connection.getAddress());
+		exporter.start();
+	}
+
+	/**
+	 * Waits for one client on the abstract local socket {@link #SOCKET_NAME} and streams the columnar
+	 * export of all readings to it.
+	 *
+	 * @return false if a client is already being waited for
+	 */
+	public synchronized boolean streamToLocalSocket(final SensorConnection connection, final Listener listener) {
+		final SampleStore store = connection.getStore();
+		if (store == null || streaming) return false;
+		streaming = true;
+
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long readings = -1;
+				LocalServerSocket serverSocket = null;
+				LocalSocket socket = null;
+				try {
+					serverSocket = new LocalServerSocket(SOCKET_NAME);
+					socket = serverSocket.accept();
+					store.flush();
+					OutputStream out = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+					readings = SessionExport.export(store, Long.MIN_VALUE, Long.MAX_VALUE, new ColumnarExportWriter(out));
+				} catch (IOException e) {
+					Log.e(TAG, "streaming export err", e);
+				} finally {
+					close(socket);
+					close(serverSocket);
+					synchronized (SessionExporter.this) {
+						streaming = false;
+					}
+				}
+				post(listener, "localabstract:" + SOCKET_NAME, readings);
+			}
+		}, "SessionExporter socket");
+		server.start();
+		return true;
+	}
+
+	private static long exportToFile(SampleStore store, File file, boolean csv) throws IOException {
+		// both writers buffer themselves
+		OutputStream out = new FileOutputStream(file);
+		try {
+			ExportWriter writer = csv ? new CsvExportWriter(out) : new ColumnarExportWriter(out);
+			return SessionExport.export(store, Long.MIN_VALUE, Long.MAX_VALUE, writer);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void post(final Listener listener, final String location, final long readings) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				listener.exportFinished(location, readings);
+			}
+		});
+	}
+
+	private static void close(LocalSocket socket) {
+		if (socket == null) return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "closing socket err", e);
+		}
+	}
+
+	private static void close(LocalServerSocket serverSocket) {
+		if (serverSocket == null) return;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "closing server socket err", e);
+		}
+	}
+}
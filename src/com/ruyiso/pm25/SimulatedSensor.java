@@ -0,0 +1,480 @@
+package com.ruyiso.pm25;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for a sensor, speaking the same protocol over a {@link LoopbackTransport}.
+ *
+ * Frames come from a {@link FrameSource}, either synthetic readings or a loop over a recording of a real
+ * sensor. The sensor answers every "t" request with one frame and may additionally stream frames at a
+ * fixed rate. With {@link #setCapabilities(SensorCapabilities)} it behaves like newer firmware: SYNC is
+ * answered with a capability frame and, with push support, STREAM subscriptions are served with the flow
+ * control described in {@link SensorCapabilities}. Replies are delayed by the configured latency plus a
+ * random jitter and dropped with the configured loss rate. All randomness comes from one seeded
+ * generator, so runs can be repeated.
+ *
+ * Only one session is served at a time, a new connection drops the previous one like a real SPP device.
+ */
+public final class SimulatedSensor {
+	/**
+	 * Supplies the frames sent by the sensor.
+	 */
+	public interface FrameSource {
+		/**
+		 * Writes the next frame to the start of the buffer, which holds at least {@link #MAX_FRAME_SIZE} bytes.
+		 *
+		 * @return the length of the frame, 0 if there is none
+		 */
+		public int nextFrame(byte[] buffer);
+	}
+
+	/** the PMS5003 layout: 13 data words plus checksum */
+	public static final int FRAME_LENGTH = 28;
+	public static final int FRAME_SIZE = 4 + FRAME_LENGTH;
+	public static final int MAX_FRAME_SIZE = 4 + FrameDecoder.MAX_LENGTH;
+
+	private static final int COMMAND_BUFFER_SIZE = 64;
+
+	private final String name;
+	private final FrameSource source;
+	private final Random random;
+
+	private volatile long latencyMs;
+	private volatile long jitterMs;
+	private volatile double lossRate;
+	private volatile double streamRateHz;
+	private volatile SensorCapabilities capabilities = SensorCapabilities.LEGACY;
+
+	private Session session;
+
+	private final AtomicLong requestsReceived = new AtomicLong();
+	private final AtomicLong framesSent = new AtomicLong();
+	private final AtomicLong framesLost = new AtomicLong();
+	private final AtomicLong framesHeld = new AtomicLong();
+	private final AtomicLong acksReceived = new AtomicLong();
+
+	public SimulatedSensor(String name, FrameSource source, long seed) {
+		this.name = name;
+		this.source = source;
+		this.random = new Random(seed);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Delays every frame by latencyMs plus a uniformly distributed 0 to jitterMs.
+	 */
+	public void setLatency(long latencyMs, long jitterMs) {
+		if (latencyMs < 0 || jitterMs < 0) throw new IllegalArgumentException("negative latency");
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+	}
+
+	/**
+	 * @param lossRate fraction of frames silently dropped, 0 to 1
+	 */
+	public void setLossRate(double lossRate) {
+		if (lossRate < 0 || lossRate > 1) throw new IllegalArgumentException("invalid loss rate " + lossRate);
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * Sends frames unrequested at the given rate, 0 only answers requests. Takes effect with the next
+	 * connection.
+	 */
+	public void setStreamRate(double rateHz) {
+		if (rateHz < 0) throw new IllegalArgumentException("invalid rate " + rateHz);
+		this.streamRateHz = rateHz;
+	}
+
+	/**
+	 * Sets what the firmware announces, {@link SensorCapabilities#LEGACY} ignores SYNC and STREAM like old
+	 * firmware. Takes effect with the next connection.
+	 */
+	public void setCapabilities(SensorCapabilities capabilities) {
+		this.capabilities = capabilities;
+	}
+
+	public long getRequestsReceived() {
+		return requestsReceived.get();
+	}
+
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+
+	public long getFramesLost() {
+		return framesLost.get();
+	}
+
+	/**
+	 * @return stream frames not sent because the app had not acked the previous ones
+	 */
+	public long getFramesHeld() {
+		return framesHeld.get();
+	}
+
+	public long getAcksReceived() {
+		return acksReceived.get();
+	}
+
+	/**
+	 * Starts serving a connection, dropping the previous one.
+	 */
+	synchronized void connect(InputStream commands, OutputStream frames) {
+		if (session != null) session.close();
+		session = new Session(commands, frames);
+		session.start();
+	}
+
+	public synchronized void disconnect() {
+		if (session != null) session.close();
+		session = null;
+	}
+
+	private long nextDelayMs() {
+		long jitter = jitterMs;
+		return latencyMs + (jitter > 0 ? (long) (random.nextDouble() * (jitter + 1)) : 0);
+	}
+
+	private boolean nextLost() {
+		double loss = lossRate;
+		return loss > 0 && random.nextDouble() < loss;
+	}
+
+	/**
+	 * Encodes a frame with the given readings in all concentration words.
+	 *
+	 * @return the number of bytes written, {@link #FRAME_SIZE}
+	 */
+	public static int encodeFrame(int pm25, int pm10, byte[] buffer, int offset) {
+		final int pm1 = pm25 * 2 / 3;
+		buffer[offset] = (byte) FrameDecoder.HEADER_1;
+		buffer[offset + 1] = (byte) FrameDecoder.HEADER_2;
+		putWord(buffer, offset + 2, FRAME_LENGTH);
+		// standard particle, then atmospheric environment concentrations
+		putWord(buffer, offset + 4, pm1);
+		putWord(buffer, offset + 6, pm25);
+		putWord(buffer, offset + 8, pm10);
+		putWord(buffer, offset + 10, pm1);
+		putWord(buffer, offset + 12, pm25);
+		putWord(buffer, offset + 14, pm10);
+		// particle counts are not simulated
+		for (int i = offset + 16; i < offset + FRAME_SIZE - 2; i++) {
+			buffer[i] = 0;
+		}
+
+		int sum = 0;
+		for (int i = offset; i < offset + FRAME_SIZE - 2; i++) {
+			sum += buffer[i] & 0xff;
+		}
+		putWord(buffer, offset + FRAME_SIZE - 2, sum & 0xffff);
+		return FRAME_SIZE;
+	}
+
+	private static void putWord(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 8);
+		buffer[offset + 1] = (byte) value;
+	}
+
+	/**
+	 * Readings following a random walk around a baseline with occasional peaks.
+	 */
+	public static final class SyntheticSource implements FrameSource {
+		private final Random random;
+		private final int baseline;
+		private double pm25;
+
+		public SyntheticSource(int baseline, long seed) {
+			this.random = new Random(seed);
+			this.baseline = baseline;
+			this.pm25 = baseline;
+		}
+
+		@Override
+		public synchronized int nextFrame(byte[] buffer) {
+			// mean reverting walk, a peak about once every thousand frames
+			pm25 += (baseline - pm25) * 0.01 + random.nextGaussian();
+			if (random.nextInt(1000) == 0) pm25 += baseline * 4;
+			if (pm25 < 0) pm25 = 0;
+
+			int value = (int) Math.round(pm25);
+			return encodeFrame(value, value * 3 / 2, buffer, 0);
+		}
+	}
+
+	/**
+	 * Replays the frames of a recorded byte stream in a loop. Bytes outside of frames are skipped, frames
+	 * are passed on unchecked so corrupted recordings stay corrupted.
+	 */
+	public static final class RecordedSource implements FrameSource {
+		private final byte[] recording;
+		private int position;
+
+		public RecordedSource(byte[] recording) {
+			this.recording = recording;
+		}
+
+		@Override
+		public synchronized int nextFrame(byte[] buffer) {
+			// at most one pass over the recording per frame, it may not contain any
+			for (int scanned = 0; scanned < recording.length; scanned++) {
+				if (position + 4 > recording.length) {
+					scanned += recording.length - position - 1;
+					position = 0;
+					continue;
+				}
+
+				if ((recording[position] & 0xff) == FrameDecoder.HEADER_1
+						&& (recording[position + 1] & 0xff) == FrameDecoder.HEADER_2) {
+					int length = ((recording[position + 2] & 0xff) << 8) | (recording[position + 3] & 0xff);
+					int size = 4 + length;
+					if (length >= FrameDecoder.MIN_LENGTH && length <= FrameDecoder.MAX_LENGTH
+							&& position + size <= recording.length) {
+						System.arraycopy(recording, position, buffer, 0, size);
+						position += size;
+						return size;
+					}
+				}
+				position++;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * One connection: a thread parsing commands and a scheduler sending the delayed frames.
+	 */
+	private final class Session implements Runnable {
+		private final InputStream commands;
+		private final OutputStream frames;
+		private final Thread commandThread;
+		private final ScheduledExecutorService scheduler;
+		private final SensorCapabilities sessionCapabilities = capabilities;
+		private volatile boolean closed;
+
+		private final byte[] frame = new byte[MAX_FRAME_SIZE];
+
+		/** the subscribed stream, only touched by the command thread */
+		private ScheduledFuture<?> subscription;
+		private volatile int streamWindow;
+		private final AtomicInteger streamCredits = new AtomicInteger();
+
+		private final Runnable sendFrame = new Runnable() {
+			@Override
+			public void run() {
+				sendFrame();
+			}
+		};
+
+		private final Runnable streamTick = new Runnable() {
+			@Override
+			public void run() {
+				scheduleFrame();
+			}
+		};
+
+		private final Runnable subscriptionTick = new Runnable() {
+			@Override
+			public void run() {
+				if (streamCredits.get() <= 0) {
+					framesHeld.incrementAndGet();
+					return;
+				}
+				streamCredits.decrementAndGet();
+				scheduleFrame();
+			}
+		};
+
+		private final Runnable sendCapabilities = new Runnable() {
+			@Override
+			public void run() {
+				if (closed) return;
+
+				byte[] buffer = new byte[SensorCapabilities.FRAME_SIZE];
+				int size = sessionCapabilities.encode(buffer, 0);
+				try {
+					frames.write(buffer, 0, size);
+					frames.flush();
+				} catch (IOException e) {
+					close();
+				}
+			}
+		};
+
+		Session(InputStream commands, OutputStream frames) {
+			this.commands = commands;
+			this.frames = frames;
+			this.commandThread = new Thread(this, "SimulatedSensor " + name);
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "SimulatedSensor frames " + name);
+				}
+			});
+		}
+
+		void start() {
+			commandThread.start();
+
+			double rate = streamRateHz;
+			if (rate > 0) {
+				long periodNs = Math.max(1, (long) (1e9 / rate));
+				scheduler.scheduleAtFixedRate(streamTick, periodNs, periodNs, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		void close() {
+			closed = true;
+			scheduler.shutdownNow();
+			try {
+				commands.close();
+			} catch (IOException e) {
+
+			}
+			try {
+				frames.close();
+			} catch (IOException e) {
+
+			}
+		}
+
+		private void scheduleFrame() {
+			if (nextLost()) {
+				framesLost.incrementAndGet();
+				return;
+			}
+
+			long delay = nextDelayMs();
+			try {
+				if (delay == 0 && Thread.currentThread() != commandThread) {
+					sendFrame();
+				} else {
+					scheduler.schedule(sendFrame, delay, TimeUnit.MILLISECONDS);
+				}
+			} catch (RejectedExecutionException e) {
+				// the session has been closed meanwhile
+			}
+		}
+
+		/**
+		 * Only ever runs on the scheduler thread.
+		 */
+		private void sendFrame() {
+			if (closed) return;
+
+			int size = source.nextFrame(frame);
+			if (size <= 0) return;
+
+			try {
+				frames.write(frame, 0, size);
+				frames.flush();
+				framesSent.incrementAndGet();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private boolean isPushEnabled() {
+			return sessionCapabilities.getVersion() >= SensorCapabilities.PROTOCOL_VERSION && sessionCapabilities.isPushSupported();
+		}
+
+		private void onCommand(byte[] line, int length) {
+			if (length == 1 && line[0] == 't') {
+				requestsReceived.incrementAndGet();
+				scheduleFrame();
+				return;
+			}
+			if (length == 2 && line[0] == 'o' && line[1] == 'k') {
+				acksReceived.incrementAndGet();
+				// an ack allows a full window beyond the frames received so far
+				if (subscription != null) streamCredits.set(streamWindow);
+				return;
+			}
+
+			String command = new String(line, 0, length);
+			if (command.startsWith("SYNC")) {
+				if (sessionCapabilities.getVersion() < SensorCapabilities.PROTOCOL_VERSION) return;
+				try {
+					scheduler.execute(sendCapabilities);
+				} catch (RejectedExecutionException e) {
+					// the session has been closed meanwhile
+				}
+			} else if (command.startsWith("STREAM ") && isPushEnabled()) {
+				String[] arguments = command.split(" ");
+				try {
+					long periodMs = sessionCapabilities.clampPeriod(Long.parseLong(arguments[1]));
+					int ackEvery = Math.max(1, Integer.parseInt(arguments[2]));
+					startStream(periodMs, ackEvery);
+				} catch (RuntimeException e) {
+					// malformed commands are ignored like on the real sensor
+				}
+			} else if (command.equals("STOP")) {
+				stopStream();
+			}
+		}
+
+		private void startStream(long periodMs, int ackEvery) {
+			stopStream();
+			streamWindow = 2 * ackEvery;
+			streamCredits.set(streamWindow);
+			try {
+				subscription = scheduler.scheduleAtFixedRate(subscriptionTick, periodMs, periodMs, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// the session has been closed meanwhile
+			}
+		}
+
+		private void stopStream() {
+			if (subscription == null) return;
+			subscription.cancel(false);
+			subscription = null;
+		}
+
+		/**
+		 * Parses the command lines sent by the app. Lines longer than the buffer are cut, only their start
+		 * matters.
+		 */
+		@Override
+		public void run() {
+			final byte[] buffer = new byte[COMMAND_BUFFER_SIZE];
+			final byte[] line = new byte[COMMAND_BUFFER_SIZE];
+			int lineLength = 0;
+
+			try {
+				while (!closed) {
+					int count = commands.read(buffer, 0, buffer.length);
+					if (count < 0) break;
+
+					for (int i = 0; i < count; i++) {
+						byte b = buffer[i];
+						if (b == '\r') continue;
+						if (b == '\n') {
+							onCommand(line, Math.min(lineLength, line.length));
+							lineLength = 0;
+							continue;
+						}
+						if (lineLength < line.length) line[lineLength] = b;
+						lineLength++;
+					}
+				}
+			} catch (IOException e) {
+				// the app closed the link
+			}
+			close();
+		}
+	}
+}
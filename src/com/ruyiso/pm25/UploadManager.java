@@ -0,0 +1,234 @@
+package com.ruyiso.pm25;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Forwards the stored readings of all sensors to the configured endpoint.
+ *
+ * Every {@link #BATCH_INTERVAL_MS} the readings stored since the last batch of each sensor are packed into
+ * batches of at most {@link #MAX_BATCH_READINGS} and queued in an {@link UploadQueue}, the {@link Uploader}
+ * sends them whenever the network is available. The readings are taken from the sample stores, the reader
+ * threads do nothing extra per reading. How far each sensor has been queued is kept in the preferences, so
+ * nothing is queued twice or skipped across restarts.
+ */
+public final class UploadManager {
+	private static final String TAG = "UploadManager";
+
+	private static final String PREFERENCES_NAME = "upload";
+	private static final String PREF_ENDPOINT = "endpoint";
+	private static final String PREF_QUEUED_UNTIL = "queued_until_";
+
+	private static final String QUEUE_DIRECTORY = "upload";
+
+	/** queued batches beyond this are dropped, oldest first */
+	private static final long MAX_QUEUE_BYTES = 50L * 1024 * 1024;
+
+	private static final int MAX_CONCURRENT_UPLOADS = 2;
+
+	public static final long BATCH_INTERVAL_MS = 15 * 60 * 1000;
+
+	/** an hour at 10 Hz, about 40 kB compressed */
+	public static final int MAX_BATCH_READINGS = 36000;
+
+	private final Context applicationContext;
+	private final BluetoothService bluetoothService;
+
+	private UploadQueue queue;
+	private Uploader uploader;
+
+	private final ScheduledExecutorService batcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "UploadBatcher");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private final Runnable batchRunnable = new Runnable() {
+		@Override
+		public void run() {
+			queueNewReadings();
+		}
+	};
+
+	private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			updateOnline();
+		}
+	};
+
+	public UploadManager(Context applicationContext, BluetoothService bluetoothService) {
+		this.applicationContext = applicationContext;
+		this.bluetoothService = bluetoothService;
+	}
+
+	public void start(Context context) {
+		try {
+			queue = new UploadQueue(new File(applicationContext.getFilesDir(), QUEUE_DIRECTORY), MAX_QUEUE_BYTES);
+		} catch (IOException e) {
+			Log.e(TAG, "opening upload queue err", e);
+			return;
+		}
+		uploader = new Uploader(queue, MAX_CONCURRENT_UPLOADS);
+		uploader.setEndpoint(parseEndpoint(getEndpoint()));
+
+		// sticky, the current state is delivered right away
+		context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		batcher.scheduleWithFixedDelay(batchRunnable, BATCH_INTERVAL_MS, BATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues what is left and stops, the queue is sent after the next start.
+	 */
+	public void stop(Context context) {
+		if (uploader == null) return;
+
+		context.unregisterReceiver(connectivityReceiver);
+		batcher.execute(batchRunnable);
+		batcher.shutdown();
+		uploader.shutdown();
+	}
+
+	/**
+	 * @param endpoint http or https URL, empty turns uploading off
+	 * @return false if the URL is not valid
+	 */
+	public boolean setEndpoint(String endpoint) {
+		URL url = parseEndpoint(endpoint);
+		if (url == null && endpoint.length() > 0) return false;
+
+		synchronized (this) {
+			getPreferences().edit()
+					.putString(PREF_ENDPOINT, endpoint)
+					.commit();
+		}
+		if (uploader != null) uploader.setEndpoint(url);
+		return true;
+	}
+
+	public synchronized String getEndpoint() {
+		return getPreferences().getString(PREF_ENDPOINT, "");
+	}
+
+	/**
+	 * @return the uploader for its counters, null if the queue could not be opened
+	 */
+	public Uploader getUploader() {
+		return uploader;
+	}
+
+	/**
+	 * @return batches waiting to be sent, 0 if the queue could not be opened
+	 */
+	public int getQueuedBatches() {
+		return queue == null ? 0 : queue.size();
+	}
+
+	private void updateOnline() {
+		ConnectivityManager manager = (ConnectivityManager) applicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = manager.getActiveNetworkInfo();
+		uploader.setOnline(network != null && network.isConnected());
+	}
+
+	private void queueNewReadings() {
+		// nothing is queued before uploading has been set up
+		if (getEndpoint().length() == 0) return;
+
+		Collection<SensorConnection> connections = bluetoothService.getConnections();
+		for (SensorConnection connection : connections) {
+			SampleStore store = connection.getStore();
+			if (store == null) continue;
+
+			try {
+				queueNewReadings(connection.getAddress(), store);
+			} catch (IOException e) {
+				Log.e(TAG, connection.getAddress() + " queueing readings err", e);
+			}
+		}
+		uploader.drain();
+	}
+
+	private void queueNewReadings(String address, SampleStore store) throws IOException {
+		final String key = PREF_QUEUED_UNTIL + address;
+		long queuedUntil;
+		synchronized (this) {
+			queuedUntil = getPreferences().getLong(key, Long.MIN_VALUE);
+		}
+		if (queuedUntil == Long.MIN_VALUE) {
+			// the history from before uploading was set up is not sent
+			saveQueuedUntil(key, System.currentTimeMillis());
+			return;
+		}
+
+		store.flush();
+		// readings with an earlier timestamp after the clock went back are not sent
+		SampleQuery.Cursor cursor = SampleQuery.readings(store, queuedUntil + 1, Long.MAX_VALUE);
+		UploadQueue.Batch batch = null;
+		long newest = queuedUntil;
+		try {
+			while (cursor.next()) {
+				final long timestamp = cursor.getTimestamp();
+				if (timestamp > newest) newest = timestamp;
+
+				if (batch == null) batch = queue.create(address);
+				batch.write(timestamp, cursor.getPm25Tenths(), cursor.getPm10Tenths(), cursor.getFlags());
+				if (batch.getReadings() == MAX_BATCH_READINGS) {
+					batch.commit();
+					batch = null;
+					// committed batches are not queued again should the next one fail
+					saveQueuedUntil(key, newest);
+				}
+			}
+
+			if (batch != null) {
+				batch.commit();
+				batch = null;
+			}
+		} finally {
+			if (batch != null) batch.abort();
+			cursor.close();
+		}
+
+		if (newest > queuedUntil) saveQueuedUntil(key, newest);
+	}
+
+	private synchronized void saveQueuedUntil(String key, long timestamp) {
+		getPreferences().edit()
+				.putLong(key, timestamp)
+				.commit();
+	}
+
+	private static URL parseEndpoint(String endpoint) {
+		if (endpoint.length() == 0) return null;
+		try {
+			URL url = new URL(endpoint);
+			if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) return null;
+			return url;
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private SharedPreferences getPreferences() {
+		return applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+}
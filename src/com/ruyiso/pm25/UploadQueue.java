@@ -0,0 +1,198 @@
+package com.ruyiso.pm25;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Durable queue of upload batches, one file per batch, oldest first.
+ *
+ * A batch is a gzip compressed {@link ColumnarExportWriter} export of the readings of one sensor. It is
+ * written to a temporary file and renamed once complete, so a batch in the queue is never partial and
+ * batches survive restarts and any length of time offline. Files are named
+ * <pre>
+ * sequence-sensor address.batch
+ * </pre>
+ * with the address colons replaced by dashes. Batches being uploaded are claimed so concurrent uploads
+ * never send the same one. Once the queue grows beyond its size limit the oldest batches are dropped.
+ */
+public final class UploadQueue {
+	private static final String BATCH_SUFFIX = ".batch";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private static final int WRITE_BUFFER_SIZE = 8192;
+
+	/**
+	 * A batch being written, invisible to the queue until {@link #commit()}.
+	 */
+	public final class Batch {
+		private final File temporary;
+		private final File target;
+		private final OutputStream out;
+		private final ColumnarExportWriter writer;
+		private long readings;
+
+		private Batch(File temporary, File target) throws IOException {
+			this.temporary = temporary;
+			this.target = target;
+			out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), WRITE_BUFFER_SIZE));
+			writer = new ColumnarExportWriter(out);
+		}
+
+		public void write(long timestamp, int pm25Tenths, int pm10Tenths, int flags) throws IOException {
+			writer.write(timestamp, pm25Tenths, pm10Tenths, flags);
+			readings++;
+		}
+
+		public long getReadings() {
+			return readings;
+		}
+
+		/**
+		 * Completes the batch and adds it to the queue.
+		 */
+		public void commit() throws IOException {
+			writer.finish();
+			out.close();
+			if (!temporary.renameTo(target)) throw new IOException("unable to rename " + temporary);
+			trim();
+		}
+
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// deleted anyway
+			}
+			temporary.delete();
+		}
+	}
+
+	private final File directory;
+	private final long maxBytes;
+
+	private final Set<File> claimed = new HashSet<File>();
+	private long nextSequence;
+
+	/**
+	 * @param maxBytes size above which the oldest batches are dropped
+	 */
+	public UploadQueue(File directory, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("unable to create " + directory);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+
+		// leftovers of batches the process died writing
+		File[] temporaries = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(TEMPORARY_SUFFIX);
+			}
+		});
+		if (temporaries != null) {
+			for (File temporary : temporaries) {
+				temporary.delete();
+			}
+		}
+
+		File[] batches = listBatches();
+		nextSequence = batches.length == 0 ? 0 : parseSequence(batches[batches.length - 1]) + 1;
+	}
+
+	/**
+	 * Starts a new batch of the readings of a sensor.
+	 */
+	public synchronized Batch create(String sensorAddress) throws IOException {
+		String name = nextSequence++ + "-" + sensorAddress.replace(':', '-');
+		return new Batch(new File(directory, name + TEMPORARY_SUFFIX), new File(directory, name + BATCH_SUFFIX));
+	}
+
+	/**
+	 * @return the oldest batch not claimed yet, null if there is none. It must be passed to
+	 * {@link #release(File)} or {@link #remove(File)} afterwards.
+	 */
+	public synchronized File claim() {
+		for (File batch : listBatches()) {
+			if (claimed.add(batch)) return batch;
+		}
+		return null;
+	}
+
+	/**
+	 * Puts a claimed batch back, e.g. after a failed upload.
+	 */
+	public synchronized void release(File batch) {
+		claimed.remove(batch);
+	}
+
+	/**
+	 * Drops a batch for good, e.g. after it has been uploaded.
+	 */
+	public synchronized void remove(File batch) {
+		claimed.remove(batch);
+		batch.delete();
+	}
+
+	public synchronized int size() {
+		return listBatches().length;
+	}
+
+	/**
+	 * @return the sensor address a batch holds readings of
+	 */
+	public static String getSensorAddress(File batch) {
+		String name = batch.getName();
+		return name.substring(name.indexOf('-') + 1, name.length() - BATCH_SUFFIX.length()).replace('-', ':');
+	}
+
+	private synchronized void trim() {
+		File[] batches = listBatches();
+		long bytes = 0;
+		for (File batch : batches) {
+			bytes += batch.length();
+		}
+		for (int i = 0; i < batches.length && bytes > maxBytes; i++) {
+			// a batch being uploaded is left alone, it is gone soon anyway
+			if (claimed.contains(batches[i])) continue;
+			bytes -= batches[i].length();
+			batches[i].delete();
+		}
+	}
+
+	private File[] listBatches() {
+		File[] batches = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(BATCH_SUFFIX);
+			}
+		});
+		if (batches == null) return new File[0];
+
+		Arrays.sort(batches, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long sequenceA = parseSequence(a);
+				long sequenceB = parseSequence(b);
+				return sequenceA < sequenceB ? -1 : (sequenceA == sequenceB ? 0 : 1);
+			}
+		});
+		return batches;
+	}
+
+	private static long parseSequence(File batch) {
+		String name = batch.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('-')));
+		} catch (RuntimeException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+}
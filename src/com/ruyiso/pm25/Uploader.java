@@ -0,0 +1,239 @@
+package com.ruyiso.pm25;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains an {@link UploadQueue} to an HTTP endpoint.
+ *
+ * Every batch is sent as the body of its own POST with
+ * <pre>
+ * Content-Type: application/x-pm25-columnar
+ * Content-Encoding: gzip
+ * X-Sensor-Address: sensor address
+ * X-Batch-Id: file name of the batch, the same on every retry
+ * </pre>
+ * At most maxConcurrent uploads run at a time. A 2xx reply removes the batch. A 4xx reply other than 408
+ * and 429 means the server will never take it, so it is dropped too. Any other failure puts it back and
+ * pauses the whole queue with exponential backoff, a batch that cannot be sent now is unlikely to be
+ * followed by one that can.
+ *
+ * Draining only happens while online and an endpoint is set, it is triggered by {@link #drain()} when new
+ * batches are queued or the network comes back, so the radio is woken up for a burst of batches instead
+ * of for every reading.
+ */
+public final class Uploader {
+	public static final String CONTENT_TYPE = "application/x-pm25-columnar";
+
+	private static final int CONNECT_TIMEOUT_MS = 15000;
+	private static final int READ_TIMEOUT_MS = 30000;
+
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private final UploadQueue queue;
+	private final int maxConcurrent;
+
+	private final ScheduledExecutorService executor;
+
+	private final ReconnectBackoff backoff;
+
+	private URL endpoint;
+	private boolean online = true;
+	private boolean paused;
+	private int inFlight;
+	private boolean shutdown;
+
+	private long batchesUploaded;
+	private long batchesRejected;
+	private long bytesUploaded;
+	private long failures;
+
+	private final Runnable resume = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (Uploader.this) {
+				paused = false;
+			}
+			drain();
+		}
+	};
+
+	public Uploader(UploadQueue queue, int maxConcurrent) {
+		this(queue, maxConcurrent, new ReconnectBackoff(30 * 1000, 30 * 60 * 1000, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @param backoff pauses the queue after a failure, tests pass shorter ones
+	 */
+	Uploader(UploadQueue queue, int maxConcurrent, ReconnectBackoff backoff) {
+		if (maxConcurrent <= 0) throw new IllegalArgumentException("invalid concurrency " + maxConcurrent);
+		this.queue = queue;
+		this.maxConcurrent = maxConcurrent;
+		this.backoff = backoff;
+
+		// one thread per upload plus one for the backoff timer
+		executor = Executors.newScheduledThreadPool(maxConcurrent + 1, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "Uploader " + ++count);
+			}
+		});
+	}
+
+	/**
+	 * @param endpoint where to POST batches to, null stops uploading and keeps queueing
+	 */
+	public void setEndpoint(URL endpoint) {
+		synchronized (this) {
+			this.endpoint = endpoint;
+			// a new endpoint deserves a fresh start
+			paused = false;
+			backoff.reset();
+		}
+		drain();
+	}
+
+	public void setOnline(boolean online) {
+		synchronized (this) {
+			this.online = online;
+		}
+		if (online) drain();
+	}
+
+	/**
+	 * Starts uploads of queued batches up to the concurrency limit, unless offline or backing off.
+	 */
+	public void drain() {
+		synchronized (this) {
+			while (!shutdown && endpoint != null && online && !paused && inFlight < maxConcurrent) {
+				final File batch = queue.claim();
+				if (batch == null) return;
+
+				inFlight++;
+				final URL target = endpoint;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						upload(target, batch);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads, running uploads are finished. The queue keeps what was not sent.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		executor.shutdown();
+	}
+
+	public synchronized long getBatchesUploaded() {
+		return batchesUploaded;
+	}
+
+	public synchronized long getBatchesRejected() {
+		return batchesRejected;
+	}
+
+	public synchronized long getBytesUploaded() {
+		return bytesUploaded;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	private void upload(URL target, File batch) {
+		int status;
+		try {
+			status = post(target, batch);
+		} catch (IOException e) {
+			status = -1;
+		}
+
+		final boolean accepted = status >= 200 && status < 300;
+		final boolean rejected = status >= 400 && status < 500 && status != 408 && status != 429;
+		synchronized (this) {
+			inFlight--;
+			if (accepted) {
+				batchesUploaded++;
+				bytesUploaded += batch.length();
+				backoff.reset();
+			} else if (rejected) {
+				batchesRejected++;
+			} else {
+				failures++;
+			}
+
+			if (accepted || rejected) {
+				queue.remove(batch);
+			} else {
+				queue.release(batch);
+				if (!paused && !shutdown) {
+					paused = true;
+					executor.schedule(resume, backoff.nextDelayMs(), TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		drain();
+	}
+
+	/**
+	 * @return the HTTP status
+	 */
+	private static int post(URL target, File batch) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+		try {
+			connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			connection.setReadTimeout(READ_TIMEOUT_MS);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			connection.setRequestProperty("X-Sensor-Address", UploadQueue.getSensorAddress(batch));
+			connection.setRequestProperty("X-Batch-Id", batch.getName());
+			// streamed from the file, not buffered in memory to find the length
+			connection.setFixedLengthStreamingMode((int) batch.length());
+
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			InputStream in = new FileInputStream(batch);
+			try {
+				OutputStream out = connection.getOutputStream();
+				int count;
+				while ((count = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, count);
+				}
+				out.close();
+			} finally {
+				in.close();
+			}
+
+			int status = connection.getResponseCode();
+			// read to the end so the connection can be reused
+			InputStream reply = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (reply != null) {
+				while (reply.read(buffer) >= 0) {
+				}
+				reply.close();
+			}
+			return status;
+		} catch (IOException e) {
+			// only a failed connection is dropped, a drained one is kept alive for the next batch
+			connection.disconnect();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.ruyiso.pm25;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the raw bytes of a sensor link to a capture file, to reproduce whatever a sensor sent in the
+ * field with {@link CaptureReplay}.
+ *
+ * The file starts with
+ * <pre>
+ * magic "PMWC" (4) | version (2) | wall clock ms at the start (8)
+ * </pre>
+ * followed by records
+ * <pre>
+ * type (1) | monotonic ns since the previous record (varint) | wall clock ms change (zigzag varint) | length (varint) | bytes
+ * </pre>
+ * of type {@link #RECORD_IN} for bytes from the sensor, {@link #RECORD_OUT} for bytes to it and
+ * {@link #RECORD_DROPPED} for bytes not recorded, the length then holds their number and no bytes follow.
+ * {@link #RECORD_LINK_OPENED} without bytes marks a new connection.
+ * Both clocks are kept, the monotonic one for replaying at the original pace and the wall clock one for
+ * the reading timestamps.
+ *
+ * Recording only copies into one of two preallocated buffers, a background thread writes the full ones to
+ * the file. Should the file fall behind, bytes are dropped and counted instead of holding up the link.
+ */
+public final class WireCapture {
+	public static final int MAGIC = 0x504d5743;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 14;
+
+	public static final int RECORD_IN = 0;
+	public static final int RECORD_OUT = 1;
+	public static final int RECORD_DROPPED = 2;
+	public static final int RECORD_LINK_OPENED = 3;
+
+	/** type plus three varints of at most 10 bytes */
+	static final int MAX_RECORD_HEADER = 1 + 3 * 10;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** a buffer is written out at the latest after this long, so a capture stays current */
+	private static final long FLUSH_INTERVAL_MS = 2000;
+
+	private final OutputStream out;
+	private final Thread flusher;
+
+	private byte[] filling = new byte[BUFFER_SIZE];
+	private int filled;
+	/** handed to the flusher, null while it is being written */
+	private byte[] spare = new byte[BUFFER_SIZE];
+	private byte[] full;
+	private int fullLength;
+
+	private long previousNanos;
+	private long previousMillis;
+	private long bytesDropped;
+	private long bytesRecorded;
+	private boolean closed;
+	private IOException failure;
+
+	public WireCapture(String path) throws IOException {
+		out = new FileOutputStream(path);
+		previousNanos = System.nanoTime();
+		previousMillis = System.currentTimeMillis();
+
+		byte[] header = new byte[HEADER_SIZE];
+		putInt(header, 0, MAGIC);
+		header[4] = (byte) (VERSION >> 8);
+		header[5] = (byte) VERSION;
+		putInt(header, 6, (int) (previousMillis >>> 32));
+		putInt(header, 10, (int) previousMillis);
+		out.write(header);
+
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "WireCapture");
+		flusher.setPriority(Thread.MIN_PRIORITY);
+		flusher.start();
+	}
+
+	/**
+	 * Records bytes received from the sensor at the given time, e.g. right after they were read.
+	 */
+	public void recordIn(byte[] buffer, int offset, int count, long nanos, long millis) {
+		record(RECORD_IN, buffer, offset, count, nanos, millis);
+	}
+
+	public void recordOut(byte[] buffer, int offset, int count) {
+		record(RECORD_OUT, buffer, offset, count, System.nanoTime(), System.currentTimeMillis());
+	}
+
+	/**
+	 * Notes that the link has been (re)established, a replay starts decoding afresh like the new reader
+	 * thread does.
+	 */
+	public void recordLinkOpened() {
+		record(RECORD_LINK_OPENED, null, 0, 0, System.nanoTime(), System.currentTimeMillis());
+	}
+
+	public synchronized long getBytesRecorded() {
+		return bytesRecorded;
+	}
+
+	public synchronized long getBytesDropped() {
+		return bytesDropped;
+	}
+
+	/**
+	 * Writes what is left and closes the file, recording afterwards is ignored.
+	 *
+	 * @throws IOException the first error writing the capture
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				if (failure == null) {
+					if (bytesDropped > 0) putDropped();
+					out.write(filling, 0, filled);
+				}
+			} finally {
+				out.close();
+			}
+			if (failure != null) throw failure;
+		}
+	}
+
+	private synchronized void record(int type, byte[] buffer, int offset, int count, long nanos, long millis) {
+		if (closed || failure != null) return;
+
+		// a chunk larger than a buffer would never fit, it is split
+		while (count > BUFFER_SIZE - MAX_RECORD_HEADER * 2) {
+			int part = BUFFER_SIZE / 2;
+			record(type, buffer, offset, part, nanos, millis);
+			offset += part;
+			count -= part;
+		}
+
+		if (filled + MAX_RECORD_HEADER * 2 + count > BUFFER_SIZE && !swap()) {
+			bytesDropped += count;
+			return;
+		}
+
+		// the drop is noted before the next record, so replay knows where the gap is
+		if (bytesDropped > 0) putDropped();
+
+		filling[filled++] = (byte) type;
+		filled = putVarint(filling, filled, Math.max(0, nanos - previousNanos));
+		filled = putVarint(filling, filled, zigzag(millis - previousMillis));
+		filled = putVarint(filling, filled, count);
+		if (count > 0) System.arraycopy(buffer, offset, filling, filled, count);
+		filled += count;
+		previousNanos = Math.max(previousNanos, nanos);
+		previousMillis = millis;
+		bytesRecorded += count;
+	}
+
+	private void putDropped() {
+		filling[filled++] = RECORD_DROPPED;
+		filled = putVarint(filling, filled, 0);
+		filled = putVarint(filling, filled, 0);
+		filled = putVarint(filling, filled, bytesDropped);
+		bytesDropped = 0;
+	}
+
+	/**
+	 * Hands the filled buffer to the flusher.
+	 *
+	 * @return false if the flusher still holds the other one
+	 */
+	private boolean swap() {
+		if (spare == null) return false;
+
+		full = filling;
+		fullLength = filled;
+		filling = spare;
+		filled = 0;
+		spare = null;
+		notifyAll();
+		return true;
+	}
+
+	private void flushLoop() {
+		while (true) {
+			byte[] buffer;
+			int length;
+			synchronized (this) {
+				if (full == null && !closed) {
+					try {
+						wait(FLUSH_INTERVAL_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					// nothing filled up meanwhile, write out what is there
+					if (full == null && filled > 0 && spare != null) swap();
+				}
+				if (full == null) {
+					if (closed) return;
+					continue;
+				}
+				buffer = full;
+				length = fullLength;
+				full = null;
+			}
+
+			IOException error = null;
+			try {
+				out.write(buffer, 0, length);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			synchronized (this) {
+				spare = buffer;
+				if (error != null && failure == null) failure = error;
+			}
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static int putVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 24);
+		buffer[offset + 1] = (byte) (value >> 16);
+		buffer[offset + 2] = (byte) (value >> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+}
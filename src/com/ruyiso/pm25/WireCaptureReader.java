@@ -0,0 +1,138 @@
+package com.ruyiso.pm25;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the records of a {@link WireCapture} file one at a time.
+ */
+public final class WireCaptureReader {
+	private final InputStream in;
+
+	private long startMillis;
+	private boolean started;
+
+	private int type;
+	private long nanos;
+	private long millis;
+	private int length;
+	private byte[] bytes = new byte[256];
+
+	/**
+	 * @param in read byte by byte, pass a buffered stream
+	 */
+	public WireCaptureReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return false at the end of the capture. A record cut short, as left by a process killed while
+	 * recording, also ends it.
+	 * @throws IOException if the file is not a capture
+	 */
+	public boolean next() throws IOException {
+		if (!started) readHeader();
+
+		int b = in.read();
+		if (b < 0) return false;
+		try {
+			type = b;
+			nanos += readVarint();
+			millis += unzigzag(readVarint());
+			long count = readVarint();
+			if (type > WireCapture.RECORD_LINK_OPENED || count < 0 || count > Integer.MAX_VALUE) {
+				throw new IOException("invalid record at " + millis);
+			}
+			length = (int) count;
+
+			if (type == WireCapture.RECORD_DROPPED) return true;
+			if (bytes.length < length) bytes = new byte[Math.max(length, bytes.length * 2)];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(bytes, read, length - read);
+				if (n < 0) throw new EOFException();
+				read += n;
+			}
+			return true;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@link WireCapture#RECORD_IN}, {@link WireCapture#RECORD_OUT}, {@link WireCapture#RECORD_DROPPED}
+	 * or {@link WireCapture#RECORD_LINK_OPENED}
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return monotonic ns since the start of the capture
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * @return wall clock time of the record, ms since the epoch
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return bytes in the record, for {@link WireCapture#RECORD_DROPPED} the number of bytes not recorded
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the record bytes, valid up to {@link #getLength()} until the next call to {@link #next()}
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	private void readHeader() throws IOException {
+		started = true;
+		byte[] header = new byte[WireCapture.HEADER_SIZE];
+		int read = 0;
+		while (read < header.length) {
+			int n = in.read(header, read, header.length - read);
+			if (n < 0) throw new IOException("not a capture");
+			read += n;
+		}
+		if (getInt(header, 0) != WireCapture.MAGIC) throw new IOException("not a capture");
+		int version = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
+		if (version != WireCapture.VERSION) throw new IOException("unsupported version " + version);
+		startMillis = ((long) getInt(header, 6) << 32) | (getInt(header, 10) & 0xffffffffL);
+		millis = startMillis;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException();
+			value |= (long) (b & 0x7f) << shift;
+			if (b < 0x80) return value;
+		}
+		throw new IOException("overlong varint");
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+				| ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+}